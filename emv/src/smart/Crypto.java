@@ -1,342 +1,630 @@
-package smart;
-
-import javacard.framework.ISO7816;
-import javacard.framework.JCSystem;
-import javacard.framework.Util;
-import javacard.security.DESKey;
-import javacard.security.KeyBuilder;
-import javacard.security.Signature;
-import javacardx.crypto.Cipher;
-import javacard.framework.APDU;
-
-public class Crypto {
-
-	/* Reference back to the applet that uses this EMVCrypto object */
-	private final Emv theApplet;
-
-	private final byte[] sessionkey;
-
-	/** 3DESKey ICC Master Key, shared with the bank */
-	private final DESKey mk;
-
-	private final Cipher desCipher;
-	private final Signature desMAC;
-
-	/** 3DESKey session keys, derived from Master Key mk */
-	private final DESKey sk;
-
-	/**
-	 * Scratchpad transient byte array for diversification data used to build
-	 * session key
-	 */
-	private final byte[] diversification_data;
-
-	/** Transient byte array for storing ac transaction_data */
-	byte[] transaction_data;
-
-	// Used to store an injected ac for replication
-	private final byte[] replicated_ac;
-	private boolean replicateAc;
-
-	// Used to store an injected IAD for replication
-	private final byte[] replicated_iad;
-	private boolean replicate_iad;
-	private short replicated_iad_length;
-
-	public Crypto(Emv x) {
-		theApplet = x; // reference back to the applet
-
-		diversification_data = JCSystem.makeTransientByteArray((short) 8,
-				JCSystem.CLEAR_ON_DESELECT);
-		sessionkey = JCSystem.makeTransientByteArray((short) 16,
-				JCSystem.CLEAR_ON_DESELECT);
-		transaction_data = JCSystem.makeTransientByteArray((short) 256,
-				JCSystem.CLEAR_ON_DESELECT);
-
-		desCipher = Cipher.getInstance(Cipher.ALG_DES_CBC_ISO9797_M2, false);
-		desMAC = Signature
-				.getInstance(Signature.ALG_DES_MAC8_ISO9797_M2, false);
-
-		mk = (DESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_DES,
-				KeyBuilder.LENGTH_DES3_2KEY, false);
-		mk.setKey(new byte[] { 0x11, 0x0C, 0x1D, 0x02, 0x03, 0x04, 0x0C,
-				(byte) 0xDA, (byte) 0xFA, (byte) 0xCA, 0x04, 0x11, 0x12, 0x14,
-				(byte) 0xCA, 0x16 }, (short) 0);
-		sk = (DESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_DES,
-				KeyBuilder.LENGTH_DES3_2KEY, false);
-
-		replicated_ac = new byte[] { (byte) 0x4D, (byte) 0xE1, (byte) 0x4B,
-				(byte) 0xFC, (byte) 0x2F, (byte) 0x73, (byte) 0xBA, (byte) 0xC4 };
-		replicateAc = true;
-
-		replicated_iad = new byte[] { (byte) 0x02, (byte) 0x10, (byte) 0xA0,
-				(byte) 0x00, (byte) 0x03, (byte) 0x22, (byte) 0x00,
-				(byte) 0x00, (byte) 0x27, (byte) 0x11, (byte) 0x00,
-				(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
-				(byte) 0x00, (byte) 0x00, (byte) 0xFF };
-		replicate_iad = true;
-		replicated_iad_length = (short) 18;
-	}
-
-	/*
-	 * Sets the current 3DES session key, based on the Application Transaction
-	 * Counter (ATC).
-	 * 
-	 * It is done as described in Book 2, Annex A1.3.1, by encrypting ATC || F0
-	 * || 00 || 00 || 00 || 00 || 00 with the card's 3DES Master Key to obtain
-	 * the left 8 bytes, and encrypting ATC || OF || 00 || 00 || 00 || 00 || 00
-	 * with the card's 3DES Master Key to obtain the right 8 bytes.
-	 */
-	private void setSessionKey() {
-		// as 8-byte diversification data we take the ATC followed by all zeroes
-		Util.setShort(diversification_data, (short) 0,
-				theApplet.protocolState.getATC());
-		Util.arrayFillNonAtomic(diversification_data, (short) 2, (short) 6,
-				(byte) 0);
-
-		desCipher.init(mk, Cipher.MODE_ENCRYPT);
-
-		// compute left 8 bytes of the session key
-		diversification_data[2] = (byte) 0xF0;
-		desCipher.doFinal(diversification_data, (short) 0, (short) 8,
-				sessionkey, (short) 0);
-
-		// compute right 8 byte of the session key
-		diversification_data[2] = (byte) 0x0F;
-		desCipher.doFinal(diversification_data, (short) 0, (short) 8,
-				sessionkey, (short) 0);
-
-		sk.setKey(sessionkey, (short) 0);
-	}
-
-	/*
-	 * Computes a cryptogram, as described in Book 2, Sec 8.1, and stores it in
-	 * the given response buffer at the given offset.
-	 * 
-	 * The cryptogram is an 8 byte MAC over data supplied by the terminal (as
-	 * specified by the CDOL1 or CDOL2) and data provided by the ICC.
-	 * 
-	 * The data supplied by the terminal is in the ADPU buffer. This method does
-	 * not need to know what this data is, ie. does not need to know the CDOLs,
-	 * but only needs to know the total length of these data elements.
-	 * 
-	 * As data provided by the ICC this method just uses the minimum recommended
-	 * set of data elements, ie the AIP and ATC (see Book 2, Sect 8.1.1), for
-	 * both the first and the second AC. Hence one method can be used for both.
-	 * 
-	 * @requires apduBuffer != response, to avoid problems overwriting the
-	 * apduBuffer??
-	 * 
-	 * @param cid the type of AC, ie. AAC_CODE, TC_CODE, or ARCQ_CODE
-	 * 
-	 * @param apduBuffer contains the terminal-supplied data to be signed in the
-	 * AC
-	 * 
-	 * @param length length of the terminal-supplied data
-	 * 
-	 * @param response the destination array where the AC is stored at given
-	 * offset
-	 * 
-	 * @param offset offset in this response array
-	 */
-	private void computeAC(byte cid, byte[] apduBuffer, short length,
-			byte[] response, short offset) {
-
-		// Check if replicated AC func is enabled and act accordingly
-		if (replicateAc == true) {
-			Util.arrayCopy(replicated_ac, (short) 0, response, offset,
-					(short) 8);
-		} else {
-			/* Collect the data to be MAC-ed in the array transaction_data */
-
-			// Copy CDOL from the APDU buffer, at offset 0:
-			Util.arrayCopy(apduBuffer, ISO7816.OFFSET_CDATA, transaction_data,
-					(short) 0, length);
-			// 2 bytes AIP, at offset length:
-			Util.setShort(transaction_data, length,
-					theApplet.fileSystem.getAIP());
-			// 2 bytes ATC, at offset length + 2:
-			Util.setShort(transaction_data, (short) (length + 2),
-					theApplet.protocolState.getATC());
-
-			// TODO What is the following data?
-			transaction_data[(short) (length + 4)] = (byte) 0x80;
-			transaction_data[(short) (length + 5)] = (byte) 0x0;
-			transaction_data[(short) (length + 6)] = (byte) 0x0;
-
-			// MAC is a CBC-MAC computed according to ISO/IEC 9797-1, padding
-			// method 2
-			desMAC.init(sk, Signature.MODE_SIGN);
-			desMAC.sign(transaction_data, (short) 0, (short) (length + 7),
-					response, offset);
-		}
-	}
-
-	public void disableAcReplication() {
-		replicateAc = false;
-	}
-
-	public void setAc(APDU apdu) {
-		byte[] buf = apdu.getBuffer();
-
-		// Store the new AC to be replicated later and enable the functionality
-		// TODO: Validate the new AC length before trying to save it (array out
-		// of bounds)
-		Util.arrayCopy(buf, (short) (ISO7816.OFFSET_CDATA), replicated_ac,
-				(short) 0, (short) 8);
-		replicateAc = true;
-
-		apdu.setOutgoingAndSend((short) 0, (short) 0); // return 9000
-	}
-
-	public void disableIadReplication(APDU apdu) {
-		replicate_iad = false;
-		apdu.setOutgoingAndSend((short) 0, (short) 0); // return 9000
-	}
-
-	public void setIad(byte[] buf) {
-		// Store the new IAD to be replicated later and enable the functionality
-		if (buf[ISO7816.OFFSET_LC] > (byte) 0x12) {
-			Util.arrayCopy(buf, (short) (ISO7816.OFFSET_CDATA), replicated_iad,
-					(short) 0, (short) 18);
-			replicated_iad_length = (short) 18;
-		} else {
-			Util.arrayCopy(buf, (short) (ISO7816.OFFSET_CDATA), replicated_iad,
-					(short) 0, (short) buf[ISO7816.OFFSET_LC]);
-			replicated_iad_length = (short) buf[ISO7816.OFFSET_LC];
-		}
-
-		replicate_iad = true;
-	}
-
-	public void disableIadReplication() {
-		replicate_iad = false;
-	}
-
-	/*
-	 * Compute the first AC response APDU using Format 1. (See Book 3, Section
-	 * 6.5.5.4.) This method also sets the session key.
-	 * 
-	 * The response contains the - CID: Cryptogram Information Data, 1 byte long
-	 * - ATC Application Transaction Counter, 2 bytes long - AC: Application
-	 * Cryptogram, 8 bytes long - optionally, IAD: Issuer Application Data, 30
-	 * bytes long
-	 * 
-	 * @param cid the type of AC, ie. AAC_CODE, TC_CODE, or ARCQ_CODE
-	 * 
-	 * @param apduBuffer contains the terminal-supplied data
-	 * 
-	 * @param length length of the terminal-supplied data
-	 * 
-	 * @param iad the IAD, or null, if IAD is omitted
-	 * 
-	 * @param response the destination array where the response is stored, at
-	 * given offset
-	 */
-	public void generateFirstACReponse(byte cid, byte[] apduBuffer,
-			short length, byte[] iad, short iad_length, byte[] response,
-			short offset) {
-		setSessionKey();
-		generateSecondACReponse(cid, apduBuffer, length, iad, iad_length,
-				response, offset);
-	}
-
-	/*
-	 * Compute the second AC response APDU using Format 1. (See Book 3, Section
-	 * 6.5.5.4.)
-	 */
-	public void generateSecondACReponse(byte cid, byte[] apduBuffer,
-			short length, byte[] iad, short iad_length, byte[] response,
-			short offset) {
-
-		// ARQC with CDA - Book 3, page 57, table 11
-		// if (cid == (byte) 0x90) {
-		if (true) {
-			response[offset] = (byte) 0x77; // Tag for Format 2 cryptogram
-			response[(short) offset + 1] = (byte) 0x00; // Base Length
-
-			// 1 byte CID, the type of AC returned - TAG 9F27 length 01
-			response[(short) offset + 1] = (byte) (response[(short) offset + 1] + (byte) 4); // Base
-																								// Length
-			Util.setShort(response, (short) (offset + 2), (short) 0x9F27); // Tag
-			response[(short) (offset + 4)] = (byte) 0x01; // Length
-			response[(short) (offset + 5)] = cid; // Value
-
-			// 2 byte ATC - Tag 9F36 length 02
-			response[(short) offset + 1] = (byte) (response[(short) offset + 1] + (byte) 5); // Base
-																								// Length
-			Util.setShort(response, (short) (offset + 6), (short) 0x9F36); // Tag
-			response[(short) (offset + 8)] = (byte) 0x02; // Length
-			Util.setShort(response, (short) (offset + 9),
-					theApplet.protocolState.getATC()); // Value
-
-			// the AC itself - Tag 9F26 - length 08
-			response[(short) offset + 1] = (byte) (response[(short) offset + 1] + (byte) 11); // Base
-																								// Length
-			Util.setShort(response, (short) (offset + 11), (short) 0x9F26); // Tag
-			response[(short) (offset + 13)] = (byte) 0x08; // Length
-			computeAC(cid, apduBuffer, length, response, (short) (offset + 14));
-
-			// finally we get the IAD - 9F10 - length 18
-			Util.setShort(response, (short) (offset + 22), (short) 0x9F10); // Tag
-			if (iad != null) {
-				response[(short) (offset + 24)] = (byte) iad.length; // Length
-				Util.arrayCopy(iad, (short) 0, response, (short) (offset + 25),
-						(short) iad.length);
-				response[(short) offset + 1] = (byte) (response[(short) offset + 1]
-						+ (byte) 0x03 + (byte) iad.length); // Base Length
-			} else {
-				if (replicate_iad == true) {
-					// We use the IAD set for replication
-					response[(short) (offset + 24)] = (byte) replicated_iad_length; // Length
-					Util.arrayCopy(replicated_iad, (short) 0, response,
-							(short) (offset + 25), replicated_iad_length);
-					response[(short) offset + 1] = (byte) (response[(short) offset + 1]
-							+ (byte) 0x03 + (byte) replicated_iad_length); // Base
-																			// Length
-				} else {
-					// Force an IAD of 18 bytes consisting of all 0s
-					response[(short) (offset + 24)] = (byte) 0x12; // Length
-					Util.arrayFillNonAtomic(response, (short) (offset + 25),
-							(short) 18, (byte) 0x0);
-					response[(short) offset + 1] = (byte) (response[(short) offset + 1]
-							+ (byte) 0x03 + (byte) 18); // Base Length
-				}
-			}
-		}
-		// ARQC without CDA (cid 80) - Book 3, page 57, table 11
-		else {
-			// Code for old Tag format 80 response
-			response[offset] = (byte) 0x80; // Tag for Format 1 cryptogram
-
-			if (iad == null) { // Length: 1 byte CID + 2 byte ATC + 8 byte AC =
-								// 11
-				response[(short) (offset + 1)] = (byte) 11;
-			} else { // Length: 1 byte CID + 2 byte ATC + 8 byte AC + iad_length
-						// byte IAD
-				response[(short) (offset + 1)] = (byte) (11 + iad_length);
-			}
-			// 1 byte CID, ie the type of AC returned - TAG 9F27
-			response[(short) (offset + 2)] = cid;
-
-			// 2 byte ATC, at offset 3: - 9F36
-			Util.setShort(response, (short) (offset + 3),
-					theApplet.protocolState.getATC());
-
-			// the AC itself - 9F26
-			computeAC(cid, apduBuffer, length, response, (short) (offset + 5));
-
-			// finally we get the (optional) IAD - 9F10
-			if (iad != null) {
-				Util.arrayCopy(iad, (short) 0, response, (short) (offset + 13),
-						(short) 18);
-			}
-
-			// Force an IAD of 18 bytes consisting of all 0s - Needed for
-			// EMV-CAP reader
-			response[(short) (offset + 1)] = (byte) 29;
-			Util.arrayFillNonAtomic(response, (short) (offset + 13),
-					(short) 18, (byte) 0x0);
-		}
-	}
-}
+package smart;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.Util;
+import javacard.security.DESKey;
+import javacard.security.KeyBuilder;
+import javacard.security.MessageDigest;
+import javacard.security.Signature;
+import javacardx.crypto.Cipher;
+import javacard.framework.APDU;
+
+public class Crypto {
+
+	/* Reference back to the applet that uses this EMVCrypto object */
+	private final Emv theApplet;
+
+	/** 3DESKey ICC Master Key, shared with the bank */
+	private final DESKey mk;
+
+	private final Cipher desCipher;
+	private final Signature desMAC;
+
+	/** 3DESKey session key for the ACs, derived from Master Key mk */
+	private final SessionKey sk;
+
+	/**
+	 * 3DESKey ICC master keys for the secure messaging of issuer scripts,
+	 * for integrity (MAC) and for confidentiality (enciphered PIN), and the
+	 * session keys derived from them once per script
+	 */
+	private final DESKey mk_smi;
+	private final DESKey mk_smc;
+	private final SessionKey sk_smi;
+	private final SessionKey sk_smc;
+
+	/** Length of the MAC ending the command data of an issuer script */
+	public static final short SCRIPT_MAC_LENGTH = 8;
+
+	/**
+	 * Signatures with the ICC private key, for DDA and CDA; null when the
+	 * install parameters disable them
+	 */
+	final DynamicSignature signature;
+
+	/**
+	 * Transaction Data Hash Codes of the first and of the second AC (See Book
+	 * 2, Section 6.6.1), fed with the PDOL, CDOL1 and CDOL2 data as they
+	 * arrive; one of each per logical channel
+	 */
+	private final MessageDigest[] first_ac_hash;
+	private final MessageDigest[] second_ac_hash;
+
+	/**
+	 * Transient scratch memory shared with the applet. Crypto uses the
+	 * Workspace.TRANSACTION_DATA region for the ICC-supplied ac
+	 * transaction_data (AIP, ATC and CVR) appended to the CDOL data
+	 */
+	private final byte[] scratch;
+
+	// Offsets of the values patched into the GENERATE AC response
+	private static final short AC_RESPONSE_CID = 5;
+	private static final short AC_RESPONSE_ATC = 9;
+	private static final short AC_RESPONSE_AC = 14;
+	private static final short AC_RESPONSE_IAD_LENGTH = 24;
+	private static final short AC_RESPONSE_IAD = 25;
+	private static final short MAX_IAD_LENGTH = 18;
+	/** Offset of the CVR in the IAD built when the IAD is not replicated */
+	private static final short IAD_CVR = 3;
+
+	/** ICC Dynamic Data of CDA: dynamic number, CID, AC and hash code */
+	private static final short CDA_DYNAMIC_DATA_LENGTH = (short) (1
+			+ DynamicSignature.DYNAMIC_NUMBER_LENGTH + 1 + 8 + 20);
+
+	/** GENERATE AC response template, see buildACResponse */
+	private final byte[] ac_template;
+
+	// Used to store an injected ac for replication
+	private final byte[] replicated_ac;
+	private boolean replicateAc;
+
+	// Used to store an injected IAD for replication
+	private final byte[] replicated_iad;
+	private boolean replicate_iad;
+	private short replicated_iad_length;
+
+	public Crypto(Emv x, boolean dynamicSignature) {
+		theApplet = x; // reference back to the applet
+
+		scratch = x.workspace.buffer;
+		ac_template = new byte[(short) (AC_RESPONSE_IAD + MAX_IAD_LENGTH)];
+
+		desCipher = Cipher.getInstance(Cipher.ALG_DES_ECB_NOPAD, false);
+		desMAC = Signature
+				.getInstance(Signature.ALG_DES_MAC8_ISO9797_M2, false);
+
+		mk = (DESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_DES,
+				KeyBuilder.LENGTH_DES3_2KEY, false);
+		mk.setKey(new byte[] { 0x11, 0x0C, 0x1D, 0x02, 0x03, 0x04, 0x0C,
+				(byte) 0xDA, (byte) 0xFA, (byte) 0xCA, 0x04, 0x11, 0x12, 0x14,
+				(byte) 0xCA, 0x16 }, (short) 0);
+		sk = new SessionKey(mk, desCipher, scratch, Workspace.KEY_DERIVATION);
+
+		mk_smi = (DESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_DES,
+				KeyBuilder.LENGTH_DES3_2KEY, false);
+		mk_smi.setKey(new byte[] { 0x21, 0x1C, 0x2D, 0x12, 0x13, 0x14, 0x1C,
+				(byte) 0xEA, (byte) 0x0A, (byte) 0xDA, 0x14, 0x21, 0x22, 0x24,
+				(byte) 0xDA, 0x26 }, (short) 0);
+		sk_smi = new SessionKey(mk_smi, desCipher, scratch,
+				Workspace.KEY_DERIVATION);
+		mk_smc = (DESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_DES,
+				KeyBuilder.LENGTH_DES3_2KEY, false);
+		mk_smc.setKey(new byte[] { 0x31, 0x2C, 0x3D, 0x22, 0x23, 0x24, 0x2C,
+				(byte) 0xFA, (byte) 0x1A, (byte) 0xEA, 0x24, 0x31, 0x32, 0x34,
+				(byte) 0xEA, 0x36 }, (short) 0);
+		sk_smc = new SessionKey(mk_smc, desCipher, scratch,
+				Workspace.KEY_DERIVATION);
+
+		if (dynamicSignature) {
+			signature = new DynamicSignature(x.random, scratch,
+					Workspace.DYNAMIC_NUMBER);
+		} else {
+			signature = null;
+		}
+		first_ac_hash = new MessageDigest[Workspace.CHANNELS];
+		second_ac_hash = new MessageDigest[Workspace.CHANNELS];
+		for (short i = 0; i < Workspace.CHANNELS; i++) {
+			first_ac_hash[i] = MessageDigest.getInstance(MessageDigest.ALG_SHA,
+					false);
+			second_ac_hash[i] = MessageDigest.getInstance(
+					MessageDigest.ALG_SHA, false);
+		}
+
+		replicated_ac = new byte[] { (byte) 0x4D, (byte) 0xE1, (byte) 0x4B,
+				(byte) 0xFC, (byte) 0x2F, (byte) 0x73, (byte) 0xBA, (byte) 0xC4 };
+		replicateAc = true;
+
+		replicated_iad = new byte[] { (byte) 0x02, (byte) 0x10, (byte) 0xA0,
+				(byte) 0x00, (byte) 0x03, (byte) 0x22, (byte) 0x00,
+				(byte) 0x00, (byte) 0x27, (byte) 0x11, (byte) 0x00,
+				(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+				(byte) 0x00, (byte) 0x00, (byte) 0xFF };
+		replicate_iad = true;
+		replicated_iad_length = (short) 18;
+	}
+
+	/*
+	 * Computes a cryptogram, as described in Book 2, Sec 8.1, and stores it in
+	 * the given response buffer at the given offset.
+	 * 
+	 * The cryptogram is an 8 byte MAC over data supplied by the terminal (as
+	 * specified by the CDOL1 or CDOL2) and data provided by the ICC.
+	 * 
+	 * The data supplied by the terminal is in the ADPU buffer. This method does
+	 * not need to know what this data is, ie. does not need to know the CDOLs,
+	 * but only needs to know the total length of these data elements.
+	 * 
+	 * As data provided by the ICC this method uses the minimum recommended set
+	 * of data elements, ie the AIP and ATC (see Book 2, Sect 8.1.1), followed
+	 * by the 3 bytes of flags of the CVR, for both the first and the second
+	 * AC. Hence one method can be used for both. The CVR must already hold the
+	 * type of the AC being generated.
+	 * 
+	 * @param cid the type of AC, ie. AAC_CODE, TC_CODE, or ARCQ_CODE
+	 * 
+	 * @param apduBuffer contains the terminal-supplied data to be signed in the
+	 * AC
+	 * 
+	 * @param dataOffset offset of the terminal-supplied data in apduBuffer
+	 * 
+	 * @param length length of the terminal-supplied data
+	 * 
+	 * @param response the destination array where the AC is stored at given
+	 * offset, may be apduBuffer as the AC is written after the
+	 * terminal-supplied data has been processed
+	 * 
+	 * @param offset offset in this response array
+	 */
+	private void computeAC(byte cid, byte[] apduBuffer, short dataOffset,
+			short length, byte[] response, short offset) {
+
+		// Check if replicated AC func is enabled and act accordingly
+		if (replicateAc == true) {
+			Util.arrayCopy(replicated_ac, (short) 0, response, offset,
+					(short) 8);
+		} else {
+			// MAC is a CBC-MAC computed according to ISO/IEC 9797-1, padding
+			// method 2. The terminal-supplied data is MAC-ed where it sits in
+			// the APDU buffer, only the ICC-supplied data is collected in
+			// the transaction data region of the scratch memory.
+			desMAC.init(sk.getKey(
+					theApplet.protocolState.getTransactionATC()),
+					Signature.MODE_SIGN);
+			desMAC.update(apduBuffer, dataOffset, length);
+
+			// 2 bytes AIP, at offset 0:
+			Util.setShort(scratch, Workspace.TRANSACTION_DATA,
+					theApplet.fileSystem.getAIP());
+			// 2 bytes ATC, at offset 2:
+			Util.setShort(scratch, (short) (Workspace.TRANSACTION_DATA + 2),
+					theApplet.protocolState.getTransactionATC());
+			// 3 bytes CVR, at offset 4:
+			Util.arrayCopyNonAtomic(theApplet.protocolState.getCVR(),
+					(short) 1, scratch,
+					(short) (Workspace.TRANSACTION_DATA + 4), (short) 3);
+
+			desMAC.sign(scratch, Workspace.TRANSACTION_DATA,
+					Workspace.TRANSACTION_DATA_LENGTH, response, offset);
+		}
+
+		if (cid == Emv.ARQC_CODE) {
+			// kept for the issuer authentication
+			Util.arrayCopyNonAtomic(response, offset, scratch,
+					Workspace.getARQC(), Workspace.ARQC_LENGTH);
+		}
+	}
+
+	/*
+	 * Verifies the Issuer Authentication Data (91) at buf[offset]: the ARPC
+	 * (8 bytes) followed by the ARC (2 bytes). With the ARPC Method 1 of Book
+	 * 2, Section 8.2.1, the ARPC is the encryption of the ARQC XOR-ed with the
+	 * ARC (padded with 0s) under the AC session key, which SessionKey still
+	 * holds from the first AC of the transaction.
+	 */
+	public boolean verifyARPC(byte[] buf, short offset) {
+		short arqc = Workspace.getARQC();
+		Util.arrayCopyNonAtomic(scratch, arqc, scratch,
+				Workspace.ARPC, Workspace.ARPC_LENGTH);
+		scratch[Workspace.ARPC] ^= buf[(short) (offset + 8)];
+		scratch[(short) (Workspace.ARPC + 1)] ^= buf[(short) (offset + 9)];
+
+		desCipher.init(sk.getKey(
+				theApplet.protocolState.getTransactionATC()),
+				Cipher.MODE_ENCRYPT);
+		desCipher.doFinal(scratch, Workspace.ARPC, Workspace.ARPC_LENGTH,
+				scratch, Workspace.ARPC);
+		return Util.arrayCompare(scratch, Workspace.ARPC, buf, offset,
+				Workspace.ARPC_LENGTH) == 0;
+	}
+
+	/*
+	 * Verifies the secure messaging MAC of an issuer script command (See Book
+	 * 2, Section 9.2), whose command data of the given length (Lc) ends with
+	 * the MAC. The MAC is computed like the AC, over the command header (CLA
+	 * INS P1 P2 Lc), the ATC, the ARQC of the transaction and the plain
+	 * command data, with the SMI session key. That key is derived from the
+	 * ARQC by the first command of the script; the next ones reuse it.
+	 */
+	public boolean verifyScriptMAC(byte[] buf, short length) {
+		short atc = theApplet.protocolState.getTransactionATC();
+		short arqc = Workspace.getARQC();
+		desMAC.init(sk_smi.getKey(atc, scratch, arqc),
+				Signature.MODE_SIGN);
+		desMAC.update(buf, ISO7816.OFFSET_CLA, (short) 5);
+		Util.setShort(scratch, Workspace.SCRIPT_MAC, atc);
+		desMAC.update(scratch, Workspace.SCRIPT_MAC, (short) 2);
+		desMAC.update(scratch, arqc, Workspace.ARQC_LENGTH);
+
+		length = (short) (length - SCRIPT_MAC_LENGTH);
+		desMAC.sign(buf, ISO7816.OFFSET_CDATA, length, scratch,
+				Workspace.SCRIPT_MAC);
+		return Util.arrayCompare(scratch, Workspace.SCRIPT_MAC, buf,
+				(short) (ISO7816.OFFSET_CDATA + length),
+				SCRIPT_MAC_LENGTH) == 0;
+	}
+
+	/*
+	 * Deciphers in place the 8 byte enciphered PIN block at buf[offset] of a
+	 * PIN change issuer script command, with the SMC session key (See Book
+	 * 2, Section 9.3)
+	 */
+	public void decipherPIN(byte[] buf, short offset) {
+		desCipher.init(sk_smc.getKey(
+				theApplet.protocolState.getTransactionATC(), scratch,
+				Workspace.getARQC()), Cipher.MODE_DECRYPT);
+		desCipher.doFinal(buf, offset, (short) 8, buf, offset);
+	}
+
+	/*
+	 * Sets the ICC master keys for the AC, for the secure messaging integrity
+	 * and for the secure messaging confidentiality, 16 bytes each, and drops
+	 * the session keys derived from the previous ones
+	 */
+	public void setMasterKeys(byte[] keys, short offset) {
+		mk.setKey(keys, offset);
+		mk_smi.setKey(keys, (short) (offset + 16));
+		mk_smc.setKey(keys, (short) (offset + 32));
+		sk.clear();
+		sk_smi.clear();
+		sk_smc.clear();
+	}
+
+	public void disableAcReplication() {
+		replicateAc = false;
+	}
+
+	/*
+	 * Stores the AC of the PUT DATA command data, of the given length, to be
+	 * replicated in the next cryptograms. Throws 6700 unless it is 8 bytes.
+	 */
+	public void setAc(APDU apdu, short length) {
+		byte[] buf = apdu.getBuffer();
+
+		if (length != Workspace.ARQC_LENGTH) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		// Store the new AC to be replicated later and enable the functionality
+		Util.arrayCopy(buf, (short) (ISO7816.OFFSET_CDATA), replicated_ac,
+				(short) 0, (short) 8);
+		replicateAc = true;
+
+		apdu.setOutgoingAndSend((short) 0, (short) 0); // return 9000
+	}
+
+	public void setIad(byte[] buf) {
+		// Store the new IAD to be replicated later and enable the functionality
+		if (buf[ISO7816.OFFSET_LC] > (byte) 0x12) {
+			Util.arrayCopy(buf, (short) (ISO7816.OFFSET_CDATA), replicated_iad,
+					(short) 0, (short) 18);
+			replicated_iad_length = (short) 18;
+		} else {
+			Util.arrayCopy(buf, (short) (ISO7816.OFFSET_CDATA), replicated_iad,
+					(short) 0, (short) buf[ISO7816.OFFSET_LC]);
+			replicated_iad_length = (short) buf[ISO7816.OFFSET_LC];
+		}
+
+		replicate_iad = true;
+		ac_template[0] = (byte) 0x00; // Rebuild the template with the new IAD
+	}
+
+	public void disableIadReplication() {
+		replicate_iad = false;
+		ac_template[0] = (byte) 0x00; // Rebuild the template without the IAD
+	}
+
+	/*
+	 * Builds the Format 2 (tag 77) GENERATE AC response template (See Book 3,
+	 * Section 6.5.5.4):
+	 * 
+	 * 77 L 9F27 01 [CID] 9F36 02 [ATC] 9F26 08 [AC] 9F10 L [IAD]
+	 * 
+	 * Only the CID, ATC and AC values change from one AC to the next, so they
+	 * are patched in by writeACDataObjects. The template only depends on
+	 * the IAD, so it is persistent and rebuilt only when the IAD changes. The
+	 * tag is written last: a template interrupted by a tear is rebuilt by the
+	 * next AC.
+	 */
+	private void buildACResponse() {
+		Util.setShort(ac_template, (short) 2, (short) 0x9F27); // CID
+		ac_template[4] = (byte) 0x01;
+		Util.setShort(ac_template, (short) 6, (short) 0x9F36); // ATC
+		ac_template[8] = (byte) 0x02;
+		Util.setShort(ac_template, (short) 11, (short) 0x9F26); // AC
+		ac_template[13] = (byte) 0x08;
+		Util.setShort(ac_template, (short) 22, (short) 0x9F10); // IAD
+
+		if (replicate_iad == true) {
+			// We use the IAD set for replication
+			ac_template[AC_RESPONSE_IAD_LENGTH] = (byte) replicated_iad_length;
+			Util.arrayCopyNonAtomic(replicated_iad, (short) 0, ac_template,
+					AC_RESPONSE_IAD, replicated_iad_length);
+		} else {
+			// Force an IAD of 18 bytes laid out like a Visa IAD: length of
+			// the Visa discretionary data (06), DKI and CVN (both 00 here)
+			// and the CVR, patched in by writeCVR, followed by 0s
+			ac_template[AC_RESPONSE_IAD_LENGTH] = (byte) MAX_IAD_LENGTH;
+			Util.arrayFillNonAtomic(ac_template, AC_RESPONSE_IAD,
+					MAX_IAD_LENGTH, (byte) 0x0);
+			ac_template[AC_RESPONSE_IAD] = (byte) 0x06;
+		}
+		ac_template[1] = (byte) (AC_RESPONSE_IAD - 2
+				+ ac_template[AC_RESPONSE_IAD_LENGTH]); // Length
+		ac_template[0] = (byte) 0x77; // Tag for Format 2 cryptogram
+	}
+
+	/*
+	 * Starts the Transaction Data Hash Codes of a new transaction with the
+	 * PDOL data sent in the GET PROCESSING OPTIONS command
+	 */
+	public void startTransactionHash(byte[] buf, short offset, short length) {
+		byte channel = Workspace.getChannel();
+		first_ac_hash[channel].reset();
+		second_ac_hash[channel].reset();
+		first_ac_hash[channel].update(buf, offset, length);
+		second_ac_hash[channel].update(buf, offset, length);
+	}
+
+	/*
+	 * Compute the first AC response APDU. The session key is derived here for
+	 * the current ATC and reused by the second AC.
+	 * 
+	 * The response contains the - CID: Cryptogram Information Data, 1 byte long
+	 * - ATC Application Transaction Counter, 2 bytes long - AC: Application
+	 * Cryptogram, 8 bytes long - IAD: Issuer Application Data, up to 18 bytes
+	 * long
+	 * 
+	 * @param cid the type of AC, ie. AAC_CODE, TC_CODE, or ARCQ_CODE
+	 * 
+	 * @param apduBuffer contains the terminal-supplied data; the response is
+	 * built over it, starting at offset 0
+	 * 
+	 * @param length length of the terminal-supplied data
+	 * 
+	 * @param cda true if the terminal requested a CDA signature
+	 * 
+	 * @return the length of the response
+	 */
+	public short generateFirstACReponse(byte cid, byte[] apduBuffer,
+			short length, boolean cda) {
+		byte channel = Workspace.getChannel();
+		first_ac_hash[channel].update(apduBuffer, ISO7816.OFFSET_CDATA,
+				length);
+		second_ac_hash[channel].update(apduBuffer, ISO7816.OFFSET_CDATA,
+				length);
+
+		if (cda) {
+			return generateCDAResponse(cid, apduBuffer, length,
+					theApplet.fileSystem.getCDOL1(), first_ac_hash[channel]);
+		}
+		return generateACResponse(cid, apduBuffer, length);
+	}
+
+	/*
+	 * Compute the second AC response APDU, like the first one.
+	 */
+	public short generateSecondACReponse(byte cid, byte[] apduBuffer,
+			short length, boolean cda) {
+		MessageDigest hash = second_ac_hash[Workspace.getChannel()];
+		hash.update(apduBuffer, ISO7816.OFFSET_CDATA, length);
+
+		if (cda) {
+			return generateCDAResponse(cid, apduBuffer, length,
+					theApplet.fileSystem.getCDOL2(), hash);
+		}
+		return generateACResponse(cid, apduBuffer, length);
+	}
+
+	/*
+	 * Compute an AC response APDU in the APDU buffer, from the response
+	 * template built by buildACResponse.
+	 */
+	private short generateACResponse(byte cid, byte[] apduBuffer,
+			short length) {
+		length = writeACDataObjects(cid, apduBuffer, ISO7816.OFFSET_CDATA,
+				length, (short) 2);
+		apduBuffer[0] = (byte) 0x77;
+		apduBuffer[1] = (byte) length;
+
+		return (short) (length + 2);
+	}
+
+	/*
+	 * Compute an AC response APDU with a CDA signature (See Book 2, Section
+	 * 6.6.1) in the APDU buffer:
+	 * 
+	 * 77 L 9F27 01 [CID] 9F36 02 [ATC] 9F4B L [SDAD] 9F10 L [IAD]
+	 * 
+	 * The AC is not returned as such: it is signed in the Signed Dynamic
+	 * Application Data, together with an ICC Dynamic Number, the CID and the
+	 * Transaction Data Hash Code. The hash code ends with the data objects of
+	 * the response other than the SDAD; it already holds the PDOL data and
+	 * the CDOL data of this AC and of the previous one.
+	 */
+	private short generateCDAResponse(byte cid, byte[] apduBuffer,
+			short length, Dol cdol, MessageDigest hash) {
+		short signatureLength = DynamicSignature.SIGNATURE_LENGTH;
+		short numberLength = DynamicSignature.DYNAMIC_NUMBER_LENGTH;
+
+		short un = cdol.getOffset((short) 0x9F37);
+		if (un < 0 || cdol.getLength((short) 0x9F37) != (short) 4) {
+			// the terminal must send an Unpredictable Number to sign
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		}
+		Util.arrayCopyNonAtomic(apduBuffer,
+				(short) (ISO7816.OFFSET_CDATA + un), scratch,
+				Workspace.UNPREDICTABLE_NUMBER,
+				Workspace.UNPREDICTABLE_NUMBER_LENGTH);
+
+		short iadLength = getIADObjectLength();
+		short responseLength = getCDAResponseValueLength();
+
+		// offsets of the CID data object, of the SDAD, of the ICC Dynamic
+		// Data in it and of the IAD data object
+		short offset = Tlv.getHeaderSize((short) 0x0077, responseLength);
+		short sdad = (short) (offset + 9 + Tlv.getHeaderSize((short) 0x9F4B,
+				signatureLength));
+		short data = (short) (sdad + 4);
+		short iad = (short) (sdad + signatureLength);
+
+		// The AC consumes the CDOL data, and goes straight into the ICC
+		// Dynamic Data
+		computeAC(cid, apduBuffer, ISO7816.OFFSET_CDATA, length, apduBuffer,
+				(short) (data + 2 + numberLength));
+
+		// CID, ATC and IAD data objects, which end the hash code
+		Util.arrayCopyNonAtomic(ac_template, (short) 2, apduBuffer, offset,
+				(short) 9);
+		apduBuffer[(short) (offset + 3)] = cid;
+		Util.setShort(apduBuffer, (short) (offset + 7),
+				theApplet.protocolState.getTransactionATC());
+		Util.arrayCopyNonAtomic(ac_template,
+				(short) (AC_RESPONSE_IAD_LENGTH - 2), apduBuffer, iad,
+				iadLength);
+		writeCVR(apduBuffer, (short) (iad + 3));
+		hash.update(apduBuffer, offset, (short) 9);
+		hash.doFinal(apduBuffer, iad, iadLength, apduBuffer,
+				(short) (data + 10 + numberLength));
+
+		// ICC Dynamic Number and CID, then the signature over all of it
+		signature.writeDynamicNumber(apduBuffer, data);
+		apduBuffer[(short) (data + 1 + numberLength)] = cid;
+		signature.sign(apduBuffer, sdad, CDA_DYNAMIC_DATA_LENGTH, scratch,
+				Workspace.UNPREDICTABLE_NUMBER,
+				Workspace.UNPREDICTABLE_NUMBER_LENGTH);
+
+		Tlv.setHeader(apduBuffer, (short) (offset + 9), (short) 0x9F4B,
+				signatureLength);
+		Tlv.setHeader(apduBuffer, (short) 0, (short) 0x0077, responseLength);
+		return (short) (offset + responseLength);
+	}
+
+	/*
+	 * Returns the length of the GENERATE AC response, with or without a CDA
+	 * signature, so that Le can be checked before the AC changes anything
+	 */
+	public short getACResponseLength(boolean cda) {
+		if (cda) {
+			short length = getCDAResponseValueLength();
+			return (short) (Tlv.getHeaderSize((short) 0x0077, length)
+					+ length);
+		}
+		if (ac_template[0] != (byte) 0x77) {
+			buildACResponse();
+		}
+		return (short) ((ac_template[1] & 0xFF) + 2);
+	}
+
+	/*
+	 * Returns the length of the contactless GET PROCESSING OPTIONS response
+	 */
+	public short getGPOResponseLength() {
+		return (short) (theApplet.fileSystem.getContactlessGPOHeaderLength()
+				+ getACResponseLength(false) - 2);
+	}
+
+	/* Returns the length of the value of the tag 77 template of CDA */
+	private short getCDAResponseValueLength() {
+		short signatureLength = DynamicSignature.SIGNATURE_LENGTH;
+		return (short) (9 + Tlv.getHeaderSize((short) 0x9F4B,
+				signatureLength) + signatureLength + getIADObjectLength());
+	}
+
+	/* Returns the length of the IAD data object, tag and length included */
+	private short getIADObjectLength() {
+		if (ac_template[0] != (byte) 0x77) {
+			buildACResponse();
+		}
+		// the IAD data object starts with its tag, 2 bytes before its length
+		return (short) (ac_template[1] + 2 - (AC_RESPONSE_IAD_LENGTH - 2));
+	}
+
+	/*
+	 * Compute the Format 2 GET PROCESSING OPTIONS response of the contactless
+	 * profile: the AIP and the contactless AFL prepared by the FileSystem,
+	 * followed by the same CID, ATC, AC and IAD data objects as a GENERATE AC
+	 * response. The AC is computed over the data requested by the PDOL, ie.
+	 * the value of the tag 83 template in the command data.
+	 * 
+	 * @param length length of the PDOL related data
+	 * 
+	 * @return the length of the response
+	 */
+	public short generateGPOResponse(byte cid, byte[] apduBuffer,
+			short length) {
+		FileSystem fileSystem = theApplet.fileSystem;
+		short offset = fileSystem.getContactlessGPOHeaderLength();
+
+		offset = (short) (offset + writeACDataObjects(cid, apduBuffer,
+				(short) (ISO7816.OFFSET_CDATA + 2), length, offset));
+		fileSystem.getContactlessGPOHeader(apduBuffer, (short) 0);
+		apduBuffer[1] = (byte) (offset - 2);
+
+		return offset;
+	}
+
+	/*
+	 * Writes the data objects of the AC response template (without its 77 L
+	 * header) at the given offset of the APDU buffer, and returns their
+	 * length.
+	 * 
+	 * The AC is computed first, as it consumes the terminal-supplied data that
+	 * the response overwrites. It is written straight to its place in the
+	 * response, and the template is copied around it.
+	 */
+	private short writeACDataObjects(byte cid, byte[] apduBuffer,
+			short dataOffset, short length, short offset) {
+		if (ac_template[0] != (byte) 0x77) {
+			buildACResponse();
+		}
+		// position of the template's first data object in apduBuffer
+		short base = (short) (offset - 2);
+
+		computeAC(cid, apduBuffer, dataOffset, length, apduBuffer,
+				(short) (base + AC_RESPONSE_AC));
+		length = (short) (ac_template[1] & 0xFF);
+		Util.arrayCopyNonAtomic(ac_template, (short) 2, apduBuffer, offset,
+				(short) (AC_RESPONSE_AC - 2));
+		Util.arrayCopyNonAtomic(ac_template, (short) (AC_RESPONSE_AC + 8),
+				apduBuffer, (short) (base + AC_RESPONSE_AC + 8),
+				(short) (length + 2 - AC_RESPONSE_AC - 8));
+
+		apduBuffer[(short) (base + AC_RESPONSE_CID)] = cid;
+		Util.setShort(apduBuffer, (short) (base + AC_RESPONSE_ATC),
+				theApplet.protocolState.getTransactionATC());
+		writeCVR(apduBuffer, (short) (base + AC_RESPONSE_IAD));
+
+		return length;
+	}
+
+	/*
+	 * Writes the CVR of the current transaction into the IAD whose value
+	 * starts at the given offset, unless the IAD is replicated
+	 */
+	private void writeCVR(byte[] apduBuffer, short iad) {
+		if (!replicate_iad) {
+			Util.arrayCopyNonAtomic(theApplet.protocolState.getCVR(),
+					(short) 0, apduBuffer, (short) (iad + IAD_CVR), (short) 4);
+		}
+	}
+}
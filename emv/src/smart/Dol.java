@@ -0,0 +1,127 @@
+package smart;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+
+/*
+ * A Data Object List, like the CDOL1, CDOL2 or PDOL (See Book 3, Section
+ * 5.4). A DOL is a list of tag / length pairs, without values, telling the
+ * terminal which data to send to the card and in which order.
+ *
+ * The list is parsed once, when the card data is loaded, and the total length
+ * of the DOL related data and the offset of every data element in it are
+ * kept, so commands only need to compare Lc against getDataLength().
+ */
+public class Dol {
+	public static final byte MAX_ENTRIES = 16;
+
+	/** Tags of the data elements, in DOL order */
+	private final short[] tags;
+	/** Offset of each data element in the DOL related data */
+	private final short[] offsets;
+	/** Length of each data element */
+	private final byte[] lengths;
+	private byte count;
+	private short dataLength;
+
+	public Dol() {
+		tags = new short[MAX_ENTRIES];
+		offsets = new short[MAX_ENTRIES];
+		lengths = new byte[MAX_ENTRIES];
+		count = 0;
+		dataLength = 0;
+	}
+
+	/*
+	 * Parses the DOL held in buf[offset..offset + length), ie. the value of
+	 * the 8C / 8D / 9F38 TLV. The list is updated entry by entry: a DOL that
+	 * may be invalid goes through check first, and the parse belongs in the
+	 * transaction storing the data it comes from.
+	 */
+	public void parse(byte[] buf, short offset, short length) {
+		short end = (short) (offset + length);
+		byte entries = 0;
+		short total = 0;
+
+		while (offset < end) {
+			if (entries == MAX_ENTRIES) {
+				ISOException.throwIt(ISO7816.SW_FILE_FULL);
+			}
+			tags[entries] = Tlv.getTag(buf, offset);
+			if ((buf[offset] & 0x1F) == 0x1F) {
+				offset = (short) (offset + 2);
+			} else {
+				offset++;
+			}
+			offsets[entries] = total;
+			lengths[entries] = buf[offset];
+			total = (short) (total + (buf[offset] & 0xFF));
+			offset++;
+			entries++;
+		}
+
+		count = entries;
+		dataLength = total;
+	}
+
+	/*
+	 * Checks the DOL held in buf[offset..offset + length) before it is
+	 * parsed, so parse never fails half way through: throws 6A80 if the list
+	 * has more than MAX_ENTRIES entries, or ends in the middle of one.
+	 */
+	public static void check(byte[] buf, short offset, short length) {
+		short end = (short) (offset + length);
+		byte entries = 0;
+		while (offset < end) {
+			if (entries == MAX_ENTRIES) {
+				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+			}
+			if ((buf[offset] & 0x1F) == 0x1F) {
+				offset = (short) (offset + 3);
+			} else {
+				offset = (short) (offset + 2);
+			}
+			entries++;
+		}
+		if (offset != end) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+	}
+
+	/* Empties the list, for a DOL that is not present in the card data */
+	public void clear() {
+		count = 0;
+		dataLength = 0;
+	}
+
+	/* Returns the total length of the data requested by this DOL */
+	public short getDataLength() {
+		return dataLength;
+	}
+
+	/*
+	 * Returns the offset of the given data element in the DOL related data,
+	 * or -1 if the DOL does not request it
+	 */
+	public short getOffset(short tag) {
+		for (byte i = 0; i < count; i++) {
+			if (tags[i] == tag) {
+				return offsets[i];
+			}
+		}
+		return (short) -1;
+	}
+
+	/*
+	 * Returns the length of the given data element in the DOL related data,
+	 * or 0 if the DOL does not request it
+	 */
+	public short getLength(short tag) {
+		for (byte i = 0; i < count; i++) {
+			if (tags[i] == tag) {
+				return (short) (lengths[i] & 0xFF);
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,228 @@
+package smart;
+
+import javacard.framework.Util;
+import javacard.security.KeyBuilder;
+import javacard.security.KeyPair;
+import javacard.security.MessageDigest;
+import javacard.security.RSAPrivateCrtKey;
+import javacardx.crypto.Cipher;
+
+/*
+ * Dynamic signatures made with the ICC private key, for the offline dynamic
+ * data authentication methods (See Book 2, Sections 6.5 and 6.6). The key
+ * pair, the RSA cipher and the hash are all created once, at install time,
+ * and every signature reuses them. The key pair is generated on the card,
+ * and signs until the issuer loads the private key it certified during
+ * personalisation (see setKeyComponent).
+ */
+public class DynamicSignature {
+	/** Length of the ICC public key modulus, and so of a signature */
+	public static final short SIGNATURE_LENGTH = (short) 128;
+
+	/** Length of the ICC Dynamic Number generated for each signature */
+	public static final short DYNAMIC_NUMBER_LENGTH = (short) 8;
+
+	/** Longest DDOL data accepted: it must end before the hash it is in */
+	public static final short MAX_DDOL_DATA_LENGTH = (short) 64;
+
+	private static final short HASH_LENGTH = (short) 20;
+
+	// Fields of the signed data of DDA, see dda_template
+	private static final short DDA_DYNAMIC_NUMBER = (short) 5;
+	private static final short DDA_PADDING = (short) (DDA_DYNAMIC_NUMBER
+			+ DYNAMIC_NUMBER_LENGTH);
+	private static final short SIGNATURE_HASH = (short) (SIGNATURE_LENGTH
+			- HASH_LENGTH - 1);
+
+	// Components of the ICC private key, in the order of their DGIs (8201 to
+	// 8205, see Personalisation)
+	public static final byte COMPONENT_PQ = (byte) 0;
+	public static final byte COMPONENT_DQ1 = (byte) 1;
+	public static final byte COMPONENT_DP1 = (byte) 2;
+	public static final byte COMPONENT_Q = (byte) 3;
+	public static final byte COMPONENT_P = (byte) 4;
+	public static final byte COMPONENTS = (byte) 5;
+
+	/** Length of each component: half the modulus */
+	public static final short COMPONENT_LENGTH = (short) (SIGNATURE_LENGTH / 2);
+
+	/** ICC key pair, RSA CRT 1024 bits */
+	private final KeyPair iccKey;
+
+	/**
+	 * ICC private key loaded by the issuer, used instead of the generated one
+	 * once all its components are set
+	 */
+	private final RSAPrivateCrtKey issuerKey;
+
+	/** RSA cipher without padding: EMV formats the signed data itself */
+	private final Cipher rsaCipher;
+
+	private final MessageDigest sha;
+
+	/** Source of the ICC Dynamic Numbers */
+	private final RandomPool random;
+
+	/**
+	 * Signed data of DDA (See Book 2, Table 17), built at install time:
+	 * 
+	 * 6A 05 01 09 08 [ICC Dynamic Number] BB .. BB [hash] BC
+	 * 
+	 * Only the dynamic number and the hash change from one signature to the
+	 * next.
+	 */
+	private final byte[] dda_template;
+
+	/**
+	 * Scratchpad transient byte array and the offset of the
+	 * DYNAMIC_NUMBER_LENGTH bytes lent to this object for the ICC Dynamic
+	 * Number of DDA
+	 */
+	private final byte[] dynamic_number;
+	private final short dynamic_number_offset;
+
+	public DynamicSignature(RandomPool pool, byte[] scratch, short offset) {
+		dynamic_number = scratch;
+		dynamic_number_offset = offset;
+
+		iccKey = new KeyPair(KeyPair.ALG_RSA_CRT, KeyBuilder.LENGTH_RSA_1024);
+		iccKey.genKeyPair();
+		issuerKey = (RSAPrivateCrtKey) KeyBuilder.buildKey(
+				KeyBuilder.TYPE_RSA_CRT_PRIVATE, KeyBuilder.LENGTH_RSA_1024,
+				false);
+		rsaCipher = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
+		sha = MessageDigest.getInstance(MessageDigest.ALG_SHA, false);
+		random = pool;
+
+		dda_template = new byte[SIGNATURE_LENGTH];
+		short dynamicLength = (short) (1 + DYNAMIC_NUMBER_LENGTH);
+		dda_template[0] = (byte) 0x6A; // header
+		dda_template[1] = (byte) 0x05; // signed data format
+		dda_template[2] = (byte) 0x01; // hash algorithm: SHA-1
+		dda_template[3] = (byte) dynamicLength;
+		dda_template[4] = (byte) DYNAMIC_NUMBER_LENGTH;
+		Util.arrayFillNonAtomic(dda_template, DDA_PADDING,
+				(short) (SIGNATURE_HASH - DDA_PADDING), (byte) 0xBB);
+		dda_template[(short) (SIGNATURE_LENGTH - 1)] = (byte) 0xBC; // trailer
+	}
+
+	/*
+	 * Writes a new ICC Dynamic Number, preceded by its length, at offset and
+	 * returns the offset following it
+	 */
+	public short writeDynamicNumber(byte[] buf, short offset) {
+		buf[offset++] = (byte) DYNAMIC_NUMBER_LENGTH;
+		random.generate(buf, offset, DYNAMIC_NUMBER_LENGTH);
+		return (short) (offset + DYNAMIC_NUMBER_LENGTH);
+	}
+
+	/*
+	 * Signs the dynamic application data in place (See Book 2, Table 17 and
+	 * Table 22). The ICC Dynamic Data must already be at offset + 4; the
+	 * other fields of the data to sign are filled around it:
+	 * 
+	 * 6A 05 01 [length] [ICC Dynamic Data] BB .. BB [hash] BC
+	 * 
+	 * The hash covers the fields from the signed data format up to the
+	 * padding, followed by the terminal data given in extra: the DDOL data
+	 * for DDA, the Unpredictable Number for CDA.
+	 * 
+	 * @return the length of the signature, SIGNATURE_LENGTH
+	 */
+	public short sign(byte[] buf, short offset, short dynamicLength,
+			byte[] extra, short extraOffset, short extraLength) {
+		short hashOffset = (short) (offset + SIGNATURE_HASH);
+
+		buf[offset] = (byte) 0x6A; // header
+		buf[(short) (offset + 1)] = (byte) 0x05; // signed data format
+		buf[(short) (offset + 2)] = (byte) 0x01; // hash algorithm: SHA-1
+		buf[(short) (offset + 3)] = (byte) dynamicLength;
+		Util.arrayFillNonAtomic(buf, (short) (offset + 4 + dynamicLength),
+				(short) (hashOffset - offset - 4 - dynamicLength), (byte) 0xBB);
+		buf[(short) (offset + SIGNATURE_LENGTH - 1)] = (byte) 0xBC; // trailer
+
+		sha.update(buf, (short) (offset + 1),
+				(short) (hashOffset - offset - 1));
+		sha.doFinal(extra, extraOffset, extraLength, buf, hashOffset);
+
+		return encrypt(buf, offset);
+	}
+
+	/*
+	 * Computes the Signed Dynamic Application Data of DDA (See Book 2,
+	 * Section 6.5.1) over the DDOL data at buf[ddolOffset..ddolOffset +
+	 * ddolLength), and writes it into buf at offset. The DDOL data may be
+	 * overwritten, as long as it ends before the hash of the signature, ie.
+	 * it is at most MAX_DDOL_DATA_LENGTH bytes long.
+	 * 
+	 * The signed data is hashed straight from the template and the dynamic
+	 * number, and the DDOL data is hashed last, before the signed data is
+	 * copied over it.
+	 * 
+	 * @return the length of the signature, SIGNATURE_LENGTH
+	 */
+	public short signDDA(byte[] buf, short offset, short ddolOffset,
+			short ddolLength) {
+		random.generate(dynamic_number, dynamic_number_offset,
+				DYNAMIC_NUMBER_LENGTH);
+
+		sha.update(dda_template, (short) 1, (short) (DDA_DYNAMIC_NUMBER - 1));
+		sha.update(dynamic_number, dynamic_number_offset,
+				DYNAMIC_NUMBER_LENGTH);
+		sha.update(dda_template, DDA_PADDING,
+				(short) (SIGNATURE_HASH - DDA_PADDING));
+		sha.doFinal(buf, ddolOffset, ddolLength, buf,
+				(short) (offset + SIGNATURE_HASH));
+
+		Util.arrayCopyNonAtomic(dda_template, (short) 0, buf, offset,
+				DDA_DYNAMIC_NUMBER);
+		Util.arrayCopyNonAtomic(dynamic_number, dynamic_number_offset, buf,
+				(short) (offset + DDA_DYNAMIC_NUMBER), DYNAMIC_NUMBER_LENGTH);
+		Util.arrayCopyNonAtomic(dda_template, DDA_PADDING, buf,
+				(short) (offset + DDA_PADDING),
+				(short) (SIGNATURE_HASH - DDA_PADDING));
+		buf[(short) (offset + SIGNATURE_LENGTH - 1)] = (byte) 0xBC;
+
+		return encrypt(buf, offset);
+	}
+
+	/*
+	 * Sets a component of the ICC private key loaded by the issuer (one of the
+	 * COMPONENT_ constants) to the COMPONENT_LENGTH bytes at buf[offset]. The
+	 * signatures switch to this key once all five are set.
+	 */
+	public void setKeyComponent(byte component, byte[] buf, short offset) {
+		switch (component) {
+		case COMPONENT_PQ:
+			issuerKey.setPQ(buf, offset, COMPONENT_LENGTH);
+			break;
+		case COMPONENT_DQ1:
+			issuerKey.setDQ1(buf, offset, COMPONENT_LENGTH);
+			break;
+		case COMPONENT_DP1:
+			issuerKey.setDP1(buf, offset, COMPONENT_LENGTH);
+			break;
+		case COMPONENT_Q:
+			issuerKey.setQ(buf, offset, COMPONENT_LENGTH);
+			break;
+		default:
+			issuerKey.setP(buf, offset, COMPONENT_LENGTH);
+		}
+	}
+
+	/*
+	 * Encrypts the signed data at offset in place with the private key. This
+	 * is raw RSA with the private key: the signature is the "decryption" of
+	 * the formatted data, which takes a full modulus length block. The init
+	 * only binds the existing key to the cipher, and puts it back in a clean
+	 * state (which jCardSim does not do after doFinal).
+	 */
+	private short encrypt(byte[] buf, short offset) {
+		if (issuerKey.isInitialized()) {
+			rsaCipher.init(issuerKey, Cipher.MODE_DECRYPT);
+		} else {
+			rsaCipher.init(iccKey.getPrivate(), Cipher.MODE_DECRYPT);
+		}
+		return rsaCipher.doFinal(buf, offset, SIGNATURE_LENGTH, buf, offset);
+	}
+}
@@ -1,340 +1,871 @@
-/**
- * 
- */
-package smart;
-
-import javacard.framework.Applet;
-import javacard.framework.ISOException;
-import javacard.framework.ISO7816;
-import javacard.framework.APDU;
-import javacard.framework.Util;
-import javacard.framework.JCSystem;
-
-/**
- * @author EMV
- * 
- */
-
-public class Emv extends Applet {
-	// Constants for the Supported CLAs (afaik, 00 and 80 are a must)
-	final static byte EMV_CLA = (byte) 0x80;
-
-	// Constants for supported INS (ISO7816)
-	// Bare minimum
-	final static byte INS_VERIFY = (byte) 0x20; // EMV
-	final static byte INS_PUT_DATA = (byte) 0xDA;
-	final static byte INS_GET_DATA = (byte) 0xCA; // EMV
-	final static byte INS_SELECT_FILE = (byte) 0xA4;
-	final static byte INS_READ_RECORD = (byte) 0xB2; // EMV
-	final static byte INS_WRITE_RECORD = (byte) 0xD2;
-	final static byte INS_APPEND_RECORD = (byte) 0xE2;
-	final static byte INS_PIN_UNBLOCK = (byte) 0x24; // EMV
-
-	// Must be supported according to a commercial EMV applet, not sure for
-	// current application
-	final static byte INS_EXTERNAL_AUTH = (byte) 0x82; // EMV
-	final static byte INS_INTERNAL_AUTH = (byte) 0x88; // EMV
-	final static byte INS_GENERATE_AC = (byte) 0xAE; // Page 57 - EMV Book
-	final static byte INS_GET_CHALLENGE = (byte) 0x84; // Page 60 - EMV Book
-	final static byte INS_GET_PROC_OPTIONS = (byte) 0xA8; // Page 63 - EMV Book
-
-	// Custom Instructions
-	// TODO Add support to an INS to block ATC / LOATC incrementing?
-	final static byte INS_UPDATE_AC = (byte) 0x72;
-	final static byte INS_DISABLE_AC_REP = (byte) 0x74;
-	final static byte INS_CLEAR_LOG = (byte) 0x76;
-	final static byte INS_DISABLE_IAD_REP = (byte) 0x78;
-
-	/* codes for cryptogram types used in P1 */
-	final static byte ARQC_CODE = (byte) 0x80;
-	final static byte TC_CODE = (byte) 0x40;
-	final static byte AAC_CODE = (byte) 0x00;
-	final static byte RFU_CODE = (byte) 0xC0;
-
-	/* types of AC */
-	final static byte NONE = (byte) 0x00;
-	final static byte ARQC = (byte) 0x01;
-	final static byte TC = (byte) 0x02;
-	final static byte AAC = (byte) 0x03;
-
-	final Pin pin;
-	final ProtocolState protocolState;
-	final FileSystem fileSystem;
-	final Crypto crypto;
-	final Log log;
-
-	private final byte[] response;
-
-	private Emv() {
-		pin = new Pin();
-		protocolState = new ProtocolState();
-		fileSystem = new FileSystem();
-		crypto = new Crypto(this);
-		log = new Log();
-
-		response = JCSystem.makeTransientByteArray((short) 256,
-				JCSystem.CLEAR_ON_DESELECT);
-	}
-
-	public static void install(byte[] bArray, short bOffset, byte bLength) {
-		// GP-complaint JavaCard applet registration
-		new Emv().register(bArray, (short) (bOffset + 1), bArray[bOffset]);
-	}
-
-	public void process(APDU apdu) {
-		byte[] buf = apdu.getBuffer();
-
-		// Good practice: Return 9000 on SELECT
-		if (selectingApplet()) {
-			log.write(buf); // Log applet selection
-			// When selecting the application, returns it description (FCI)
-			Util.arrayCopyNonAtomic(FileSystem.fci, (byte) 0, buf,
-					ISO7816.OFFSET_CDATA, (short) FileSystem.fci.length);
-			apdu.setOutgoingAndSend(ISO7816.OFFSET_CDATA,
-					(short) FileSystem.fci.length);
-			return;
-		}
-
-		if (buf[ISO7816.OFFSET_INS] != INS_SELECT_FILE) {
-			log.write(buf);
-		} // for now only log non select commands to make the log smaller
-
-		// Switch the INS parameter from the APDU
-		switch (buf[ISO7816.OFFSET_INS]) {
-		case INS_APPEND_RECORD:
-			ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
-			break;
-		case INS_EXTERNAL_AUTH:
-			ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
-			break;
-		case INS_GENERATE_AC:
-			// get remaining data
-			short len = (short) (buf[ISO7816.OFFSET_LC] & 0xFF);
-			if (len != apdu.setIncomingAndReceive()) {
-				ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-			}
-			// check for request of CDA signature
-			if ((buf[ISO7816.OFFSET_P1] & 0x10) == 0x10) {
-				// CDA signature requested, which we don't support (yet)
-				ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-			}
-			if (protocolState.getFirstACGenerated() == NONE) {
-				generateFirstAC(apdu, buf);
-			} else if (protocolState.getSecondACGenerated() == NONE) {
-				generateSecondAC(apdu, buf);
-			} else
-				// trying to generate a third AC
-				ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
-			break;
-		case INS_GET_CHALLENGE:
-			ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
-			break;
-		case INS_GET_DATA:
-			getData(apdu);
-			break;
-		case INS_GET_PROC_OPTIONS:
-			getProcessingOptions(apdu);
-			break;
-		case INS_INTERNAL_AUTH:
-			ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
-			break;
-		case INS_PIN_UNBLOCK:
-			pin.update(apdu);
-			break;
-		case INS_PUT_DATA:
-			putData(apdu);
-			break;
-		case INS_READ_RECORD:
-			FileSystem.readRecord(apdu);
-			break;
-		case INS_SELECT_FILE:
-			ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
-			// FileSystem.selectFile();
-			break;
-		case INS_VERIFY:
-			pin.verify(apdu);
-			break;
-		case INS_WRITE_RECORD:
-			ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
-			break;
-		case INS_DISABLE_AC_REP:
-			crypto.disableAcReplication();
-			break;
-		case INS_DISABLE_IAD_REP:
-			crypto.disableIadReplication();
-		case INS_CLEAR_LOG:
-			log.clear();
-			break;
-		case (byte) 0x00:
-			break;
-		default:
-			// good practice: If you don't know the INStruction, say so:
-			ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
-		}
-	}
-
-	/*
-	 * Process the PUT DATA APDU (INS=DA) PUT DATA is used to store primitive
-	 * data (like values) can be used, for example, to store a new pin retry
-	 * count (if it could be altered via APDUs)
-	 */
-	public void putData(APDU apdu) {
-		/*
-		 * buf[OFFSET_P1..OFFSET_P2] should contains of the following tags 9F36
-		 * - ATC 9F13 - Last online ATC 9F4F - Log Format 9F70 - AC to be
-		 * replicated 9F74 - IAD to be replicated See: EMV BOOK - Page 61
-		 */
-		byte[] buf = apdu.getBuffer();
-
-		if (buf[ISO7816.OFFSET_P1] == (byte) 0x9F) {
-			// TODO: Check data length (cant be smaller than 2 bytes)
-			switch (buf[ISO7816.OFFSET_P2]) {
-			case 0x36: // ATC
-				protocolState.setATC(Util.makeShort(buf[ISO7816.OFFSET_CDATA],
-						buf[ISO7816.OFFSET_CDATA + 1]));
-				apdu.setOutgoingAndSend((short) 0, (short) 0); // return 9000
-				break;
-			case 0x13: // Last online ATC
-				protocolState.setLastOnlineATC(Util.makeShort(
-						buf[ISO7816.OFFSET_CDATA],
-						buf[ISO7816.OFFSET_CDATA + 1]));
-				apdu.setOutgoingAndSend((short) 0, (short) 0); // return 9000
-				break;
-			case 0x70: // AC Replication
-				crypto.setAc(apdu);
-				break;
-			case 0x74: // IAD replication
-				setIad(apdu);
-				break;
-			case 0x4F: // Log Format - not supported yet
-			default:
-				ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-				break;
-			}
-		}
-	}
-
-	/*
-	 * Process the GET DATA APDU (CLA=80 INS=CA) GET DATA is used to read
-	 * primitive data (like the PIN try counter value)
-	 */
-	private void getData(APDU apdu) {
-		/*
-		 * buf[OFFSET_P1..OFFSET_P2] should contains of the following tags 9F36
-		 * - ATC 9F17 - PIN Try Counter 9F13 - Last online ATC 9F4F - Log Format
-		 * 9F72 - Log Data See: EMV BOOK - Page 61
-		 */
-		byte[] buf = apdu.getBuffer();
-
-		if (buf[ISO7816.OFFSET_P1] == (byte) 0x9F) {
-			buf[0] = (byte) 0x9F;
-			buf[1] = buf[ISO7816.OFFSET_P2];
-			switch (buf[ISO7816.OFFSET_P2]) {
-			// The buf[ISO7816.OFFSET_P1,ISO7816.OFFSET_P2] already contains the
-			// right Tag,
-			// so we can write the Length and Value to the next bytes in the buf
-			// and then send this.
-			case 0x36: // ATC
-				buf[ISO7816.OFFSET_P2 + 1] = (byte) 0x02; // length 2 bytes
-				Util.setShort(buf, (short) (ISO7816.OFFSET_P2 + 2),
-						protocolState.getATC()); // value
-				// send the 5 byte long TLV for ATC
-				apdu.setOutgoingAndSend(ISO7816.OFFSET_P1, (short) 5);
-				break;
-
-			case 0x17: // PIN Try Counter
-				buf[ISO7816.OFFSET_P2 + 1] = (byte) 0x01; // length 1 byte
-				buf[ISO7816.OFFSET_P2 + 2] = pin.getTriesRemaining(); // value
-				// send the 4 byte TLV for PIN Try counter
-				apdu.setOutgoingAndSend(ISO7816.OFFSET_P1, (short) 4);
-				break;
-
-			case 0x13: // Last online ATC
-				buf[ISO7816.OFFSET_P2 + 1] = (byte) 0x02; // length 2 bytes
-				Util.setShort(buf, (short) (ISO7816.OFFSET_P2 + 2),
-						protocolState.getLastOnlineATC()); // value
-				// send the 5 byte long TLV for last online ATC
-				apdu.setOutgoingAndSend(ISO7816.OFFSET_P1, (short) 5);
-				break;
-			case 0x72: // Log Data
-				apdu.setOutgoing();
-				apdu.setOutgoingLength(log.getSize());
-				apdu.sendBytesLong(log.read(), (short) 0, log.getSize());
-				break;
-			case 0x4F: // Log Format - not supported yet
-			default:
-				ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-				break;
-			}
-		} else {
-			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-		}
-	}
-
-	/*
-	 * Process the GET PROCESSING OPTIONS APDU (CLA=80 INS=A8) returns the
-	 * Application Interchange Profile (AIP) and the Application File Locator
-	 * (AFL) See Page 63 - EMV BOOK
-	 */
-	public void getProcessingOptions(APDU apdu) {
-		byte[] buf = apdu.getBuffer();
-		short readCount;
-		readCount = apdu.setIncomingAndReceive();
-		Util.arrayCopyNonAtomic(FileSystem.aip_afl, (byte) 0, buf,
-				ISO7816.OFFSET_CDATA, (short) FileSystem.aip_afl.length);
-		apdu.setOutgoingAndSend(ISO7816.OFFSET_CDATA,
-				(short) FileSystem.aip_afl.length);
-	}
-
-	public void generateFirstAC(APDU apdu, byte[] apduBuffer) {
-		// First 2 bits of P1 specify the type
-		// These bits also have to be returned, as the Cryptogram Information
-		// Data (CID);
-		// See Book 3, Annex C6.5.5.4
-		byte cid = (byte) (apduBuffer[ISO7816.OFFSET_P1] & 0xC0);
-		if (cid == RFU_CODE || cid == AAC_CODE) {
-			// not a request for TC or ARQC
-			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-		}
-
-		crypto.generateFirstACReponse(cid, apduBuffer,
-				fileSystem.getCDOL1DataLength(), null, (short) 0, response,
-				(short) 0);
-		protocolState.setFirstACGenerated(cid);
-
-		apdu.setOutgoing();
-		apdu.setOutgoingLength((short) (response[1] + 2));
-		apdu.sendBytesLong(response, (short) 0, (short) (response[1] + 2));
-	}
-
-	public void generateSecondAC(APDU apdu, byte[] apduBuffer) {
-		// First 2 bits of P1 specify the type
-		// These bits also have to be returned, as the Cryptogram Information
-		// Data (CID);
-		// See Book 3, Sect 6.5.5.4 of the Common Core Definitions.
-		byte cid = (byte) (apduBuffer[ISO7816.OFFSET_P1] & 0xC0);
-		if (cid == RFU_CODE || cid == ARQC_CODE) {
-			// not a request for TC or AAC
-			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
-		}
-
-		crypto.generateSecondACReponse(cid, apduBuffer,
-				fileSystem.getCDOL2DataLength(), null, (short) 0, response,
-				(short) 0);
-		protocolState.setSecondACGenerated(cid);
-
-		apdu.setOutgoing();
-		apdu.setOutgoingLength((short) (response[1] + 2));
-		apdu.sendBytesLong(response, (short) 0, (short) (response[1] + 2));
-	}
-
-	public void setIad(APDU apdu) {
-		byte[] buf = apdu.getBuffer();
-		if (buf[ISO7816.OFFSET_LC] > (byte) 0x12) { // Max IAD size is 18 bytes
-			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-		}
-
-		crypto.setIad(buf);
-		apdu.setOutgoingAndSend((short) 0, (short) 0); // return 9000
-	}
+/**
+ * 
+ */
+package smart;
+
+import javacard.framework.Applet;
+import javacard.framework.ISOException;
+import javacard.framework.ISO7816;
+import javacard.framework.APDU;
+import javacard.framework.MultiSelectable;
+import javacard.framework.Util;
+
+/**
+ * @author EMV
+ * 
+ */
+
+public class Emv extends Applet implements MultiSelectable {
+	// Constants for the Supported CLAs (afaik, 00 and 80 are a must)
+	final static byte EMV_CLA = (byte) 0x80;
+	// CLA bits of secure messaging, as in the 84 of issuer script commands
+	final static byte CLA_SECURE_MESSAGING = (byte) 0x0C;
+
+	// Constants for supported INS (ISO7816)
+	// Bare minimum
+	final static byte INS_VERIFY = (byte) 0x20; // EMV
+	final static byte INS_PUT_DATA = (byte) 0xDA;
+	final static byte INS_GET_DATA = (byte) 0xCA; // EMV
+	final static byte INS_SELECT_FILE = (byte) 0xA4;
+	final static byte INS_READ_RECORD = (byte) 0xB2; // EMV
+	final static byte INS_UPDATE_RECORD = (byte) 0xDC;
+	final static byte INS_APPEND_RECORD = (byte) 0xE2;
+	// GlobalPlatform STORE DATA, same INS as APPEND RECORD but with CLA 80
+	final static byte INS_STORE_DATA = (byte) 0xE2;
+	final static byte INS_PIN_UNBLOCK = (byte) 0x24; // EMV
+	final static byte INS_GET_RESPONSE = (byte) 0xC0;
+
+	// Must be supported according to a commercial EMV applet, not sure for
+	// current application
+	final static byte INS_EXTERNAL_AUTH = (byte) 0x82; // EMV
+	final static byte INS_INTERNAL_AUTH = (byte) 0x88; // EMV
+	final static byte INS_GENERATE_AC = (byte) 0xAE; // Page 57 - EMV Book
+	final static byte INS_GET_CHALLENGE = (byte) 0x84; // Page 60 - EMV Book
+	final static byte INS_GET_PROC_OPTIONS = (byte) 0xA8; // Page 63 - EMV Book
+
+	// Custom Instructions
+	// TODO Add support to an INS to block ATC / LOATC incrementing?
+	final static byte INS_UPDATE_AC = (byte) 0x72;
+	final static byte INS_DISABLE_AC_REP = (byte) 0x74;
+	final static byte INS_CLEAR_LOG = (byte) 0x76;
+	final static byte INS_DISABLE_IAD_REP = (byte) 0x78;
+
+	/* codes for cryptogram types used in P1 */
+	final static byte ARQC_CODE = (byte) 0x80;
+	final static byte TC_CODE = (byte) 0x40;
+	final static byte AAC_CODE = (byte) 0x00;
+	final static byte RFU_CODE = (byte) 0xC0;
+
+	/* types of AC */
+	final static byte NONE = (byte) 0x00;
+	final static byte ARQC = (byte) 0x01;
+	final static byte TC = (byte) 0x02;
+	final static byte AAC = (byte) 0x03;
+
+	/* length of the unpredictable number returned by GET CHALLENGE */
+	final static short CHALLENGE_LENGTH = (short) 8;
+
+	/*
+	 * Commands, as numbered in the dispatch table. APPEND RECORD and STORE
+	 * DATA share their INS, and are told apart by the CLA.
+	 */
+	final static byte CMD_UNSUPPORTED = (byte) 0;
+	final static byte CMD_SELECT = (byte) 1;
+	final static byte CMD_READ_RECORD = (byte) 2;
+	final static byte CMD_GET_DATA = (byte) 3;
+	final static byte CMD_GET_RESPONSE = (byte) 4;
+	final static byte CMD_GET_CHALLENGE = (byte) 5;
+	final static byte CMD_GET_PROC_OPTIONS = (byte) 6;
+	final static byte CMD_VERIFY = (byte) 7;
+	final static byte CMD_INTERNAL_AUTH = (byte) 8;
+	final static byte CMD_GENERATE_AC = (byte) 9;
+	final static byte CMD_EXTERNAL_AUTH = (byte) 10;
+	final static byte CMD_PIN_UNBLOCK = (byte) 11;
+	final static byte CMD_PUT_DATA = (byte) 12;
+	final static byte CMD_UPDATE_RECORD = (byte) 13;
+	final static byte CMD_APPEND_RECORD = (byte) 14;
+	final static byte CMD_STORE_DATA = (byte) 15;
+	final static byte CMD_DISABLE_AC_REP = (byte) 16;
+	final static byte CMD_CLEAR_LOG = (byte) 17;
+	final static byte CMD_DISABLE_IAD_REP = (byte) 18;
+	final static byte CMD_NONE = (byte) 19; // INS 00, does nothing
+
+	/* INS and command number of every supported command */
+	private final static byte[] supported_commands = { INS_SELECT_FILE,
+			CMD_SELECT, INS_READ_RECORD, CMD_READ_RECORD, INS_GET_DATA,
+			CMD_GET_DATA, INS_GET_RESPONSE, CMD_GET_RESPONSE,
+			INS_GET_CHALLENGE, CMD_GET_CHALLENGE, INS_GET_PROC_OPTIONS,
+			CMD_GET_PROC_OPTIONS, INS_VERIFY, CMD_VERIFY, INS_INTERNAL_AUTH,
+			CMD_INTERNAL_AUTH, INS_GENERATE_AC, CMD_GENERATE_AC,
+			INS_EXTERNAL_AUTH, CMD_EXTERNAL_AUTH, INS_PIN_UNBLOCK,
+			CMD_PIN_UNBLOCK, INS_PUT_DATA, CMD_PUT_DATA, INS_UPDATE_RECORD,
+			CMD_UPDATE_RECORD, INS_APPEND_RECORD, CMD_APPEND_RECORD,
+			INS_DISABLE_AC_REP, CMD_DISABLE_AC_REP, INS_CLEAR_LOG,
+			CMD_CLEAR_LOG, INS_DISABLE_IAD_REP, CMD_DISABLE_IAD_REP,
+			(byte) 0x00, CMD_NONE };
+
+	/*
+	 * States each command is allowed in, indexed by command number: the
+	 * bitmaps of allowed commands per state, stored by command so that a
+	 * single byte covers all the states. See ProtocolState.getStateBits.
+	 */
+	private final static byte USABLE = (byte) (ProtocolState.IN_PERSONALISATION
+			| ProtocolState.IN_READY);
+	private final static byte ANY_STATE = (byte) (ProtocolState.IN_ANY_PHASE
+			| ProtocolState.IN_ANY_LIFECYCLE);
+	private final static byte IN_SCRIPT = (byte) (ProtocolState.IN_AC1_DONE
+			| ProtocolState.IN_AC2_DONE | ProtocolState.IN_ANY_LIFECYCLE);
+	private final static byte[] allowed_states = {
+			// CMD_UNSUPPORTED
+			(byte) 0,
+			// CMD_SELECT, CMD_READ_RECORD, CMD_GET_DATA, CMD_GET_RESPONSE
+			ANY_STATE, ANY_STATE, ANY_STATE, ANY_STATE,
+			// CMD_GET_CHALLENGE, CMD_GET_PROC_OPTIONS (which starts a new
+			// transaction at any point)
+			(byte) (ProtocolState.IN_ANY_PHASE | USABLE),
+			(byte) (ProtocolState.IN_ANY_PHASE | USABLE),
+			// CMD_VERIFY, CMD_INTERNAL_AUTH: after GPO, before the first AC
+			(byte) (ProtocolState.IN_GPO_DONE | USABLE),
+			(byte) (ProtocolState.IN_GPO_DONE | USABLE),
+			// CMD_GENERATE_AC: the first AC after GPO, the second after an
+			// ARQC
+			(byte) (ProtocolState.IN_GPO_DONE | ProtocolState.IN_AC1_DONE
+					| USABLE),
+			// CMD_EXTERNAL_AUTH: after an ARQC
+			(byte) (ProtocolState.IN_AC1_DONE | USABLE),
+			// CMD_PIN_UNBLOCK, CMD_PUT_DATA (also a test command, in plain),
+			// CMD_UPDATE_RECORD, CMD_APPEND_RECORD: issuer script commands,
+			// after the first AC
+			IN_SCRIPT, ANY_STATE, IN_SCRIPT, IN_SCRIPT,
+			// CMD_STORE_DATA
+			(byte) (ProtocolState.IN_ANY_PHASE
+					| ProtocolState.IN_PERSONALISATION),
+			// CMD_DISABLE_AC_REP, CMD_CLEAR_LOG, CMD_DISABLE_IAD_REP,
+			// CMD_NONE
+			ANY_STATE, ANY_STATE, ANY_STATE, ANY_STATE };
+
+	/* transaction profiles, set with PUT DATA 9F71 */
+	final static byte PROFILE_CONTACT = (byte) 0x00;
+	final static byte PROFILE_CONTACTLESS = (byte) 0x01;
+
+	final Pin pin;
+	final ProtocolState protocolState;
+	final FileSystem fileSystem;
+	final Crypto crypto;
+	final Log log;
+	final TransactionLog transactionLog;
+	final Workspace workspace;
+	final RandomPool random;
+	final Response response;
+	final Personalisation personalisation;
+
+	/**
+	 * Transaction profile: with PROFILE_CONTACTLESS the cryptogram is returned
+	 * by GET PROCESSING OPTIONS, so a tap needs no GENERATE AC
+	 */
+	private byte profile;
+
+	/**
+	 * Dispatch table: the command number of every INS, indexed by INS / 2
+	 * (odd INS codes are not valid in ISO 7816-3), CMD_UNSUPPORTED for the
+	 * INS codes not supported
+	 */
+	private final byte[] commands;
+
+	/*
+	 * Allocates everything the applet will ever use, sized by the install
+	 * parameters found at params[offset] (see InstallParameters)
+	 */
+	private Emv(byte[] params, short offset) {
+		short features = InstallParameters.getValue(params, offset,
+				InstallParameters.FEATURES,
+				InstallParameters.DEFAULT_FEATURES, (short) 0,
+				InstallParameters.DEFAULT_FEATURES);
+		short logSize = 0;
+		if ((features & InstallParameters.FEATURE_LOG) != 0) {
+			logSize = InstallParameters.getValue(params, offset,
+					InstallParameters.LOG_CAPACITY, Log.DEFAULT_LOG_SIZE,
+					(short) 0, InstallParameters.MAX_SIZE);
+		}
+		short storeSize = InstallParameters.getValue(params, offset,
+				InstallParameters.RECORD_STORE_SIZE,
+				FileSystem.DEFAULT_RECORD_STORE_SIZE, (short) 0,
+				InstallParameters.MAX_SIZE);
+		short maxResponseSize = InstallParameters.getValue(params, offset,
+				InstallParameters.MAX_RESPONSE_SIZE, InstallParameters.MAX_SIZE,
+				Response.MAX_SHORT_LENGTH, InstallParameters.MAX_SIZE);
+
+		workspace = new Workspace();
+		random = new RandomPool(workspace.buffer, Workspace.RANDOM_POOL);
+		response = new Response();
+		protocolState = new ProtocolState();
+		pin = new Pin(protocolState);
+		fileSystem = new FileSystem(response, storeSize, maxResponseSize);
+		crypto = new Crypto(this, (features
+				& InstallParameters.FEATURE_DYNAMIC_SIGNATURE) != 0);
+		log = new Log(logSize, response);
+		transactionLog = new TransactionLog(workspace.buffer, response);
+		personalisation = new Personalisation(fileSystem, crypto, pin,
+				protocolState);
+		profile = PROFILE_CONTACT;
+
+		commands = new byte[128];
+		for (short i = 0; i < (short) supported_commands.length; i += 2) {
+			short ins = (short) (supported_commands[i] & 0xFF);
+			commands[(short) (ins >> 1)] = supported_commands[(short) (i + 1)];
+		}
+	}
+
+	public static void install(byte[] bArray, short bOffset, byte bLength) {
+		// GP-complaint JavaCard applet registration
+		new Emv(bArray, InstallParameters.find(bArray, bOffset, bLength))
+				.register(bArray, (short) (bOffset + 1), bArray[bOffset]);
+	}
+
+	/*
+	 * The applet can be selected on up to Workspace.CHANNELS logical channels
+	 * at the same time, each one running its own transaction: the protocol
+	 * state, the pending response, the transaction hashes and the ARQC are
+	 * kept per channel. The ATC, the counters and the log are shared, as they
+	 * are on the card. A new selection starts the channel afresh.
+	 */
+	public boolean select() {
+		return select(false);
+	}
+
+	public boolean select(boolean appInstAlreadyActive) {
+		if (Workspace.getChannel() >= Workspace.CHANNELS) {
+			return false;
+		}
+		clearChannel();
+		return true;
+	}
+
+	public void deselect() {
+		deselect(false);
+	}
+
+	/*
+	 * The transient memory is only cleared once the applet is deselected on
+	 * every channel, so the channel left is cleared here.
+	 */
+	public void deselect(boolean appInstStillActive) {
+		if (Workspace.getChannel() < Workspace.CHANNELS) {
+			clearChannel();
+		}
+	}
+
+	/* Drops the transaction and the pending response of the channel */
+	private void clearChannel() {
+		protocolState.clearSession();
+		response.reset();
+		Util.arrayFillNonAtomic(workspace.buffer, Workspace.getARQC(),
+				Workspace.ARQC_LENGTH, (byte) 0);
+	}
+
+	public void process(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+
+		// Good practice: Return 9000 on SELECT
+		if (selectingApplet()) {
+			log.write(buf); // Log applet selection
+			// When selecting the application, returns it description (FCI),
+			// or the PSE / PPSE one for an instance registered with its name
+			fileSystem.selectFile(apdu, true);
+			return;
+		}
+
+		// Reject unknown and out of sequence commands before any work
+		byte command = getCommand(buf);
+		byte states = allowed_states[command];
+		if (states == 0) {
+			// good practice: If you don't know the INStruction, say so:
+			ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+		}
+		byte state = protocolState.getStateBits();
+		if ((byte) (states & state) != state) {
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		}
+
+		// Chained response data can only be fetched right after its 61xx
+		if (command != CMD_GET_RESPONSE) {
+			response.reset();
+		}
+
+		if (command != CMD_SELECT && command != CMD_STORE_DATA
+				&& command != CMD_GET_RESPONSE) {
+			log.write(buf);
+		} // for now only log non select commands to make the log smaller,
+			// never STORE DATA, which carries the keys, and never GET
+			// RESPONSE, which may be fetching the log itself
+
+		switch (command) {
+		case CMD_SELECT:
+			fileSystem.selectFile(apdu, false);
+			break;
+		case CMD_READ_RECORD:
+			if ((byte) ((buf[ISO7816.OFFSET_P2] >> 3) & 0x1F)
+					== TransactionLog.SFI) {
+				transactionLog.readRecord(apdu);
+			} else {
+				fileSystem.readRecord(apdu);
+			}
+			break;
+		case CMD_GET_DATA:
+			getData(apdu);
+			break;
+		case CMD_GET_RESPONSE:
+			response.getResponse(apdu);
+			break;
+		case CMD_GET_CHALLENGE:
+			getChallenge(apdu);
+			break;
+		case CMD_GET_PROC_OPTIONS:
+			getProcessingOptions(apdu);
+			break;
+		case CMD_VERIFY:
+			pin.verify(apdu);
+			break;
+		case CMD_INTERNAL_AUTH:
+			internalAuthenticate(apdu);
+			break;
+		case CMD_GENERATE_AC:
+			// get remaining data
+			short len = (short) (buf[ISO7816.OFFSET_LC] & 0xFF);
+			if (len != apdu.setIncomingAndReceive()) {
+				ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			}
+			if (protocolState.getPhase() == ProtocolState.PHASE_GPO_DONE) {
+				generateFirstAC(apdu, buf);
+			} else {
+				generateSecondAC(apdu, buf);
+			}
+			break;
+		case CMD_EXTERNAL_AUTH:
+			externalAuthenticate(apdu);
+			break;
+		case CMD_PIN_UNBLOCK:
+			pinChangeUnblock(apdu);
+			break;
+		case CMD_PUT_DATA:
+			putData(apdu);
+			break;
+		case CMD_UPDATE_RECORD:
+			fileSystem.updateRecord(apdu, receiveScriptCommand(apdu));
+			break;
+		case CMD_APPEND_RECORD:
+			fileSystem.appendRecord(apdu, receiveScriptCommand(apdu));
+			break;
+		case CMD_STORE_DATA:
+			personalisation.storeData(apdu);
+			break;
+		case CMD_DISABLE_AC_REP:
+			crypto.disableAcReplication();
+			break;
+		case CMD_CLEAR_LOG:
+			log.clear();
+			break;
+		case CMD_DISABLE_IAD_REP:
+			crypto.disableIadReplication();
+			break;
+		case CMD_NONE:
+			break;
+		}
+	}
+
+	/*
+	 * Returns the command number of the APDU, looked up in the dispatch table
+	 * from its INS (and its CLA, for STORE DATA)
+	 */
+	private byte getCommand(byte[] buf) {
+		byte ins = buf[ISO7816.OFFSET_INS];
+		if ((ins & 0x01) != 0) {
+			return CMD_UNSUPPORTED;
+		}
+		byte command = commands[(short) ((ins & 0xFF) >> 1)];
+		if (command == CMD_APPEND_RECORD
+				&& (buf[ISO7816.OFFSET_CLA] & 0x80) != 0) {
+			// proprietary CLA (80, or 84 in a secure channel)
+			return CMD_STORE_DATA;
+		}
+		return command;
+	}
+
+	/*
+	 * Process the PUT DATA APDU (INS=DA) PUT DATA is used to store primitive
+	 * data (like values) can be used, for example, to store a new pin retry
+	 * count (if it could be altered via APDUs)
+	 * 
+	 * Sent as an issuer script command (CLA 84) its MAC is checked first. The
+	 * card risk management limits can only be changed that way; the other
+	 * data elements drive the tests of the applet, and are also accepted in
+	 * plain.
+	 */
+	public void putData(APDU apdu) {
+		/*
+		 * buf[OFFSET_P1..OFFSET_P2] should contains of the following tags 9F36
+		 * - ATC 9F13 - Last online ATC 9F14 / 9F23 - Lower / Upper Consecutive
+		 * Offline Limit 9F4F - Log Format 9F70 - AC to be replicated 9F71 -
+		 * Transaction profile 9F74 - IAD to be replicated See: EMV BOOK - Page
+		 * 61
+		 */
+		byte[] buf = apdu.getBuffer();
+		boolean script = isScriptCommand(buf);
+		short len;
+		if (script) {
+			len = receiveScriptCommand(apdu);
+		} else {
+			len = (short) (buf[ISO7816.OFFSET_LC] & 0xFF);
+			if (len != apdu.setIncomingAndReceive()) {
+				ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			}
+		}
+
+		if (buf[ISO7816.OFFSET_P1] == (byte) 0x9F) {
+			switch (buf[ISO7816.OFFSET_P2]) {
+			case 0x36: // ATC
+				protocolState.setATC(getShortValue(buf, len));
+				apdu.setOutgoingAndSend((short) 0, (short) 0); // return 9000
+				break;
+			case 0x13: // Last online ATC
+				protocolState.setLastOnlineATC(getShortValue(buf, len));
+				apdu.setOutgoingAndSend((short) 0, (short) 0); // return 9000
+				break;
+			case 0x14: // Lower Consecutive Offline Limit
+				if (!script) {
+					ISOException
+							.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+				}
+				protocolState.setLowerConsecutiveOfflineLimit(getByteValue(
+						buf, len));
+				apdu.setOutgoingAndSend((short) 0, (short) 0); // return 9000
+				break;
+			case 0x23: // Upper Consecutive Offline Limit
+				if (!script) {
+					ISOException
+							.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+				}
+				protocolState.setUpperConsecutiveOfflineLimit(getByteValue(
+						buf, len));
+				apdu.setOutgoingAndSend((short) 0, (short) 0); // return 9000
+				break;
+			case 0x70: // AC Replication
+				crypto.setAc(apdu, len);
+				break;
+			case 0x71: // Transaction profile
+				byte value = getByteValue(buf, len);
+				if (value != PROFILE_CONTACT && value != PROFILE_CONTACTLESS) {
+					ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+				}
+				profile = value;
+				apdu.setOutgoingAndSend((short) 0, (short) 0); // return 9000
+				break;
+			case 0x74: // IAD replication
+				setIad(apdu);
+				break;
+			case 0x4F: // Log Format - fixed, see TransactionLog
+			default:
+				ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+				break;
+			}
+		}
+	}
+
+	/*
+	 * Returns the value of a PUT DATA for a one byte data element, whose
+	 * command data has the given length
+	 */
+	private byte getByteValue(byte[] buf, short len) {
+		if (len != 1) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		return buf[ISO7816.OFFSET_CDATA];
+	}
+
+	/*
+	 * Returns the value of a PUT DATA for a two byte data element, whose
+	 * command data has the given length
+	 */
+	private short getShortValue(byte[] buf, short len) {
+		if (len != 2) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		return Util.getShort(buf, ISO7816.OFFSET_CDATA);
+	}
+
+	/*
+	 * true if P1 bit 5 of GENERATE AC requests a CDA signature, which the
+	 * install parameters may have disabled
+	 */
+	private boolean isCDARequested(byte[] buf) {
+		if ((buf[ISO7816.OFFSET_P1] & 0x10) == 0) {
+			return false;
+		}
+		if (crypto.signature == null) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+		return true;
+	}
+
+	/*
+	 * true if the CLA of the command announces secure messaging, ie. the
+	 * command is part of an issuer script
+	 */
+	private static boolean isScriptCommand(byte[] buf) {
+		return (buf[ISO7816.OFFSET_CLA] & CLA_SECURE_MESSAGING) != 0;
+	}
+
+	/*
+	 * Receives the command data of an issuer script command (See Book 3,
+	 * Section 10.10 and Book 2, Section 9.2), which ends with the MAC of
+	 * secure messaging, and returns the length of the plain data before it.
+	 * Lc is set to that length as well.
+	 * 
+	 * Scripts are sent by the issuer in the response to an ARQC, whose MAC
+	 * covers that ARQC: the commands are only accepted once the transaction
+	 * went online. A wrong MAC gives 6988, and is reported in the CVR along
+	 * with the number of commands processed.
+	 */
+	private short receiveScriptCommand(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		if (!isScriptCommand(buf)) {
+			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+		short len = (short) (buf[ISO7816.OFFSET_LC] & 0xFF);
+		if (len != apdu.setIncomingAndReceive()
+				|| len < Crypto.SCRIPT_MAC_LENGTH) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		if (protocolState.getFirstACGenerated() != ARQC_CODE) {
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		}
+
+		boolean passed = crypto.verifyScriptMAC(buf, len);
+		protocolState.setScriptCommandProcessed(passed);
+		if (!passed) {
+			ISOException.throwIt((short) 0x6988); // incorrect SM data objects
+		}
+
+		len = (short) (len - Crypto.SCRIPT_MAC_LENGTH);
+		buf[ISO7816.OFFSET_LC] = (byte) len;
+		return len;
+	}
+
+	/*
+	 * Process the PIN CHANGE/UNBLOCK APDU (INS=24) of an issuer script, see
+	 * Book 3, Section 6.5.10. With P2 00 the PIN is unblocked; with P2 02 it
+	 * is changed without the current PIN, the command data being the new PIN
+	 * block enciphered with the SMC session key. A change with the current
+	 * PIN (P2 01) is not supported.
+	 */
+	private void pinChangeUnblock(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		byte p2 = buf[ISO7816.OFFSET_P2];
+		if (buf[ISO7816.OFFSET_P1] != 0 || (p2 != 0x00 && p2 != 0x02)) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+		short len = receiveScriptCommand(apdu);
+
+		if (p2 == 0x00) {
+			if (len != 0) {
+				ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			}
+			pin.unblock();
+		} else {
+			if (len != 8) {
+				ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			}
+			crypto.decipherPIN(buf, ISO7816.OFFSET_CDATA);
+			pin.change(buf, ISO7816.OFFSET_CDATA);
+			// don't leave the PIN lying around
+			Util.arrayFillNonAtomic(buf, ISO7816.OFFSET_CDATA, len, (byte) 0);
+		}
+	}
+
+	/*
+	 * Process the GET DATA APDU (CLA=80 INS=CA) GET DATA is used to read
+	 * primitive data (like the PIN try counter value)
+	 */
+	private void getData(APDU apdu) {
+		/*
+		 * buf[OFFSET_P1..OFFSET_P2] should contains of the following tags 9F36
+		 * - ATC 9F17 - PIN Try Counter 9F13 - Last online ATC 9F4D - Log Entry
+		 * 9F4F - Log Format 9F72 - Log Data See: EMV BOOK - Page 61
+		 */
+		byte[] buf = apdu.getBuffer();
+
+		if (buf[ISO7816.OFFSET_P1] == (byte) 0x9F) {
+			buf[0] = (byte) 0x9F;
+			buf[1] = buf[ISO7816.OFFSET_P2];
+			switch (buf[ISO7816.OFFSET_P2]) {
+			// The buf[ISO7816.OFFSET_P1,ISO7816.OFFSET_P2] already contains the
+			// right Tag,
+			// so we can write the Length and Value to the next bytes in the buf
+			// and then send this.
+			case 0x36: // ATC
+				buf[ISO7816.OFFSET_P2 + 1] = (byte) 0x02; // length 2 bytes
+				Util.setShort(buf, (short) (ISO7816.OFFSET_P2 + 2),
+						protocolState.getATC()); // value
+				// send the 5 byte long TLV for ATC
+				response.send(apdu, buf, ISO7816.OFFSET_P1, (short) 5);
+				break;
+
+			case 0x17: // PIN Try Counter
+				buf[ISO7816.OFFSET_P2 + 1] = (byte) 0x01; // length 1 byte
+				buf[ISO7816.OFFSET_P2 + 2] = pin.getTriesRemaining(); // value
+				// send the 4 byte TLV for PIN Try counter
+				response.send(apdu, buf, ISO7816.OFFSET_P1, (short) 4);
+				break;
+
+			case 0x13: // Last online ATC
+				buf[ISO7816.OFFSET_P2 + 1] = (byte) 0x02; // length 2 bytes
+				Util.setShort(buf, (short) (ISO7816.OFFSET_P2 + 2),
+						protocolState.getLastOnlineATC()); // value
+				// send the 5 byte long TLV for last online ATC
+				response.send(apdu, buf, ISO7816.OFFSET_P1, (short) 5);
+				break;
+			case 0x4D: // Log Entry: SFI and number of records of the log
+				buf[ISO7816.OFFSET_P2 + 1] = (byte) 0x02; // length 2 bytes
+				buf[ISO7816.OFFSET_P2 + 2] = TransactionLog.SFI;
+				buf[ISO7816.OFFSET_P2 + 3] = TransactionLog.RECORDS;
+				response.send(apdu, buf, ISO7816.OFFSET_P1, (short) 5);
+				break;
+			case 0x4F: // Log Format
+				response.send(apdu, buf, (short) 0, TransactionLog
+						.getLogFormat(buf, (short) 0));
+				break;
+			case 0x72: // Log Data
+				log.send(apdu);
+				break;
+			default:
+				ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+				break;
+			}
+		} else {
+			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+		}
+	}
+
+	/*
+	 * Process the GET PROCESSING OPTIONS APDU (CLA=80 INS=A8) returns the
+	 * Application Interchange Profile (AIP) and the Application File Locator
+	 * (AFL) See Page 63 - EMV BOOK
+	 * 
+	 * The command data is the tag 83 template holding the data requested by
+	 * the PDOL. GPO also starts a new transaction session.
+	 * 
+	 * In the contactless profile GPO also does the job of the first GENERATE
+	 * AC: an ARQC is computed over the PDOL data and returned in a Format 2
+	 * response, next to an AFL that only lists the records still needed.
+	 */
+	public void getProcessingOptions(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		short len = (short) (buf[ISO7816.OFFSET_LC] & 0xFF);
+		if (len != apdu.setIncomingAndReceive() || len < 2) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		if (buf[ISO7816.OFFSET_CDATA] != (byte) 0x83) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		// The template must fill the command data and hold exactly the data
+		// requested by the PDOL
+		if (Tlv.getSize(buf, ISO7816.OFFSET_CDATA) != len
+				|| Tlv.getValueLength(buf, ISO7816.OFFSET_CDATA) != fileSystem
+						.getPDOL().getDataLength()) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+
+		if (profile == PROFILE_CONTACTLESS) {
+			response.checkLength(apdu, crypto.getGPOResponseLength());
+		} else {
+			response.checkLength(apdu, fileSystem.getGPOResponseLength());
+		}
+
+		protocolState.startNewSession();
+		crypto.startTransactionHash(buf, (short) (ISO7816.OFFSET_CDATA + 2),
+				(short) (len - 2));
+
+		if (profile == PROFILE_CONTACTLESS) {
+			protocolState.checkFirstAC(ARQC_CODE);
+			len = crypto.generateGPOResponse(ARQC_CODE, buf,
+					(short) (len - 2));
+			protocolState.setContactlessARQCGenerated();
+		} else {
+			len = fileSystem.getGPOResponse(buf, (short) 0);
+		}
+		response.send(apdu, buf, (short) 0, len);
+	}
+
+	/*
+	 * Process the GET CHALLENGE APDU (INS=84), which returns an 8 byte
+	 * unpredictable number. See Book 3, Section 6.5.6
+	 */
+	private void getChallenge(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		if (buf[ISO7816.OFFSET_P1] != 0 || buf[ISO7816.OFFSET_P2] != 0) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+
+		random.generate(buf, (short) 0, CHALLENGE_LENGTH);
+		response.send(apdu, buf, (short) 0, CHALLENGE_LENGTH);
+	}
+
+	/*
+	 * Process the INTERNAL AUTHENTICATE APDU (INS=88) for DDA, see Book 2,
+	 * Section 6.5 and Book 3, Section 6.5.9. The command data is the data
+	 * requested by the DDOL, and the Signed Dynamic Application Data is
+	 * returned in a Format 1 response: 80 L [SDAD]
+	 */
+	private void internalAuthenticate(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		if (crypto.signature == null) {
+			ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+		}
+		if (buf[ISO7816.OFFSET_P1] != 0 || buf[ISO7816.OFFSET_P2] != 0) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+		short len = (short) (buf[ISO7816.OFFSET_LC] & 0xFF);
+		if (len != apdu.setIncomingAndReceive() || len == 0
+				|| len > DynamicSignature.MAX_DDOL_DATA_LENGTH) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+
+		short offset = Tlv.setHeader(buf, (short) 0, (short) 0x0080,
+				DynamicSignature.SIGNATURE_LENGTH);
+		len = crypto.signature.signDDA(buf, offset, ISO7816.OFFSET_CDATA, len);
+		protocolState.setDDAPerformed();
+		response.send(apdu, buf, (short) 0, (short) (offset + len));
+	}
+
+	public void generateFirstAC(APDU apdu, byte[] apduBuffer) {
+		// First 2 bits of P1 specify the type
+		// These bits also have to be returned, as the Cryptogram Information
+		// Data (CID);
+		// See Book 3, Annex C6.5.5.4
+		byte cid = (byte) (apduBuffer[ISO7816.OFFSET_P1] & 0xC0);
+		if (cid == RFU_CODE || cid == AAC_CODE) {
+			// not a request for TC or ARQC
+			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+		}
+
+		// The terminal must send exactly the data requested by the CDOL1
+		short length = fileSystem.getCDOL1DataLength();
+		if ((short) (apduBuffer[ISO7816.OFFSET_LC] & 0xFF) != length) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+
+		boolean cda = isCDARequested(apduBuffer);
+		response.checkLength(apdu, crypto.getACResponseLength(cda));
+
+		// The card may ask to go online instead of approving offline
+		cid = protocolState.checkFirstAC(cid);
+
+		transactionLog.setTerminalData(apduBuffer, ISO7816.OFFSET_CDATA,
+				fileSystem.getCDOL1());
+		length = crypto.generateFirstACReponse(cid, apduBuffer, length, cda);
+		protocolState.setFirstACGenerated(cid);
+		if (cid != ARQC_CODE) {
+			// the transaction is complete
+			transactionLog.append(cid, protocolState.getTransactionATC());
+		}
+
+		response.send(apdu, apduBuffer, (short) 0, length);
+	}
+
+	public void generateSecondAC(APDU apdu, byte[] apduBuffer) {
+		// First 2 bits of P1 specify the type
+		// These bits also have to be returned, as the Cryptogram Information
+		// Data (CID);
+		// See Book 3, Sect 6.5.5.4 of the Common Core Definitions.
+		byte cid = (byte) (apduBuffer[ISO7816.OFFSET_P1] & 0xC0);
+		if (cid == RFU_CODE || cid == ARQC_CODE) {
+			// not a request for TC or AAC
+			ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+		}
+
+		// The terminal must send exactly the data requested by the CDOL2
+		short length = fileSystem.getCDOL2DataLength();
+		if ((short) (apduBuffer[ISO7816.OFFSET_LC] & 0xFF) != length) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+
+		boolean cda = isCDARequested(apduBuffer);
+		response.checkLength(apdu, crypto.getACResponseLength(cda));
+
+		// Issuer Authentication Data sent in the CDOL2 data, unless the
+		// terminal could not go online or EXTERNAL AUTHENTICATE checked it
+		boolean unableToGoOnline = isUnableToGoOnline(apduBuffer);
+		short iad = fileSystem.getCDOL2().getOffset((short) 0x0091);
+		if (iad >= 0 && !unableToGoOnline
+				&& fileSystem.getCDOL2().getLength((short) 0x0091) >= 10
+				&& protocolState.getFirstACGenerated() == ARQC_CODE
+				&& protocolState.getIssuerAuthentication() == NONE) {
+			protocolState.setIssuerAuthenticated(crypto.verifyARPC(
+					apduBuffer, (short) (ISO7816.OFFSET_CDATA + iad)));
+		}
+
+		// The card may decline an offline approval
+		cid = protocolState.checkSecondAC(cid, unableToGoOnline);
+
+		transactionLog.setTerminalData(apduBuffer, ISO7816.OFFSET_CDATA,
+				fileSystem.getCDOL2());
+		length = crypto.generateSecondACReponse(cid, apduBuffer, length,
+				cda);
+		protocolState.setSecondACGenerated(cid);
+		transactionLog.append(cid, protocolState.getTransactionATC());
+
+		response.send(apdu, apduBuffer, (short) 0, length);
+	}
+
+	/*
+	 * Process the EXTERNAL AUTHENTICATE APDU (INS=82), see Book 3, Section
+	 * 6.5.4. The command data is the Issuer Authentication Data (91) of the
+	 * online response: the ARPC followed by the ARC, and optionally by
+	 * proprietary data. It is checked once, between an ARQC and the second
+	 * GENERATE AC; a wrong ARPC gives 6300.
+	 */
+	private void externalAuthenticate(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		if (buf[ISO7816.OFFSET_P1] != 0 || buf[ISO7816.OFFSET_P2] != 0) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+		short len = (short) (buf[ISO7816.OFFSET_LC] & 0xFF);
+		if (len != apdu.setIncomingAndReceive() || len < 10 || len > 16) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		if (protocolState.getIssuerAuthentication() != NONE) {
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		}
+
+		boolean passed = crypto.verifyARPC(buf, ISO7816.OFFSET_CDATA);
+		protocolState.setIssuerAuthenticated(passed);
+		if (!passed) {
+			ISOException.throwIt((short) 0x6300); // authentication failed
+		}
+	}
+
+	/*
+	 * Returns true if the Authorisation Response Code (8A) sent in the CDOL2
+	 * data is Y3 or Z3, ie. the terminal was unable to go online (See Book 4,
+	 * Annex A6)
+	 */
+	private boolean isUnableToGoOnline(byte[] buf) {
+		short arc = fileSystem.getCDOL2().getOffset((short) 0x008A);
+		if (arc < 0) {
+			return false;
+		}
+		arc = (short) (ISO7816.OFFSET_CDATA + arc);
+		return buf[(short) (arc + 1)] == (byte) '3'
+				&& (buf[arc] == (byte) 'Y' || buf[arc] == (byte) 'Z');
+	}
+
+	public void setIad(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		if (buf[ISO7816.OFFSET_LC] > (byte) 0x12) { // Max IAD size is 18 bytes
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+
+		crypto.setIad(buf);
+		apdu.setOutgoingAndSend((short) 0, (short) 0); // return 9000
+	}
 }
\ No newline at end of file
@@ -1,313 +1,919 @@
-package smart;
-
-import javacard.framework.APDU;
-import javacard.framework.ISO7816;
-import javacard.framework.ISOException;
-
-//import javacard.framework.JCSystem;
-
-public class FileSystem {
-	/*
-	 * Usual Structure: MF | |-+ EF 01 | --- Record 01 |-+ EF 02 | --- Record 01
-	 * | --- Record 02 |-+ EF 03 | --- Record 01 (for offline data / EMV reader
-	 * different icon) | --- Record 02
-	 */
-
-	// File Allocation Table (for now, use a fixed EF limit)
-	private static final byte EF_1_ID = 1;
-	private static final byte EF_2_ID = 2;
-	private static final byte EF_3_ID = 3;
-
-	// Dynamic EFs (will contain the Record Files (as array of bytes too)
-	private static byte[] ef_1_data;
-	private static byte[] ef_2_data;
-	private static byte[] ef_3_data;
-
-	private final static byte[] ef01_r01 = { (byte) 0x70, (byte) 0x33, (byte) 0x57, (byte) 0x13, (byte) 0x41, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0xD2, (byte) 0x10, (byte) 0x72, (byte) 0x06, (byte) 0x14, (byte) 0x71, (byte) 0x09, (byte) 0x40, (byte) 0x90, (byte) 0x87, (byte) 0x0F, (byte) 0x5F, (byte) 0x20, (byte) 0x08, (byte) 0x4A, (byte) 0x4F, (byte) 0x45, (byte) 0x20, (byte) 0x54, (byte) 0x45, (byte) 0x53, (byte) 0x54, (byte) 0x9F, (byte) 0x1F, (byte) 0x10, (byte) 0x31, (byte) 0x34, (byte) 0x37, (byte) 0x31, (byte) 0x30, (byte) 0x30, (byte) 0x30, (byte) 0x39, (byte) 0x34, (byte) 0x30, (byte) 0x30, (byte) 0x30, (byte) 0x30, (byte) 0x30, (byte) 0x30, (byte) 0x30 };
-
-	private final static byte[] ef01_r02 = { (byte) 0x70, (byte) 0x13, (byte) 0x9F, (byte) 0x08, (byte) 0x02, (byte) 0x00, (byte) 0x8D, (byte) 0x5F, (byte) 0x30, (byte) 0x02, (byte) 0x02, (byte) 0x06, (byte) 0x9F, (byte) 0x42, (byte) 0x02, (byte) 0x09, (byte) 0x86, (byte) 0x9F, (byte) 0x44, (byte) 0x01, (byte) 0x02 };
-
-	private final static byte[] ef01_r03 = { (byte) 0x70, (byte) 0x30, (byte) 0x8C, (byte) 0x15, (byte) 0x9F, (byte) 0x02, (byte) 0x06, (byte) 0x9F, (byte) 0x03, (byte) 0x06, (byte) 0x9F, (byte) 0x1A, (byte) 0x02, (byte) 0x95, (byte) 0x05, (byte) 0x5F, (byte) 0x2A, (byte) 0x02, (byte) 0x9A, (byte) 0x03, (byte) 0x9C, (byte) 0x01, (byte) 0x9F, (byte) 0x37, (byte) 0x04, (byte) 0x8D, (byte) 0x17, (byte) 0x8A, (byte) 0x02, (byte) 0x9F, (byte) 0x02, (byte) 0x06, (byte) 0x9F, (byte) 0x03, (byte) 0x06, (byte) 0x9F, (byte) 0x1A, (byte) 0x02, (byte) 0x95, (byte) 0x05, (byte) 0x5F, (byte) 0x2A, (byte) 0x02, (byte) 0x9A, (byte) 0x03, (byte) 0x9C, (byte) 0x01, (byte) 0x9F, (byte) 0x37, (byte) 0x04 };
-	
-	private final static byte[] ef01_r04 = { (byte) 0x00 };
-	
-	private final static byte[] ef01_r05 = { (byte) 0x00 };
-	
-	private final static byte[] ef01_r06 = { (byte) 0x00 };
-	
-	private final static byte[] ef02_r01 = { (byte) 0x70, (byte) 0x0E, (byte) 0x5A, (byte) 0x08, (byte) 0x41, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x5F, (byte) 0x34, (byte) 0x01, (byte) 0x00 };
-
-	private final static byte[] ef02_r02 = { (byte) 0x70, (byte) 0x16, (byte) 0x5F, (byte) 0x24, (byte) 0x03, (byte) 0x21, (byte) 0x07, (byte) 0x31, (byte) 0x9F, (byte) 0x07, (byte) 0x02, (byte) 0xFF, (byte) 0x80, (byte) 0x5F, (byte) 0x28, (byte) 0x02, (byte) 0x00, (byte) 0x76, (byte) 0x5F, (byte) 0x25, (byte) 0x03, (byte) 0x15, (byte) 0x07, (byte) 0x23 };
-
-	private final static byte[] ef02_r03 = { (byte) 0x70, (byte) 0x81, (byte) 0xE0, (byte) 0x8F, (byte) 0x01, (byte) 0x08, (byte) 0x90, (byte) 0x81, (byte) 0xB0, (byte) 0xBF, (byte) 0x63, (byte) 0xBF, (byte) 0xF5, (byte) 0x61, (byte) 0x97, (byte) 0x0C, (byte) 0x85, (byte) 0xA8, (byte) 0x27, (byte) 0xAD, (byte) 0xAB, (byte) 0xF8, (byte) 0x56, (byte) 0x68, (byte) 0x0B, (byte) 0xD6, (byte) 0x81, (byte) 0xD0, (byte) 0x99, (byte) 0xDD, (byte) 0xDD, (byte) 0x9F, (byte) 0xD4, (byte) 0xD9, (byte) 0xAB, (byte) 0xE5, (byte) 0x85, (byte) 0x09, (byte) 0xEC, (byte) 0x65, (byte) 0x38, (byte) 0x0C, (byte) 0xA5, (byte) 0xEE, (byte) 0x87, (byte) 0x3C, (byte) 0xA4, (byte) 0x9A, (byte) 0x15, (byte) 0x68, (byte) 0xEA, (byte) 0x77, (byte) 0x8B, (byte) 0x0A, (byte) 0x29, (byte) 0x9A, (byte) 0x83, (byte) 0x45, (byte) 0x8A, (byte) 0x8A, (byte) 0x0D, (byte) 0x70, (byte) 0x47, (byte) 0x3F, (byte) 0xE3, (byte) 0x5E, (byte) 0xF1, (byte) 0x36, (byte) 0x98, (byte) 0xBA, (byte) 0x6F, (byte) 0x94, (byte) 0xDF, (byte) 0xAB, (byte) 0x19, (byte) 0x43, (byte) 0xD9, (byte) 0xEF, (byte) 0x75, (byte) 0xAC, (byte) 0x3B, (byte) 0xFE, (byte) 0xC1, (byte) 0x6B, (byte) 0x47, (byte) 0x74, (byte) 0x4D, (byte) 0x32, (byte) 0x02, (byte) 0xA6, (byte) 0x03, (byte) 0x78, (byte) 0x31, (byte) 0x96, (byte) 0x0E, (byte) 0x1A, (byte) 0x2A, (byte) 0xF4, (byte) 0x30, (byte) 0xAE, (byte) 0x41, (byte) 0xDB, (byte) 0xD3, (byte) 0xE9, (byte) 0x63, (byte) 0xE0, (byte) 0x08, (byte) 0xD7, (byte) 0x91, (byte) 0xE7, (byte) 0xDC, (byte) 0x8F, (byte) 0x46, (byte) 0xC2, (byte) 0x54, (byte) 0x24, (byte) 0xFF, (byte) 0xF8, (byte) 0x08, (byte) 0xB5, (byte) 0xE3, (byte) 0xEE, (byte) 0xBC, (byte) 0x96, (byte) 0x0F, (byte) 0x80, (byte) 0xBD, (byte) 0x8E, (byte) 0x0F, (byte) 0x82, (byte) 0xD6, (byte) 0xC1, (byte) 0x98, (byte) 0x14, (byte) 0x00, (byte) 0xA9, (byte) 0xC7, (byte) 0x32, (byte) 0x3E, (byte) 0xE3, (byte) 0x38, (byte) 0x8D, (byte) 0xA4, (byte) 0xFA, (byte) 0xFF, (byte) 0x7B, (byte) 0xFE, (byte) 0x53, (byte) 0xA5, (byte) 0x98, (byte) 0xDA, (byte) 0x10, (byte) 0xC1, (byte) 0xB1, (byte) 0xDE, (byte) 0xF7, (byte) 0x5A, (byte) 0x6F, (byte) 0x7D, (byte) 0xE7, (byte) 0xC8, (byte) 0x71, (byte) 0x25, (byte) 0xC7, (byte) 0xB3, (byte) 0x74, (byte) 0x15, (byte) 0x86, (byte) 0x5F, (byte) 0x6B, (byte) 0xE0, (byte) 0x48, (byte) 0xDB, (byte) 0x66, (byte) 0x0F, (byte) 0x9D, (byte) 0x50, (byte) 0xC9, (byte) 0xB2, (byte) 0x5C, (byte) 0xF8, (byte) 0x1A, (byte) 0xBB, (byte) 0x96, (byte) 0x73, (byte) 0x9F, (byte) 0x32, (byte) 0x01, (byte) 0x03, (byte) 0x92, (byte) 0x24, (byte) 0xF8, (byte) 0xE1, (byte) 0x75, (byte) 0x61, (byte) 0x48, (byte) 0x32, (byte) 0x33, (byte) 0xFA, (byte) 0x5B, (byte) 0x36, (byte) 0x40, (byte) 0xBA, (byte) 0xE1, (byte) 0xCD, (byte) 0x7D, (byte) 0xA5, (byte) 0xEC, (byte) 0x55, (byte) 0xF4, (byte) 0xC4, (byte) 0xB3, (byte) 0x24, (byte) 0x61, (byte) 0xC6, (byte) 0x87, (byte) 0x39, (byte) 0xF8, (byte) 0x79, (byte) 0xBC, (byte) 0x9F, (byte) 0xB8, (byte) 0xD8, (byte) 0xEE, (byte) 0xA9, (byte) 0x0D, (byte) 0x2D };
-
-	private final static byte[] ef02_r04 = { (byte) 0x70, (byte) 0x1C, (byte) 0x9F, (byte) 0x0E, (byte) 0x05, (byte) 0x2C, (byte) 0x10, (byte) 0x98, (byte) 0x00, (byte) 0x00, (byte) 0x9F, (byte) 0x0F, (byte) 0x05, (byte) 0xD0, (byte) 0x68, (byte) 0x24, (byte) 0xF8, (byte) 0x00, (byte) 0x9F, (byte) 0x0D, (byte) 0x05, (byte) 0xD0, (byte) 0x68, (byte) 0x24, (byte) 0xA8, (byte) 0x00, (byte) 0x9F, (byte) 0x4A, (byte) 0x01, (byte) 0x82 };
-
-	private final static byte[] ef02_r05 = { (byte) 0x70, (byte) 0x16, (byte) 0x8E, (byte) 0x14, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x42, (byte) 0x01, (byte) 0x41, (byte) 0x03, (byte) 0x02, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00 };
-
-	private final static byte[] ef02_r06 = { (byte) 0x70, (byte) 0x81, (byte) 0xB3, (byte) 0x93, (byte) 0x81, (byte) 0xB0, (byte) 0x8E, (byte) 0x69, (byte) 0xF5, (byte) 0xFA, (byte) 0x9C, (byte) 0xBC, (byte) 0xB6, (byte) 0x5B, (byte) 0x1C, (byte) 0x97, (byte) 0xCE, (byte) 0x3A, (byte) 0xB3, (byte) 0xBC, (byte) 0x5E, (byte) 0xE6, (byte) 0x3C, (byte) 0xB4, (byte) 0x0C, (byte) 0x7A, (byte) 0xF4, (byte) 0x5B, (byte) 0xFE, (byte) 0xED, (byte) 0x4C, (byte) 0x5E, (byte) 0xB7, (byte) 0x1A, (byte) 0xE1, (byte) 0x10, (byte) 0x57, (byte) 0x10, (byte) 0x62, (byte) 0x24, (byte) 0xFD, (byte) 0x78, (byte) 0x24, (byte) 0x80, (byte) 0x8E, (byte) 0xA1, (byte) 0x8B, (byte) 0x38, (byte) 0xF9, (byte) 0x79, (byte) 0x9F, (byte) 0x3C, (byte) 0xF8, (byte) 0x66, (byte) 0x41, (byte) 0xB2, (byte) 0xB0, (byte) 0x8B, (byte) 0xED, (byte) 0x29, (byte) 0x22, (byte) 0xB4, (byte) 0xB3, (byte) 0x77, (byte) 0x31, (byte) 0x3F, (byte) 0x6D, (byte) 0xF1, (byte) 0x19, (byte) 0x13, (byte) 0x3D, (byte) 0xBD, (byte) 0xC9, (byte) 0x3B, (byte) 0x14, (byte) 0x31, (byte) 0x09, (byte) 0xAD, (byte) 0x26, (byte) 0xCE, (byte) 0xBC, (byte) 0x7B, (byte) 0xB4, (byte) 0xF7, (byte) 0x10, (byte) 0x1F, (byte) 0x53, (byte) 0xE4, (byte) 0x99, (byte) 0xCA, (byte) 0x05, (byte) 0x22, (byte) 0x0D, (byte) 0x3C, (byte) 0xC6, (byte) 0xF6, (byte) 0xE3, (byte) 0xE0, (byte) 0x37, (byte) 0x86, (byte) 0xBC, (byte) 0x27, (byte) 0x47, (byte) 0x27, (byte) 0x42, (byte) 0x0D, (byte) 0x3A, (byte) 0x91, (byte) 0x00, (byte) 0xB0, (byte) 0x5F, (byte) 0xE8, (byte) 0x51, (byte) 0x41, (byte) 0x65, (byte) 0x8D, (byte) 0xA7, (byte) 0xD0, (byte) 0x68, (byte) 0x9C, (byte) 0x7C, (byte) 0x20, (byte) 0xF2, (byte) 0x82, (byte) 0xAE, (byte) 0x21, (byte) 0x58, (byte) 0x0F, (byte) 0xC4, (byte) 0x25, (byte) 0x2E, (byte) 0x30, (byte) 0xC6, (byte) 0xFA, (byte) 0x60, (byte) 0xF1, (byte) 0x80, (byte) 0x56, (byte) 0x93, (byte) 0xFB, (byte) 0xEF, (byte) 0x5D, (byte) 0xFF, (byte) 0xEF, (byte) 0xB0, (byte) 0x9A, (byte) 0x11, (byte) 0x04, (byte) 0xEC, (byte) 0x22, (byte) 0x5A, (byte) 0xB7, (byte) 0x9D, (byte) 0xD4, (byte) 0xC8, (byte) 0xCA, (byte) 0xCC, (byte) 0x25, (byte) 0x34, (byte) 0xF6, (byte) 0xEF, (byte) 0x1B, (byte) 0x2D, (byte) 0xB6, (byte) 0xA1, (byte) 0x96, (byte) 0xE2, (byte) 0x1B, (byte) 0x40, (byte) 0xB6, (byte) 0xD3, (byte) 0xAD, (byte) 0x8A, (byte) 0xC0, (byte) 0x99, (byte) 0xA6, (byte) 0x4C, (byte) 0x8C, (byte) 0x70, (byte) 0xBE, (byte) 0xD2, (byte) 0x8C };
-
-	private final static byte[] ef02_r07 = { (byte) 0x70, (byte) 0x1C, (byte) 0x9F, (byte) 0x0E, (byte) 0x05, (byte) 0x2C, (byte) 0x10, (byte) 0x98, (byte) 0x00, (byte) 0x00, (byte) 0x9F, (byte) 0x0F, (byte) 0x05, (byte) 0xD0, (byte) 0x68, (byte) 0x24, (byte) 0xF8, (byte) 0x00, (byte) 0x9F, (byte) 0x0D, (byte) 0x05, (byte) 0xD0, (byte) 0x68, (byte) 0x24, (byte) 0xA8, (byte) 0x00, (byte) 0x9F, (byte) 0x4A, (byte) 0x01, (byte) 0x82 };
-
-	private final static byte[] ef02_r08 = { (byte) (byte) 0x70, (byte) 0x16, (byte) 0x8E, (byte) 0x14, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x42, (byte) 0x03, (byte) 0x41, (byte) 0x03, (byte) 0x1E, (byte) 0x03, (byte) 0x1F, (byte) 0x03, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00 };
-	
-	private final static byte[] ef02_r09 = { (byte) 0x70, (byte) 0x81, (byte) 0xB3, (byte) 0x93, (byte) 0x81, (byte) 0xB0, (byte) 0x9F, (byte) 0x06, (byte) 0x1E, (byte) 0xEF, (byte) 0x4A, (byte) 0x23, (byte) 0xD0, (byte) 0x1B, (byte) 0x46, (byte) 0x5E, (byte) 0x86, (byte) 0x42, (byte) 0x3C, (byte) 0xBA, (byte) 0xD1, (byte) 0x88, (byte) 0x87, (byte) 0xE2, (byte) 0x43, (byte) 0x02, (byte) 0x9D, (byte) 0x79, (byte) 0x69, (byte) 0x54, (byte) 0x90, (byte) 0xA3, (byte) 0xC2, (byte) 0x1C, (byte) 0xB1, (byte) 0x4E, (byte) 0xFD, (byte) 0x8D, (byte) 0xAC, (byte) 0xAD, (byte) 0x94, (byte) 0x22, (byte) 0x77, (byte) 0x34, (byte) 0xB1, (byte) 0x6D, (byte) 0xCE, (byte) 0x2C, (byte) 0xA3, (byte) 0x65, (byte) 0x0B, (byte) 0x5C, (byte) 0xA0, (byte) 0xC9, (byte) 0x21, (byte) 0x88, (byte) 0x0A, (byte) 0x24, (byte) 0x8E, (byte) 0x04, (byte) 0x40, (byte) 0x15, (byte) 0xA6, (byte) 0x0D, (byte) 0xDA, (byte) 0x42, (byte) 0x08, (byte) 0x03, (byte) 0x57, (byte) 0x1A, (byte) 0x03, (byte) 0x42, (byte) 0x2D, (byte) 0x59, (byte) 0x5F, (byte) 0xD3, (byte) 0xB5, (byte) 0x91, (byte) 0x43, (byte) 0x75, (byte) 0x5B, (byte) 0xD5, (byte) 0x32, (byte) 0x77, (byte) 0x7C, (byte) 0x3A, (byte) 0x25, (byte) 0xAB, (byte) 0x1C, (byte) 0x95, (byte) 0x32, (byte) 0x18, (byte) 0xBF, (byte) 0xF8, (byte) 0xEC, (byte) 0x0E, (byte) 0xFA, (byte) 0xA0, (byte) 0x41, (byte) 0x1B, (byte) 0x6E, (byte) 0x62, (byte) 0xF0, (byte) 0x67, (byte) 0xED, (byte) 0x21, (byte) 0x35, (byte) 0x49, (byte) 0xA1, (byte) 0x27, (byte) 0x30, (byte) 0xCB, (byte) 0x47, (byte) 0x0A, (byte) 0xAE, (byte) 0x59, (byte) 0xB7, (byte) 0x01, (byte) 0x1E, (byte) 0xDE, (byte) 0x7D, (byte) 0x43, (byte) 0x1E, (byte) 0x66, (byte) 0x04, (byte) 0xBF, (byte) 0x72, (byte) 0x97, (byte) 0xD6, (byte) 0x86, (byte) 0x42, (byte) 0x0F, (byte) 0xBF, (byte) 0xB5, (byte) 0x4D, (byte) 0xBE, (byte) 0x44, (byte) 0x74, (byte) 0x95, (byte) 0x67, (byte) 0xE6, (byte) 0x1A, (byte) 0x98, (byte) 0xC1, (byte) 0x7B, (byte) 0x10, (byte) 0x8A, (byte) 0xB8, (byte) 0xF2, (byte) 0x59, (byte) 0xA1, (byte) 0x2E, (byte) 0xAD, (byte) 0x14, (byte) 0xA6, (byte) 0xF7, (byte) 0x00, (byte) 0x06, (byte) 0x31, (byte) 0xB6, (byte) 0x42, (byte) 0x7C, (byte) 0xAD, (byte) 0xFE, (byte) 0x49, (byte) 0xAC, (byte) 0xE9, (byte) 0x71, (byte) 0xBD, (byte) 0xCA, (byte) 0xE6, (byte) 0xAD, (byte) 0x7C, (byte) 0x23, (byte) 0x67, (byte) 0xE3, (byte) 0x58, (byte) 0xA9, (byte) 0x05, (byte) 0xD2, (byte) 0xAD, (byte) 0x7C };
-	
-	private final static byte[] ef04_r01 = { (byte) 0x00 };
-
-	private static byte[] selectFile; // Will hold the ID of the selected EF (probably not supported for now)
-
-	public final static byte[] fci = { (byte) 0x6F, (byte) 0x81, (byte) 0x88, (byte) 0x84, (byte) 0x07, (byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x03, (byte) 0x20, (byte) 0x10, (byte) 0xA5, (byte) 0x29, (byte) 0x87, (byte) 0x01, (byte) 0x02, (byte) 0x50, (byte) 0x0C, (byte) 0x56, (byte) 0x49, (byte) 0x53, (byte) 0x41, (byte) 0x45, (byte) 0x4C, (byte) 0x45, (byte) 0x43, (byte) 0x54, (byte) 0x52, (byte) 0x4F, (byte) 0x4E, (byte) 0x9F, (byte) 0x38, (byte) 0x03, (byte) 0x9F, (byte) 0x1A, (byte) 0x02, (byte) 0x5F, (byte) 0x2D, (byte) 0x02, (byte) 0x70, (byte) 0x74, (byte) 0x9F, (byte) 0x11, (byte) 0x01, (byte) 0x01, (byte) 0x9F, (byte) 0x12, (byte) 0x06, (byte) 0x44, (byte) 0x45, (byte) 0x42, (byte) 0x49, (byte) 0x54, (byte) 0x4F, (byte) 0x87, (byte) 0x01, (byte) 0x02, (byte) 0x50, (byte) 0x0C, (byte) 0x56, (byte) 0x49, (byte) 0x53, (byte) 0x41, (byte) 0x45, (byte) 0x4C, (byte) 0x45, (byte) 0x43, (byte) 0x54, (byte) 0x52, (byte) 0x4F, (byte) 0x4E, (byte) 0x9F, (byte) 0x38, (byte) 0x03, (byte) 0x9F, (byte) 0x1A, (byte) 0x02, (byte) 0x5F, (byte) 0x2D, (byte) 0x02, (byte) 0x70, (byte) 0x74, (byte) 0x9F, (byte) 0x11, (byte) 0x01, (byte) 0x01, (byte) 0x9F, (byte) 0x12, (byte) 0x06, (byte) 0x44, (byte) 0x45, (byte) 0x42, (byte) 0x49, (byte) 0x54, (byte) 0x4F, (byte) 0x87, (byte) 0x01, (byte) 0x02, (byte) 0x50, (byte) 0x0C, (byte) 0x56, (byte) 0x49, (byte) 0x53, (byte) 0x41, (byte) 0x45, (byte) 0x4C, (byte) 0x45, (byte) 0x43, (byte) 0x54, (byte) 0x52, (byte) 0x4F, (byte) 0x4E, (byte) 0x9F, (byte) 0x38, (byte) 0x03, (byte) 0x9F, (byte) 0x1A, (byte) 0x02, (byte) 0x5F, (byte) 0x2D, (byte) 0x04, (byte) 0x70, (byte) 0x74, (byte) 0x65, (byte) 0x6E, (byte) 0x9F, (byte) 0x11, (byte) 0x01, (byte) 0x01, (byte) 0x9F, (byte) 0x12, (byte) 0x06, (byte) 0x44, (byte) 0x45, (byte) 0x42, (byte) 0x49, (byte) 0x54, (byte) 0x4F };
-
-	public final static byte[] aip_afl = { (byte) 0x80, (byte) 0x0E,
-			(byte) 0x5C, (byte) 0x00, (byte) 0x08, (byte) 0x01, (byte) 0x03,
-			(byte) 0x00, (byte) 0x10, (byte) 0x01, (byte) 0x03, (byte) 0x02,
-			(byte) 0x10, (byte) 0x04, (byte) 0x05, (byte) 0x01 }; // AIP
-
-	/*
-	 * AIP - TAG 82 5800 (01011000) ---- 4000 SDA supported 1000 Cardholder
-	 * verification supported 0800 Terminal risk management is to be performed
-	 */
-	public final short aip = (short) 0x5800;
-
-	/*
-	 * AFL: TAG 94 For now, use a static / fixed AFL TODO: Change the AFL based
-	 * in the actual card data structure
-	 */
-	public final static byte[] afl = {
-			// 080101001001020018010201 = 08010100 10010200 18010201
-			(byte) 0x08, (byte) 0x01, (byte) 0x01, (byte) 0x00, (byte) 0x10,
-			(byte) 0x01, (byte) 0x02, (byte) 0x00, (byte) 0x18, (byte) 0x01,
-			(byte) 0x02, (byte) 0x01 };
-
-	// "THE" INS (E2). Append a record (SIMPLE-TLV data) to the end of an EF
-	public static void appendRecord(byte p2, byte[] data) {
-		/*
-		 * P2 = EF identifier in SFI format data = record to be appended
-		 */
-
-	}
-
-	public static void writeRecord(APDU apdu) {
-		// For now, receives the data and writes it to the EF without any
-		// validation
-		byte[] buf = apdu.getBuffer();
-		byte data = buf[ISO7816.OFFSET_CDATA];
-
-	}
-
-	public short getAIP() {
-		return aip;
-	}
-
-	public void setAIP(short newAip) {
-
-	}
-
-	public static void selectFile() {
-		// In theory, a direct select file (instead of an AID) is never used
-		// When used, should select an EF / DF to read its information
-		// Comercial EMV suport only the "native" SELECT command
-		// TODO: Must return somenthing here but it cant be function not
-		// supported since select is supported (but only and AID)
-	}
-
-	// TODO: Support only fixed size / quantity of EFs first
-	public static void createFile() {
-
-	}
-
-	public static void readRecord(APDU apdu) {
-		// TODO: Change this case to an array of EFs so we can address them by
-		// position instead of switching
-
-		/*
-		 * TODO: Se voce passa o read como 00B2010C o campo LE "nao existe" e o
-		 * bytesleft = 0, trigando o primeiro condicional do if se voce passa
-		 * qualquer outro campo (mesmo 00, que � "leia tudo que puder") o else �
-		 * trigado a unica forma de trigar bytesleft = 0 � NAO PASSANDO NADA, o
-		 * que � invalido (deveria ser considerado como passado 00 Ou seja:
-		 * colocado um 1 no if para sempre trigar o segundo, mas arrumar
-		 * corretamente para a le esperada
-		 */
-
-		byte[] buf = apdu.getBuffer();
-		short bytesLeft;
-		short record = buf[ISO7816.OFFSET_P1];
-		byte ef = (byte) ((buf[ISO7816.OFFSET_P2] ^ 4) >> 3);
-
-		switch (ef) {
-		case (byte) 0x01: // three records
-			switch (record) {
-			/*
-			 * CASE ANTIGO, ANTES N�O LIDO case (byte)0x01: //three records
-			 * switch (record) { case (byte) 0x01: bytesLeft =
-			 * apdu.setOutgoing(); if (bytesLeft == (short) 1) {
-			 * apdu.setOutgoingLength((short) 0); apdu.sendBytesLong
-			 * (ef01_r01,(short)0,(short)0); } else {
-			 * apdu.setOutgoingLength((short)ef01_r01.length);
-			 * apdu.sendBytesLong (ef01_r01,(short)0,(short)ef01_r01.length); }
-			 */
-			case (byte) 0x01:
-				bytesLeft = apdu.setOutgoing();
-				apdu.setOutgoingLength((short) ef01_r01.length);
-				apdu.sendBytesLong(ef01_r01, (short) 0, (short) ef01_r01.length);
-
-				break;
-			case (byte) 0x02:
-				bytesLeft = apdu.setOutgoing();
-				apdu.setOutgoingLength((short) ef01_r02.length);
-				apdu.sendBytesLong(ef01_r02, (short) 0, (short) ef01_r02.length);
-
-				break;
-			case (byte) 0x03:
-				bytesLeft = apdu.setOutgoing();
-				apdu.setOutgoingLength((short) ef01_r03.length);
-				apdu.sendBytesLong(ef01_r03, (short) 0, (short) ef01_r03.length);
-
-				break;
-			case (byte) 0x04:
-				bytesLeft = apdu.setOutgoing();
-				apdu.setOutgoingLength((short) ef01_r04.length);
-				apdu.sendBytesLong(ef01_r04, (short) 0, (short) ef01_r04.length);
-
-				break;
-			case (byte) 0x05:
-				bytesLeft = apdu.setOutgoing();
-				apdu.setOutgoingLength((short) ef01_r05.length);
-				apdu.sendBytesLong(ef01_r05, (short) 0, (short) ef01_r05.length);
-
-				break;
-			case (byte) 0x06:
-				bytesLeft = apdu.setOutgoing();
-				apdu.setOutgoingLength((short) ef01_r06.length);
-				apdu.sendBytesLong(ef01_r06, (short) 0, (short) ef01_r06.length);
-
-				break;
-			}
-				break;
-
-		case (byte) 0x02: // five records
-			switch (record) {
-			case (byte) 0x01:
-				bytesLeft = apdu.setOutgoing();
-				apdu.setOutgoingLength((short) ef02_r01.length);
-				apdu.sendBytesLong(ef02_r01, (short) 0, (short) ef02_r01.length);
-				break;
-			case (byte) 0x02:
-				bytesLeft = apdu.setOutgoing();
-				apdu.setOutgoingLength((short) ef02_r02.length);
-				apdu.sendBytesLong(ef02_r02, (short) 0, (short) ef02_r02.length);
-				break;
-			case (byte) 0x03:
-				bytesLeft = apdu.setOutgoing();
-				apdu.setOutgoingLength((short) ef02_r03.length);
-				apdu.sendBytesLong(ef02_r03, (short) 0, (short) ef02_r03.length);
-
-				break;
-			case (byte) 0x04:
-				bytesLeft = apdu.setOutgoing();
-				apdu.setOutgoingLength((short) ef02_r04.length);
-				apdu.sendBytesLong(ef02_r04, (short) 0, (short) ef02_r04.length);
-
-				break;
-			case (byte) 0x05:
-				bytesLeft = apdu.setOutgoing();
-				apdu.setOutgoingLength((short) ef02_r05.length);
-				apdu.sendBytesLong(ef02_r05, (short) 0, (short) ef02_r05.length);
-
-				break;
-			case (byte) 0x06:
-				bytesLeft = apdu.setOutgoing();
-				apdu.setOutgoingLength((short) ef02_r06.length);
-				apdu.sendBytesLong(ef02_r06, (short) 0, (short) ef02_r06.length);
-
-				break;
-			case (byte) 0x07:
-				bytesLeft = apdu.setOutgoing();
-				apdu.setOutgoingLength((short) ef02_r07.length);
-				apdu.sendBytesLong(ef02_r07, (short) 0, (short) ef02_r07.length);
-
-				break;
-			
-			case (byte) 0x08:
-				bytesLeft = apdu.setOutgoing();
-				apdu.setOutgoingLength((short) ef02_r08.length);
-				apdu.sendBytesLong(ef02_r08, (short) 0, (short) ef02_r08.length);
-		
-				break;
-			
-			case (byte) 0x09:
-				bytesLeft = apdu.setOutgoing();
-				apdu.setOutgoingLength((short) ef02_r09.length);
-				apdu.sendBytesLong(ef02_r09, (short) 0, (short) ef02_r09.length);
-		
-				break;
-			}
-	
-			break;
-		case (byte) 0x04: // mostra o pan
-			bytesLeft = apdu.setOutgoing();
-			apdu.setOutgoingLength((short) ef04_r01.length);
-			apdu.sendBytesLong(ef04_r01, (short) 0, (short) ef04_r01.length);
-
-			break;
-		}
-
-		/*
-		 * try { bytesLeft = apdu.setOutgoing(); if (bytesLeft == (short) 0) {
-		 * apdu.setOutgoingLength((short) 0); apdu.sendBytesLong
-		 * (fs[ef][record],(short)0,(short)0); } else {
-		 * apdu.setOutgoingLength((short)fs[ef][record].length);
-		 * apdu.sendBytesLong
-		 * (fs[ef][record],(short)0,(short)fs[ef][record].length); } } catch
-		 * (Exception e) { ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND); }
-		 */
-
-		/*
-		 * switch (buf[ISO7816.OFFSET_P1]) { case (byte) 0x01: bytesLeft =
-		 * apdu.setOutgoing(); if (bytesLeft == (short) 1) {
-		 * apdu.setOutgoingLength((short) 0); apdu.sendBytesLong
-		 * (ef01_r01,(short)0,(short)0); } else {
-		 * apdu.setOutgoingLength((short)ef01_r01.length); apdu.sendBytesLong
-		 * (ef01_r01,(short)0,(short)ef01_r01.length); } break;
-		 * 
-		 * case (short) 0x02: bytesLeft = apdu.setOutgoing(); if (bytesLeft ==
-		 * (short) 1) { apdu.setOutgoingLength((short) 0); apdu.sendBytesLong
-		 * (ef01_r02,(short)0,(short)0); } else {
-		 * apdu.setOutgoingLength((short)ef01_r02.length); apdu.sendBytesLong
-		 * (ef01_r02,(short)0,(short)ef01_r02.length); } break; case (short)
-		 * 0x03: bytesLeft = apdu.setOutgoing(); if (bytesLeft == (short) 1) {
-		 * apdu.setOutgoingLength((short) 0); apdu.sendBytesLong
-		 * (ef01_r03,(short)0,(short)0); } else {
-		 * apdu.setOutgoingLength((short)ef01_r03.length); apdu.sendBytesLong
-		 * (ef01_r03,(short)0,(short)ef01_r03.length); } break; case (short)
-		 * 0x04: bytesLeft = apdu.setOutgoing(); if (bytesLeft == (short) 1) {
-		 * apdu.setOutgoingLength((short) 0); apdu.sendBytesLong
-		 * (ef01_r04,(short)0,(short)0); } else {
-		 * apdu.setOutgoingLength((short)ef01_r04.length); apdu.sendBytesLong
-		 * (ef01_r04,(short)0,(short)ef01_r04.length); } break; case (short)
-		 * 0x05: bytesLeft = apdu.setOutgoing(); if (bytesLeft == (short) 1) {
-		 * apdu.setOutgoingLength((short) 0); apdu.sendBytesLong
-		 * (ef01_r05,(short)0,(short)0); } else {
-		 * apdu.setOutgoingLength((short)ef01_r05.length); apdu.sendBytesLong
-		 * (ef01_r05,(short)0,(short)ef01_r05.length); } break; case (short)
-		 * 0x06: bytesLeft = apdu.setOutgoing(); if (bytesLeft == (short) 1) {
-		 * apdu.setOutgoingLength((short) 0); apdu.sendBytesLong
-		 * (ef01_r06,(short)0,(short)0); } else {
-		 * apdu.setOutgoingLength((short)ef01_r06.length); apdu.sendBytesLong
-		 * (ef01_r06,(short)0,(short)ef01_r06.length); } break; default:
-		 * ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2); }
-		 */
-	}
-
-	public short getCDOL2DataLength() {
-		// TODO Check DOL Length Dinamically (TAG / LENGTH - no value)
-		return 0x11; // 17 bytes
-	}
-
-	public short getCDOL1DataLength() {
-		// TODO Check DOL Length Dinamically (TAG / LENGTH - no value)
-		return 0x20; // 32 bytes
-	}
+package smart;
+
+import javacard.framework.APDU;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+public class FileSystem {
+	/*
+	 * Usual Structure: MF | |-+ EF 01 | --- Record 01 |-+ EF 02 | --- Record 01
+	 * | --- Record 02 |-+ EF 03 | --- Record 01 (for offline data / EMV reader
+	 * different icon) | --- Record 02
+	 */
+
+	// File Allocation Table (for now, use a fixed EF limit)
+	private static final byte EF_1_ID = 1;
+	private static final byte EF_2_ID = 2;
+	private static final byte EF_3_ID = 3;
+	// PSE directory file (See Book 1, Section 12.2.3)
+	private static final byte EF_DIR_ID = 4;
+
+	// Record store geometry: SFIs 1..MAX_SFI with records 1..MAX_RECORDS each
+	private static final byte MAX_SFI = (byte) 4;
+	private static final byte MAX_RECORDS = (byte) 10;
+	public static final short DEFAULT_RECORD_STORE_SIZE = (short) 1024;
+
+	/** All record bodies (tag 70 templates), packed back to back */
+	private final byte[] record_store;
+	private short record_store_used;
+
+	/**
+	 * Size of the record store and longest record accepted, set by the
+	 * install parameters
+	 */
+	private final short record_store_size;
+	private final short max_record_length;
+
+	/**
+	 * Record index, addressed by (SFI - 1) * MAX_RECORDS + (record - 1). A
+	 * length of 0 means the record does not exist.
+	 */
+	private final short[] record_offset;
+	private final short[] record_length;
+
+	/** Highest record number held by each SFI, 0 if the file does not exist */
+	private final byte[] file_records;
+
+	// Data Object Lists found in the records (8C, 8D) and in the FCI (9F38)
+	private final Dol cdol1;
+	private final Dol cdol2;
+	private final Dol pdol;
+
+	/** Sends the records and FCIs, chained with GET RESPONSE if needed */
+	private final Response response;
+
+	/*
+	 * Records loaded into the record store at install time. Each record is a
+	 * complete tag 70 template; default_record_map lists the (SFI, record)
+	 * pair of every record in the order they appear here.
+	 */
+	private final static byte[] default_records = {
+			// SFI 1, record 1
+			(byte) 0x70, (byte) 0x33, (byte) 0x57, (byte) 0x13, (byte) 0x41, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0xD2, (byte) 0x10, (byte) 0x72, (byte) 0x06, (byte) 0x14, (byte) 0x71, (byte) 0x09, (byte) 0x40, (byte) 0x90, (byte) 0x87, (byte) 0x0F, (byte) 0x5F, (byte) 0x20, (byte) 0x08, (byte) 0x4A, (byte) 0x4F, (byte) 0x45, (byte) 0x20, (byte) 0x54, (byte) 0x45, (byte) 0x53, (byte) 0x54, (byte) 0x9F, (byte) 0x1F, (byte) 0x10, (byte) 0x31, (byte) 0x34, (byte) 0x37, (byte) 0x31, (byte) 0x30, (byte) 0x30, (byte) 0x30, (byte) 0x39, (byte) 0x34, (byte) 0x30, (byte) 0x30, (byte) 0x30, (byte) 0x30, (byte) 0x30, (byte) 0x30, (byte) 0x30,
+			// SFI 1, record 2
+			(byte) 0x70, (byte) 0x13, (byte) 0x9F, (byte) 0x08, (byte) 0x02, (byte) 0x00, (byte) 0x8D, (byte) 0x5F, (byte) 0x30, (byte) 0x02, (byte) 0x02, (byte) 0x06, (byte) 0x9F, (byte) 0x42, (byte) 0x02, (byte) 0x09, (byte) 0x86, (byte) 0x9F, (byte) 0x44, (byte) 0x01, (byte) 0x02,
+			// SFI 1, record 3
+			(byte) 0x70, (byte) 0x30, (byte) 0x8C, (byte) 0x15, (byte) 0x9F, (byte) 0x02, (byte) 0x06, (byte) 0x9F, (byte) 0x03, (byte) 0x06, (byte) 0x9F, (byte) 0x1A, (byte) 0x02, (byte) 0x95, (byte) 0x05, (byte) 0x5F, (byte) 0x2A, (byte) 0x02, (byte) 0x9A, (byte) 0x03, (byte) 0x9C, (byte) 0x01, (byte) 0x9F, (byte) 0x37, (byte) 0x04, (byte) 0x8D, (byte) 0x17, (byte) 0x8A, (byte) 0x02, (byte) 0x9F, (byte) 0x02, (byte) 0x06, (byte) 0x9F, (byte) 0x03, (byte) 0x06, (byte) 0x9F, (byte) 0x1A, (byte) 0x02, (byte) 0x95, (byte) 0x05, (byte) 0x5F, (byte) 0x2A, (byte) 0x02, (byte) 0x9A, (byte) 0x03, (byte) 0x9C, (byte) 0x01, (byte) 0x9F, (byte) 0x37, (byte) 0x04,
+			// SFI 2, record 1
+			(byte) 0x70, (byte) 0x0E, (byte) 0x5A, (byte) 0x08, (byte) 0x41, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x11, (byte) 0x5F, (byte) 0x34, (byte) 0x01, (byte) 0x00,
+			// SFI 2, record 2
+			(byte) 0x70, (byte) 0x16, (byte) 0x5F, (byte) 0x24, (byte) 0x03, (byte) 0x21, (byte) 0x07, (byte) 0x31, (byte) 0x9F, (byte) 0x07, (byte) 0x02, (byte) 0xFF, (byte) 0x80, (byte) 0x5F, (byte) 0x28, (byte) 0x02, (byte) 0x00, (byte) 0x76, (byte) 0x5F, (byte) 0x25, (byte) 0x03, (byte) 0x15, (byte) 0x07, (byte) 0x23,
+			// SFI 2, record 3
+			(byte) 0x70, (byte) 0x81, (byte) 0xE0, (byte) 0x8F, (byte) 0x01, (byte) 0x08, (byte) 0x90, (byte) 0x81, (byte) 0xB0, (byte) 0xBF, (byte) 0x63, (byte) 0xBF, (byte) 0xF5, (byte) 0x61, (byte) 0x97, (byte) 0x0C, (byte) 0x85, (byte) 0xA8, (byte) 0x27, (byte) 0xAD, (byte) 0xAB, (byte) 0xF8, (byte) 0x56, (byte) 0x68, (byte) 0x0B, (byte) 0xD6, (byte) 0x81, (byte) 0xD0, (byte) 0x99, (byte) 0xDD, (byte) 0xDD, (byte) 0x9F, (byte) 0xD4, (byte) 0xD9, (byte) 0xAB, (byte) 0xE5, (byte) 0x85, (byte) 0x09, (byte) 0xEC, (byte) 0x65, (byte) 0x38, (byte) 0x0C, (byte) 0xA5, (byte) 0xEE, (byte) 0x87, (byte) 0x3C, (byte) 0xA4, (byte) 0x9A, (byte) 0x15, (byte) 0x68, (byte) 0xEA, (byte) 0x77, (byte) 0x8B, (byte) 0x0A, (byte) 0x29, (byte) 0x9A, (byte) 0x83, (byte) 0x45, (byte) 0x8A, (byte) 0x8A, (byte) 0x0D, (byte) 0x70, (byte) 0x47, (byte) 0x3F, (byte) 0xE3, (byte) 0x5E, (byte) 0xF1, (byte) 0x36, (byte) 0x98, (byte) 0xBA, (byte) 0x6F, (byte) 0x94, (byte) 0xDF, (byte) 0xAB, (byte) 0x19, (byte) 0x43, (byte) 0xD9, (byte) 0xEF, (byte) 0x75, (byte) 0xAC, (byte) 0x3B, (byte) 0xFE, (byte) 0xC1, (byte) 0x6B, (byte) 0x47, (byte) 0x74, (byte) 0x4D, (byte) 0x32, (byte) 0x02, (byte) 0xA6, (byte) 0x03, (byte) 0x78, (byte) 0x31, (byte) 0x96, (byte) 0x0E, (byte) 0x1A, (byte) 0x2A, (byte) 0xF4, (byte) 0x30, (byte) 0xAE, (byte) 0x41, (byte) 0xDB, (byte) 0xD3, (byte) 0xE9, (byte) 0x63, (byte) 0xE0, (byte) 0x08, (byte) 0xD7, (byte) 0x91, (byte) 0xE7, (byte) 0xDC, (byte) 0x8F, (byte) 0x46, (byte) 0xC2, (byte) 0x54, (byte) 0x24, (byte) 0xFF, (byte) 0xF8, (byte) 0x08, (byte) 0xB5, (byte) 0xE3, (byte) 0xEE, (byte) 0xBC, (byte) 0x96, (byte) 0x0F, (byte) 0x80, (byte) 0xBD, (byte) 0x8E, (byte) 0x0F, (byte) 0x82, (byte) 0xD6, (byte) 0xC1, (byte) 0x98, (byte) 0x14, (byte) 0x00, (byte) 0xA9, (byte) 0xC7, (byte) 0x32, (byte) 0x3E, (byte) 0xE3, (byte) 0x38, (byte) 0x8D, (byte) 0xA4, (byte) 0xFA, (byte) 0xFF, (byte) 0x7B, (byte) 0xFE, (byte) 0x53, (byte) 0xA5, (byte) 0x98, (byte) 0xDA, (byte) 0x10, (byte) 0xC1, (byte) 0xB1, (byte) 0xDE, (byte) 0xF7, (byte) 0x5A, (byte) 0x6F, (byte) 0x7D, (byte) 0xE7, (byte) 0xC8, (byte) 0x71, (byte) 0x25, (byte) 0xC7, (byte) 0xB3, (byte) 0x74, (byte) 0x15, (byte) 0x86, (byte) 0x5F, (byte) 0x6B, (byte) 0xE0, (byte) 0x48, (byte) 0xDB, (byte) 0x66, (byte) 0x0F, (byte) 0x9D, (byte) 0x50, (byte) 0xC9, (byte) 0xB2, (byte) 0x5C, (byte) 0xF8, (byte) 0x1A, (byte) 0xBB, (byte) 0x96, (byte) 0x73, (byte) 0x9F, (byte) 0x32, (byte) 0x01, (byte) 0x03, (byte) 0x92, (byte) 0x24, (byte) 0xF8, (byte) 0xE1, (byte) 0x75, (byte) 0x61, (byte) 0x48, (byte) 0x32, (byte) 0x33, (byte) 0xFA, (byte) 0x5B, (byte) 0x36, (byte) 0x40, (byte) 0xBA, (byte) 0xE1, (byte) 0xCD, (byte) 0x7D, (byte) 0xA5, (byte) 0xEC, (byte) 0x55, (byte) 0xF4, (byte) 0xC4, (byte) 0xB3, (byte) 0x24, (byte) 0x61, (byte) 0xC6, (byte) 0x87, (byte) 0x39, (byte) 0xF8, (byte) 0x79, (byte) 0xBC, (byte) 0x9F, (byte) 0xB8, (byte) 0xD8, (byte) 0xEE, (byte) 0xA9, (byte) 0x0D, (byte) 0x2D,
+			// SFI 2, record 4
+			(byte) 0x70, (byte) 0x1C, (byte) 0x9F, (byte) 0x0E, (byte) 0x05, (byte) 0x2C, (byte) 0x10, (byte) 0x98, (byte) 0x00, (byte) 0x00, (byte) 0x9F, (byte) 0x0F, (byte) 0x05, (byte) 0xD0, (byte) 0x68, (byte) 0x24, (byte) 0xF8, (byte) 0x00, (byte) 0x9F, (byte) 0x0D, (byte) 0x05, (byte) 0xD0, (byte) 0x68, (byte) 0x24, (byte) 0xA8, (byte) 0x00, (byte) 0x9F, (byte) 0x4A, (byte) 0x01, (byte) 0x82,
+			// SFI 2, record 5
+			(byte) 0x70, (byte) 0x16, (byte) 0x8E, (byte) 0x14, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x42, (byte) 0x01, (byte) 0x41, (byte) 0x03, (byte) 0x02, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+			// SFI 2, record 6
+			(byte) 0x70, (byte) 0x81, (byte) 0xB3, (byte) 0x93, (byte) 0x81, (byte) 0xB0, (byte) 0x8E, (byte) 0x69, (byte) 0xF5, (byte) 0xFA, (byte) 0x9C, (byte) 0xBC, (byte) 0xB6, (byte) 0x5B, (byte) 0x1C, (byte) 0x97, (byte) 0xCE, (byte) 0x3A, (byte) 0xB3, (byte) 0xBC, (byte) 0x5E, (byte) 0xE6, (byte) 0x3C, (byte) 0xB4, (byte) 0x0C, (byte) 0x7A, (byte) 0xF4, (byte) 0x5B, (byte) 0xFE, (byte) 0xED, (byte) 0x4C, (byte) 0x5E, (byte) 0xB7, (byte) 0x1A, (byte) 0xE1, (byte) 0x10, (byte) 0x57, (byte) 0x10, (byte) 0x62, (byte) 0x24, (byte) 0xFD, (byte) 0x78, (byte) 0x24, (byte) 0x80, (byte) 0x8E, (byte) 0xA1, (byte) 0x8B, (byte) 0x38, (byte) 0xF9, (byte) 0x79, (byte) 0x9F, (byte) 0x3C, (byte) 0xF8, (byte) 0x66, (byte) 0x41, (byte) 0xB2, (byte) 0xB0, (byte) 0x8B, (byte) 0xED, (byte) 0x29, (byte) 0x22, (byte) 0xB4, (byte) 0xB3, (byte) 0x77, (byte) 0x31, (byte) 0x3F, (byte) 0x6D, (byte) 0xF1, (byte) 0x19, (byte) 0x13, (byte) 0x3D, (byte) 0xBD, (byte) 0xC9, (byte) 0x3B, (byte) 0x14, (byte) 0x31, (byte) 0x09, (byte) 0xAD, (byte) 0x26, (byte) 0xCE, (byte) 0xBC, (byte) 0x7B, (byte) 0xB4, (byte) 0xF7, (byte) 0x10, (byte) 0x1F, (byte) 0x53, (byte) 0xE4, (byte) 0x99, (byte) 0xCA, (byte) 0x05, (byte) 0x22, (byte) 0x0D, (byte) 0x3C, (byte) 0xC6, (byte) 0xF6, (byte) 0xE3, (byte) 0xE0, (byte) 0x37, (byte) 0x86, (byte) 0xBC, (byte) 0x27, (byte) 0x47, (byte) 0x27, (byte) 0x42, (byte) 0x0D, (byte) 0x3A, (byte) 0x91, (byte) 0x00, (byte) 0xB0, (byte) 0x5F, (byte) 0xE8, (byte) 0x51, (byte) 0x41, (byte) 0x65, (byte) 0x8D, (byte) 0xA7, (byte) 0xD0, (byte) 0x68, (byte) 0x9C, (byte) 0x7C, (byte) 0x20, (byte) 0xF2, (byte) 0x82, (byte) 0xAE, (byte) 0x21, (byte) 0x58, (byte) 0x0F, (byte) 0xC4, (byte) 0x25, (byte) 0x2E, (byte) 0x30, (byte) 0xC6, (byte) 0xFA, (byte) 0x60, (byte) 0xF1, (byte) 0x80, (byte) 0x56, (byte) 0x93, (byte) 0xFB, (byte) 0xEF, (byte) 0x5D, (byte) 0xFF, (byte) 0xEF, (byte) 0xB0, (byte) 0x9A, (byte) 0x11, (byte) 0x04, (byte) 0xEC, (byte) 0x22, (byte) 0x5A, (byte) 0xB7, (byte) 0x9D, (byte) 0xD4, (byte) 0xC8, (byte) 0xCA, (byte) 0xCC, (byte) 0x25, (byte) 0x34, (byte) 0xF6, (byte) 0xEF, (byte) 0x1B, (byte) 0x2D, (byte) 0xB6, (byte) 0xA1, (byte) 0x96, (byte) 0xE2, (byte) 0x1B, (byte) 0x40, (byte) 0xB6, (byte) 0xD3, (byte) 0xAD, (byte) 0x8A, (byte) 0xC0, (byte) 0x99, (byte) 0xA6, (byte) 0x4C, (byte) 0x8C, (byte) 0x70, (byte) 0xBE, (byte) 0xD2, (byte) 0x8C,
+			// SFI 2, record 7
+			(byte) 0x70, (byte) 0x1C, (byte) 0x9F, (byte) 0x0E, (byte) 0x05, (byte) 0x2C, (byte) 0x10, (byte) 0x98, (byte) 0x00, (byte) 0x00, (byte) 0x9F, (byte) 0x0F, (byte) 0x05, (byte) 0xD0, (byte) 0x68, (byte) 0x24, (byte) 0xF8, (byte) 0x00, (byte) 0x9F, (byte) 0x0D, (byte) 0x05, (byte) 0xD0, (byte) 0x68, (byte) 0x24, (byte) 0xA8, (byte) 0x00, (byte) 0x9F, (byte) 0x4A, (byte) 0x01, (byte) 0x82,
+			// SFI 2, record 8
+			(byte) 0x70, (byte) 0x16, (byte) 0x8E, (byte) 0x14, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x42, (byte) 0x03, (byte) 0x41, (byte) 0x03, (byte) 0x1E, (byte) 0x03, (byte) 0x1F, (byte) 0x03, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x00,
+			// SFI 2, record 9
+			(byte) 0x70, (byte) 0x81, (byte) 0xB3, (byte) 0x93, (byte) 0x81, (byte) 0xB0, (byte) 0x9F, (byte) 0x06, (byte) 0x1E, (byte) 0xEF, (byte) 0x4A, (byte) 0x23, (byte) 0xD0, (byte) 0x1B, (byte) 0x46, (byte) 0x5E, (byte) 0x86, (byte) 0x42, (byte) 0x3C, (byte) 0xBA, (byte) 0xD1, (byte) 0x88, (byte) 0x87, (byte) 0xE2, (byte) 0x43, (byte) 0x02, (byte) 0x9D, (byte) 0x79, (byte) 0x69, (byte) 0x54, (byte) 0x90, (byte) 0xA3, (byte) 0xC2, (byte) 0x1C, (byte) 0xB1, (byte) 0x4E, (byte) 0xFD, (byte) 0x8D, (byte) 0xAC, (byte) 0xAD, (byte) 0x94, (byte) 0x22, (byte) 0x77, (byte) 0x34, (byte) 0xB1, (byte) 0x6D, (byte) 0xCE, (byte) 0x2C, (byte) 0xA3, (byte) 0x65, (byte) 0x0B, (byte) 0x5C, (byte) 0xA0, (byte) 0xC9, (byte) 0x21, (byte) 0x88, (byte) 0x0A, (byte) 0x24, (byte) 0x8E, (byte) 0x04, (byte) 0x40, (byte) 0x15, (byte) 0xA6, (byte) 0x0D, (byte) 0xDA, (byte) 0x42, (byte) 0x08, (byte) 0x03, (byte) 0x57, (byte) 0x1A, (byte) 0x03, (byte) 0x42, (byte) 0x2D, (byte) 0x59, (byte) 0x5F, (byte) 0xD3, (byte) 0xB5, (byte) 0x91, (byte) 0x43, (byte) 0x75, (byte) 0x5B, (byte) 0xD5, (byte) 0x32, (byte) 0x77, (byte) 0x7C, (byte) 0x3A, (byte) 0x25, (byte) 0xAB, (byte) 0x1C, (byte) 0x95, (byte) 0x32, (byte) 0x18, (byte) 0xBF, (byte) 0xF8, (byte) 0xEC, (byte) 0x0E, (byte) 0xFA, (byte) 0xA0, (byte) 0x41, (byte) 0x1B, (byte) 0x6E, (byte) 0x62, (byte) 0xF0, (byte) 0x67, (byte) 0xED, (byte) 0x21, (byte) 0x35, (byte) 0x49, (byte) 0xA1, (byte) 0x27, (byte) 0x30, (byte) 0xCB, (byte) 0x47, (byte) 0x0A, (byte) 0xAE, (byte) 0x59, (byte) 0xB7, (byte) 0x01, (byte) 0x1E, (byte) 0xDE, (byte) 0x7D, (byte) 0x43, (byte) 0x1E, (byte) 0x66, (byte) 0x04, (byte) 0xBF, (byte) 0x72, (byte) 0x97, (byte) 0xD6, (byte) 0x86, (byte) 0x42, (byte) 0x0F, (byte) 0xBF, (byte) 0xB5, (byte) 0x4D, (byte) 0xBE, (byte) 0x44, (byte) 0x74, (byte) 0x95, (byte) 0x67, (byte) 0xE6, (byte) 0x1A, (byte) 0x98, (byte) 0xC1, (byte) 0x7B, (byte) 0x10, (byte) 0x8A, (byte) 0xB8, (byte) 0xF2, (byte) 0x59, (byte) 0xA1, (byte) 0x2E, (byte) 0xAD, (byte) 0x14, (byte) 0xA6, (byte) 0xF7, (byte) 0x00, (byte) 0x06, (byte) 0x31, (byte) 0xB6, (byte) 0x42, (byte) 0x7C, (byte) 0xAD, (byte) 0xFE, (byte) 0x49, (byte) 0xAC, (byte) 0xE9, (byte) 0x71, (byte) 0xBD, (byte) 0xCA, (byte) 0xE6, (byte) 0xAD, (byte) 0x7C, (byte) 0x23, (byte) 0x67, (byte) 0xE3, (byte) 0x58, (byte) 0xA9, (byte) 0x05, (byte) 0xD2, (byte) 0xAD, (byte) 0x7C };
+
+	private final static byte[] default_record_map = { EF_1_ID, (byte) 0x01, EF_1_ID, (byte) 0x02, EF_1_ID, (byte) 0x03, EF_2_ID, (byte) 0x01, EF_2_ID, (byte) 0x02, EF_2_ID, (byte) 0x03, EF_2_ID, (byte) 0x04, EF_2_ID, (byte) 0x05, EF_2_ID, (byte) 0x06, EF_2_ID, (byte) 0x07, EF_2_ID, (byte) 0x08, EF_2_ID, (byte) 0x09 };
+
+	/** AID of the application, as registered in the JCOP project */
+	private final static byte[] aid = { (byte) 0xA0, (byte) 0x00, (byte) 0x00,
+			(byte) 0x00, (byte) 0x03, (byte) 0x20, (byte) 0x10 };
+
+	// Directory Definition File names (See Book 1, Section 12.2.2)
+	private final static byte[] pse_name = { (byte) '1', (byte) 'P',
+			(byte) 'A', (byte) 'Y', (byte) '.', (byte) 'S', (byte) 'Y',
+			(byte) 'S', (byte) '.', (byte) 'D', (byte) 'D', (byte) 'F',
+			(byte) '0', (byte) '1' };
+	private final static byte[] ppse_name = { (byte) '2', (byte) 'P',
+			(byte) 'A', (byte) 'Y', (byte) '.', (byte) 'S', (byte) 'Y',
+			(byte) 'S', (byte) '.', (byte) 'D', (byte) 'D', (byte) 'F',
+			(byte) '0', (byte) '1' };
+
+	/*
+	 * Default data objects of the FCI Proprietary Template (A5) of the
+	 * application: Application Priority Indicator (87), Application Label
+	 * (50), PDOL (9F38), Language Preference (5F2D), Issuer Code Table Index
+	 * (9F11), Application Preferred Name (9F12) and the FCI Issuer
+	 * Discretionary Data (BF0C) holding the Log Entry (9F4D) of the
+	 * transaction log. The FCIs of the application, of the PSE and of the
+	 * PPSE are all built from these.
+	 */
+	private final static byte[] default_fci_proprietary_data = { (byte) 0x87,
+			(byte) 0x01, (byte) 0x02, (byte) 0x50, (byte) 0x0C, (byte) 0x56,
+			(byte) 0x49, (byte) 0x53, (byte) 0x41, (byte) 0x45, (byte) 0x4C,
+			(byte) 0x45, (byte) 0x43, (byte) 0x54, (byte) 0x52, (byte) 0x4F,
+			(byte) 0x4E, (byte) 0x9F, (byte) 0x38, (byte) 0x03, (byte) 0x9F,
+			(byte) 0x1A, (byte) 0x02, (byte) 0x5F, (byte) 0x2D, (byte) 0x02,
+			(byte) 0x70, (byte) 0x74, (byte) 0x9F, (byte) 0x11, (byte) 0x01,
+			(byte) 0x01, (byte) 0x9F, (byte) 0x12, (byte) 0x06, (byte) 0x44,
+			(byte) 0x45, (byte) 0x42, (byte) 0x49, (byte) 0x54, (byte) 0x4F,
+			(byte) 0xBF, (byte) 0x0C, (byte) 0x05, (byte) 0x9F, (byte) 0x4D,
+			(byte) 0x02, TransactionLog.SFI, TransactionLog.RECORDS };
+
+	/**
+	 * Data objects of the FCI Proprietary Template in use, the default ones
+	 * until STORE DATA replaces them
+	 */
+	private final byte[] fci_proprietary_data;
+	private short fci_proprietary_length;
+	private static final short FCI_PROPRIETARY_SIZE = (short) 96;
+
+	// Responses to SELECT, kept in the select store
+	public static final byte FCI_APPLICATION = (byte) 0;
+	public static final byte FCI_PSE = (byte) 1;
+	public static final byte FCI_PPSE = (byte) 2;
+	private static final short SELECT_STORE_SIZE = (short) 256;
+	/** Longest application label (tag 50), see Book 1, Annex B */
+	private static final short MAX_LABEL_LENGTH = (short) 16;
+
+	/** The FCIs built by buildFCIs, packed back to back */
+	private final byte[] select_store;
+	private final short[] fci_offset;
+	private final short[] fci_length;
+
+	/*
+	 * AIP - TAG 82 5C00 (01011100) ---- 4000 SDA supported 1000 Cardholder
+	 * verification supported 0800 Terminal risk management is to be performed
+	 * 0400 Issuer authentication is supported
+	 */
+	private short aip = (short) 0x5C00;
+
+	/*
+	 * Default AFL: TAG 94 - 4 bytes per entry: SFI << 3, first record, last
+	 * record, number of records involved in offline data authentication
+	 */
+	private final static byte[] default_afl = {
+			// 080103001001030210040501 = 08010300 10010302 10040501
+			(byte) 0x08, (byte) 0x01, (byte) 0x03, (byte) 0x00, (byte) 0x10,
+			(byte) 0x01, (byte) 0x03, (byte) 0x02, (byte) 0x10, (byte) 0x04,
+			(byte) 0x05, (byte) 0x01 };
+
+	/*
+	 * AFL of the contactless profile, where the cryptogram is returned by GPO:
+	 * only the records the terminal still needs to read, ie. the track 2
+	 * equivalent data and cardholder name (SFI 1, record 1) and the PAN and
+	 * expiry date (SFI 2, records 1 and 2)
+	 */
+	public final static byte[] contactless_afl = {
+			// 0801010010010200 = 08010100 10010200
+			(byte) 0x08, (byte) 0x01, (byte) 0x01, (byte) 0x00, (byte) 0x10,
+			(byte) 0x01, (byte) 0x02, (byte) 0x00 };
+
+	/** AFL in use, the default one until STORE DATA replaces it */
+	private final byte[] afl;
+	private short afl_length;
+	private static final short MAX_AFL_LENGTH = (short) 32;
+
+	// GET PROCESSING OPTIONS response formats (See Book 3, Section 6.5.8.4)
+	public static final byte GPO_FORMAT_1 = (byte) 0x80;
+	public static final byte GPO_FORMAT_2 = (byte) 0x77;
+
+	/** GET PROCESSING OPTIONS response, built from the AIP and the AFL */
+	private final byte[] gpo_response;
+	private short gpo_response_length;
+	private byte gpo_format;
+
+	/**
+	 * Start of the contactless GET PROCESSING OPTIONS response: 77 L 82 02
+	 * [AIP] 94 L [contactless AFL]. Crypto appends the AC data objects and
+	 * sets the length.
+	 */
+	private final byte[] contactless_gpo_header;
+
+	public short getAIP() {
+		return aip;
+	}
+
+	public void setAIP(short newAip) {
+		aip = newAip;
+		buildGPOResponse(gpo_format);
+	}
+
+	/*
+	 * Builds the GET PROCESSING OPTIONS response from the AIP and the AFL,
+	 * either in Format 1 (80 L [AIP] [AFL]) or in Format 2 (77 L 82 02 [AIP]
+	 * 94 L [AFL]). The response only changes with the AIP / AFL, so GPO just
+	 * copies it out. The start of the contactless response, which always uses
+	 * Format 2, is rebuilt along with it.
+	 */
+	void buildGPOResponse(byte format) {
+		short offset;
+		gpo_format = format;
+		gpo_response[0] = format;
+
+		if (format == GPO_FORMAT_1) {
+			Util.setShort(gpo_response, (short) 2, aip);
+			offset = 4;
+		} else {
+			gpo_response[2] = (byte) 0x82;
+			gpo_response[3] = (byte) 0x02;
+			Util.setShort(gpo_response, (short) 4, aip);
+			gpo_response[6] = (byte) 0x94;
+			gpo_response[7] = (byte) afl_length;
+			offset = 8;
+		}
+		offset = Util.arrayCopy(afl, (short) 0, gpo_response, offset,
+				afl_length);
+
+		gpo_response[1] = (byte) (offset - 2);
+		gpo_response_length = offset;
+
+		contactless_gpo_header[0] = GPO_FORMAT_2;
+		contactless_gpo_header[2] = (byte) 0x82;
+		contactless_gpo_header[3] = (byte) 0x02;
+		Util.setShort(contactless_gpo_header, (short) 4, aip);
+		contactless_gpo_header[6] = (byte) 0x94;
+		contactless_gpo_header[7] = (byte) contactless_afl.length;
+		Util.arrayCopy(contactless_afl, (short) 0, contactless_gpo_header,
+				(short) 8, (short) contactless_afl.length);
+	}
+
+	/*
+	 * Copies the GET PROCESSING OPTIONS response to the given buffer and
+	 * returns its length
+	 */
+	public short getGPOResponse(byte[] buf, short offset) {
+		Util.arrayCopyNonAtomic(gpo_response, (short) 0, buf, offset,
+				gpo_response_length);
+		return gpo_response_length;
+	}
+
+	public short getGPOResponseLength() {
+		return gpo_response_length;
+	}
+
+	/*
+	 * Copies the start of the contactless GET PROCESSING OPTIONS response to
+	 * the given buffer. Its length byte is left for the caller to set.
+	 */
+	public void getContactlessGPOHeader(byte[] buf, short offset) {
+		Util.arrayCopyNonAtomic(contactless_gpo_header, (short) 0, buf,
+				offset, (short) contactless_gpo_header.length);
+	}
+
+	public short getContactlessGPOHeaderLength() {
+		return (short) contactless_gpo_header.length;
+	}
+
+	/*
+	 * Process the SELECT APDU (INS=A4) by DF name (P1=04), for the PSE, the
+	 * PPSE or the application (See Book 1, Section 11.3). Selection by file
+	 * identifier is not supported: comercial EMV only uses the select by name.
+	 * 
+	 * When the JCRE selects the applet (selectingApplet is true) the name
+	 * already matched one of its AIDs. Otherwise the applet is only asked for
+	 * names no applet is registered with, and answers for the PSE, the PPSE
+	 * and its own AID, which may be given partially (Book 1, Section 12.3.3).
+	 * The FCI sent back is prebuilt by buildFCIs.
+	 */
+	public void selectFile(APDU apdu, boolean selectingApplet) {
+		byte[] buf = apdu.getBuffer();
+
+		if (buf[ISO7816.OFFSET_P1] != (byte) 0x04) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+		if (buf[ISO7816.OFFSET_P2] == (byte) 0x02) {
+			// next occurrence: this applet holds a single one
+			ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+		}
+		if (buf[ISO7816.OFFSET_P2] != (byte) 0x00) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+		short len = (short) (buf[ISO7816.OFFSET_LC] & 0xFF);
+		if (len != apdu.setIncomingAndReceive()) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+
+		byte fci = FCI_APPLICATION;
+		if (len == (short) pse_name.length
+				&& Util.arrayCompare(buf, ISO7816.OFFSET_CDATA, pse_name,
+						(short) 0, len) == 0) {
+			fci = FCI_PSE;
+		} else if (len == (short) ppse_name.length
+				&& Util.arrayCompare(buf, ISO7816.OFFSET_CDATA, ppse_name,
+						(short) 0, len) == 0) {
+			fci = FCI_PPSE;
+		} else if (!selectingApplet
+				&& (len < 5 || len > (short) aid.length || Util.arrayCompare(
+						buf, ISO7816.OFFSET_CDATA, aid, (short) 0, len) != 0)) {
+			ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+		}
+
+		response.send(apdu, select_store, fci_offset[fci], fci_length[fci]);
+	}
+
+	/*
+	 * Builds the FCIs returned by SELECT (See Book 1, Section 11.3.4) from the
+	 * stored data objects, once, into the select store:
+	 * 
+	 * application: 6F L 84 L [AID] A5 L [FCI proprietary data]
+	 * 
+	 * PSE: 6F L 84 L [1PAY.SYS.DDF01] A5 L 88 01 [directory SFI] 5F2D L
+	 * [language]
+	 * 
+	 * PPSE: 6F L 84 L [2PAY.SYS.DDF01] A5 L BF0C L [directory entry]
+	 * 
+	 * The directory entry of the application, 61 L 4F L [AID] 50 L [label] 87
+	 * 01 [priority], is also the single record of the PSE directory file.
+	 */
+	private void buildFCIs() {
+		short language = Tlv.find(fci_proprietary_data, (short) 0,
+				fci_proprietary_length, (short) 0x5F2D);
+		short entryLength = getDirectoryEntryLength(fci_proprietary_data,
+				(short) 0, fci_proprietary_length);
+		// size of the directory entry, 61 L included
+		short entrySize = (short) (Tlv.getHeaderSize((short) 0x0061,
+				entryLength) + entryLength);
+		short offset = 0;
+		short length;
+
+		// application
+		fci_offset[FCI_APPLICATION] = offset;
+		length = fci_proprietary_length;
+		offset = setFCIHeader(offset, aid, (short) (Tlv.getHeaderSize(
+				(short) 0x00A5, length) + length));
+		offset = Tlv.setHeader(select_store, offset, (short) 0x00A5, length);
+		offset = Util.arrayCopy(fci_proprietary_data, (short) 0, select_store,
+				offset, length);
+		fci_length[FCI_APPLICATION] = (short) (offset
+				- fci_offset[FCI_APPLICATION]);
+
+		// PSE
+		fci_offset[FCI_PSE] = offset;
+		length = (short) (3 + getSize(fci_proprietary_data, language));
+		offset = setFCIHeader(offset, pse_name, (short) (Tlv.getHeaderSize(
+				(short) 0x00A5, length) + length));
+		offset = Tlv.setHeader(select_store, offset, (short) 0x00A5, length);
+		offset = Tlv.setHeader(select_store, offset, (short) 0x0088,
+				(short) 1);
+		select_store[offset++] = EF_DIR_ID;
+		offset = copyTlv(fci_proprietary_data, language, select_store, offset);
+		fci_length[FCI_PSE] = (short) (offset - fci_offset[FCI_PSE]);
+
+		// PPSE
+		fci_offset[FCI_PPSE] = offset;
+		length = (short) (Tlv.getHeaderSize((short) 0xBF0C, entrySize)
+				+ entrySize);
+		offset = setFCIHeader(offset, ppse_name, (short) (Tlv.getHeaderSize(
+				(short) 0x00A5, length) + length));
+		offset = Tlv.setHeader(select_store, offset, (short) 0x00A5, length);
+		offset = Tlv.setHeader(select_store, offset, (short) 0xBF0C,
+				entrySize);
+		offset = writeDirectoryEntry(offset);
+		fci_length[FCI_PPSE] = (short) (offset - fci_offset[FCI_PPSE]);
+
+		// The PSE directory record is built in the free end of the select
+		// store and copied to the record store from there
+		length = writeDirectoryEntry(Tlv.setHeader(select_store, offset,
+				(short) 0x0070, entrySize));
+		storeRecord(EF_DIR_ID, (byte) 1, select_store, offset,
+				(short) (length - offset));
+	}
+
+	/*
+	 * Writes 6F L 84 L [name] into the select store, for an FCI whose A5
+	 * template takes the given size, and returns the offset following it
+	 */
+	private short setFCIHeader(short offset, byte[] name, short size) {
+		short length = (short) name.length;
+		offset = Tlv.setHeader(select_store, offset, (short) 0x006F,
+				(short) (Tlv.getHeaderSize((short) 0x0084, length) + length
+						+ size));
+		offset = Tlv.setHeader(select_store, offset, (short) 0x0084, length);
+		return Util.arrayCopy(name, (short) 0, select_store, offset, length);
+	}
+
+	/*
+	 * Returns the length of the value of the directory entry (tag 61), for
+	 * the FCI proprietary data at buf[offset..offset + length)
+	 */
+	private short getDirectoryEntryLength(byte[] buf, short offset,
+			short length) {
+		return (short) (Tlv.getHeaderSize((short) 0x004F, (short) aid.length)
+				+ aid.length
+				+ getSize(buf, Tlv.find(buf, offset, length, (short) 0x0050))
+				+ getSize(buf, Tlv.find(buf, offset, length, (short) 0x0087)));
+	}
+
+	/*
+	 * Returns the space buildFCIs takes in the select store, the PSE
+	 * directory record included, for the FCI proprietary data at
+	 * buf[offset..offset + length)
+	 */
+	private short getSelectStoreSize(byte[] buf, short offset, short length) {
+		short entryLength = getDirectoryEntryLength(buf, offset, length);
+		short entrySize = (short) (Tlv.getHeaderSize((short) 0x0061,
+				entryLength) + entryLength);
+		short ppseLength = (short) (Tlv.getHeaderSize((short) 0xBF0C,
+				entrySize) + entrySize);
+		return (short) (getFCISize(aid, length)
+				+ getFCISize(pse_name, (short) (3 + getSize(buf, Tlv.find(buf,
+						offset, length, (short) 0x5F2D))))
+				+ getFCISize(ppse_name, ppseLength)
+				+ Tlv.getHeaderSize((short) 0x0070, entrySize) + entrySize);
+	}
+
+	/*
+	 * Returns the size of 6F L 84 L [name] A5 L [data], for an A5 template of
+	 * the given length
+	 */
+	private static short getFCISize(byte[] name, short length) {
+		short size = (short) (Tlv.getHeaderSize((short) 0x0084,
+				(short) name.length) + name.length
+				+ Tlv.getHeaderSize((short) 0x00A5, length) + length);
+		return (short) (Tlv.getHeaderSize((short) 0x006F, size) + size);
+	}
+
+	/*
+	 * Writes the directory entry of the application into the select store,
+	 * and returns the offset following it
+	 */
+	private short writeDirectoryEntry(short offset) {
+		short length = fci_proprietary_length;
+		offset = Tlv.setHeader(select_store, offset, (short) 0x0061,
+				getDirectoryEntryLength(fci_proprietary_data, (short) 0,
+						length));
+		offset = Tlv.setHeader(select_store, offset, (short) 0x004F,
+				(short) aid.length);
+		offset = Util.arrayCopy(aid, (short) 0, select_store, offset,
+				(short) aid.length);
+		offset = copyTlv(fci_proprietary_data, Tlv.find(fci_proprietary_data,
+				(short) 0, length, (short) 0x0050), select_store, offset);
+		return copyTlv(fci_proprietary_data, Tlv.find(fci_proprietary_data,
+				(short) 0, length, (short) 0x0087), select_store, offset);
+	}
+
+	/* Returns the size of the TLV at offset, or 0 if it was not found (-1) */
+	private static short getSize(byte[] buf, short offset) {
+		if (offset < 0) {
+			return 0;
+		}
+		return Tlv.getSize(buf, offset);
+	}
+
+	/*
+	 * Copies the TLV at offset, if it was found, and returns the offset
+	 * following the copy
+	 */
+	private static short copyTlv(byte[] buf, short offset, byte[] dest,
+			short destOffset) {
+		if (offset < 0) {
+			return destOffset;
+		}
+		return Util.arrayCopy(buf, offset, dest, destOffset, Tlv.getSize(buf,
+				offset));
+	}
+
+	public FileSystem(Response response, short storeSize,
+			short maxRecordLength) {
+		this.response = response;
+		record_store_size = storeSize;
+		max_record_length = maxRecordLength;
+		record_store = new byte[storeSize];
+		record_offset = new short[(short) (MAX_SFI * MAX_RECORDS)];
+		record_length = new short[(short) (MAX_SFI * MAX_RECORDS)];
+		file_records = new byte[MAX_SFI];
+		cdol1 = new Dol();
+		cdol2 = new Dol();
+		pdol = new Dol();
+		fci_proprietary_data = new byte[FCI_PROPRIETARY_SIZE];
+		fci_proprietary_length = Util.arrayCopy(default_fci_proprietary_data,
+				(short) 0, fci_proprietary_data, (short) 0,
+				(short) default_fci_proprietary_data.length);
+		afl = new byte[MAX_AFL_LENGTH];
+		afl_length = Util.arrayCopy(default_afl, (short) 0, afl, (short) 0,
+				(short) default_afl.length);
+		gpo_response = new byte[(short) (MAX_AFL_LENGTH + 8)];
+		select_store = new byte[SELECT_STORE_SIZE];
+		fci_offset = new short[3];
+		fci_length = new short[3];
+		contactless_gpo_header = new byte[(short) (contactless_afl.length + 8)];
+
+		short offset = 0;
+		for (short i = 0; i < (short) default_record_map.length; i += 2) {
+			short length = Tlv.getSize(default_records, offset);
+			storeRecord(default_record_map[i],
+					default_record_map[(short) (i + 1)], default_records, offset,
+					length);
+			offset = (short) (offset + length);
+		}
+		buildFCIs();
+		parseDols();
+		buildGPOResponse(GPO_FORMAT_1);
+	}
+
+	/*
+	 * Parses the CDOL1 (8C) and CDOL2 (8D) found in the records and the PDOL
+	 * (9F38) found in the FCI. This has to be done again whenever the records
+	 * or the FCI change, so GENERATE AC and GPO never parse a DOL themselves.
+	 */
+	void parseDols() {
+		loadDol(cdol1, record_store, findRecordTag((short) 0x008C));
+		loadDol(cdol2, record_store, findRecordTag((short) 0x008D));
+		loadDol(pdol, fci_proprietary_data, Tlv.find(fci_proprietary_data,
+				(short) 0, fci_proprietary_length,
+				(short) 0x9F38));
+	}
+
+	private static void loadDol(Dol dol, byte[] buf, short offset) {
+		if (offset < 0) {
+			dol.clear();
+		} else {
+			dol.parse(buf, Tlv.getValueOffset(buf, offset),
+					Tlv.getValueLength(buf, offset));
+		}
+	}
+
+	/*
+	 * Looks for the given tag in all the records, and returns its offset in
+	 * the record store, or -1
+	 */
+	private short findRecordTag(short tag) {
+		for (short i = 0; i < (short) record_length.length; i++) {
+			if (record_length[i] != 0) {
+				short offset = Tlv.find(record_store, record_offset[i],
+						record_length[i], tag);
+				if (offset >= 0) {
+					return offset;
+				}
+			}
+		}
+		return (short) -1;
+	}
+
+	/*
+	 * Stores a record under the given SFI and record number, replacing the
+	 * record already there. A record that does not grow is rewritten in
+	 * place; a new or longer one goes to the free end of the record store,
+	 * and the space it leaves is not reclaimed. Data staged at the free end
+	 * is indexed where it is, without a copy.
+	 */
+	void storeRecord(byte sfi, byte record, byte[] data, short offset,
+			short length) {
+		if (sfi < 1 || sfi > MAX_SFI || record < 1 || record > MAX_RECORDS) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+		short index = (short) ((short) (sfi - 1) * MAX_RECORDS
+				+ (short) (record - 1));
+
+		short dest = record_offset[index];
+		if (length > record_length[index]) {
+			if (length > (short) (record_store_size - record_store_used)) {
+				ISOException.throwIt(ISO7816.SW_FILE_FULL);
+			}
+			dest = record_store_used;
+			record_store_used = (short) (record_store_used + length);
+		}
+		if (data != record_store || offset != dest) {
+			Util.arrayCopy(data, offset, record_store, dest, length);
+		}
+		record_offset[index] = dest;
+		record_length[index] = length;
+
+		if (record > file_records[(short) (sfi - 1)]) {
+			file_records[(short) (sfi - 1)] = record;
+		}
+	}
+
+	/*
+	 * Returns the index entry of the given record, or throws 6A82 (file not
+	 * found) / 6A83 (record not found).
+	 */
+	private short getRecordIndex(byte sfi, byte record) {
+		if (sfi < 1 || sfi > MAX_SFI || file_records[(short) (sfi - 1)] == 0) {
+			ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+		}
+		if (record < 1 || record > file_records[(short) (sfi - 1)]) {
+			ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		}
+
+		short index = (short) ((short) (sfi - 1) * MAX_RECORDS
+				+ (short) (record - 1));
+		if (record_length[index] == 0) {
+			ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		}
+		return index;
+	}
+
+	/*
+	 * Process the READ RECORD APDU (INS=B2). P1 holds the record number and
+	 * P2 the SFI in its upper 5 bits, with '100' (read record P1) in the lower
+	 * 3 bits. See Book 3, Section 6.5.11
+	 */
+	public void readRecord(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+
+		if ((buf[ISO7816.OFFSET_P2] & 0x07) != 0x04) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+		short index = getRecordIndex(
+				(byte) ((buf[ISO7816.OFFSET_P2] >> 3) & 0x1F),
+				buf[ISO7816.OFFSET_P1]);
+
+		response.send(apdu, record_store, record_offset[index],
+				record_length[index]);
+	}
+
+	/*
+	 * Process the UPDATE RECORD APDU (INS=DC) of an issuer script, see ISO
+	 * 7816-4, Section 7.3.5. P1 holds the record number and P2 the SFI, with
+	 * '100' in the lower 3 bits as for READ RECORD. The record is replaced by
+	 * the tag 70 template of the command data, of the given length.
+	 */
+	public void updateRecord(APDU apdu, short length) {
+		byte[] buf = apdu.getBuffer();
+
+		if ((buf[ISO7816.OFFSET_P2] & 0x07) != 0x04) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+		// the record must exist
+		getRecordIndex((byte) ((buf[ISO7816.OFFSET_P2] >> 3) & 0x1F),
+				buf[ISO7816.OFFSET_P1]);
+		checkRecord(buf, ISO7816.OFFSET_CDATA, length);
+
+		JCSystem.beginTransaction();
+		storeRecord((byte) ((buf[ISO7816.OFFSET_P2] >> 3) & 0x1F),
+				buf[ISO7816.OFFSET_P1], buf, ISO7816.OFFSET_CDATA, length);
+		parseDols();
+		JCSystem.commitTransaction();
+	}
+
+	/*
+	 * Process the APPEND RECORD APDU (INS=E2) of an issuer script, see ISO
+	 * 7816-4, Section 7.3.6. P1 is 00 and P2 holds the SFI, with '000' in the
+	 * lower 3 bits. The tag 70 template of the command data, of the given
+	 * length, becomes the record after the last one of the file.
+	 */
+	public void appendRecord(APDU apdu, short length) {
+		byte[] buf = apdu.getBuffer();
+
+		if (buf[ISO7816.OFFSET_P1] != 0
+				|| (buf[ISO7816.OFFSET_P2] & 0x07) != 0) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+		byte sfi = (byte) ((buf[ISO7816.OFFSET_P2] >> 3) & 0x1F);
+		if (sfi < 1 || sfi > MAX_SFI || file_records[(short) (sfi - 1)] == 0) {
+			ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+		}
+		if (file_records[(short) (sfi - 1)] == MAX_RECORDS) {
+			ISOException.throwIt(ISO7816.SW_FILE_FULL);
+		}
+		checkRecord(buf, ISO7816.OFFSET_CDATA, length);
+
+		JCSystem.beginTransaction();
+		storeRecord(sfi, (byte) (file_records[(short) (sfi - 1)] + 1), buf,
+				ISO7816.OFFSET_CDATA, length);
+		parseDols();
+		JCSystem.commitTransaction();
+	}
+
+	/*
+	 * Checks that the data at buf[offset], of the given length, is a single
+	 * tag 70 template, as every record must be, that it is not too long, and
+	 * that the CDOLs it may hold can be parsed. A record is only stored once
+	 * it passed these checks, so the DOLs are parsed again in the same
+	 * transaction without any error.
+	 */
+	private void checkRecord(byte[] buf, short offset, short length) {
+		checkRecordLength(length);
+		if (length < 2 || buf[offset] != (byte) 0x70
+				|| Tlv.getSize(buf, offset) != length) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		checkDol(buf, offset, length, (short) 0x008C);
+		checkDol(buf, offset, length, (short) 0x008D);
+	}
+
+	/*
+	 * Checks the DOL with the given tag, if buf[offset..offset + length)
+	 * holds one: its value must lie within the data, and be a list Dol can
+	 * parse. Throws 6A80 otherwise.
+	 */
+	private static void checkDol(byte[] buf, short offset, short length,
+			short tag) {
+		short dol = Tlv.find(buf, offset, length, tag);
+		if (dol < 0) {
+			return;
+		}
+		short valueOffset = Tlv.getValueOffset(buf, dol);
+		short valueLength = Tlv.getValueLength(buf, dol);
+		if ((short) (valueOffset + valueLength) > (short) (offset + length)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		Dol.check(buf, valueOffset, valueLength);
+	}
+
+	/*
+	 * Checks that a record of the given length is not longer than the
+	 * maximum response size of the install parameters
+	 */
+	public void checkRecordLength(short length) {
+		if (length > max_record_length) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+	}
+
+	/*
+	 * Returns the free space at the end of the record store, where STORE DATA
+	 * stages the DGIs it receives
+	 */
+	public short getStagingSpace() {
+		return (short) (record_store_size - record_store_used);
+	}
+
+	/*
+	 * Copies data received by STORE DATA to the staging area, at the given
+	 * offset in it. Nothing refers to that space yet, so the copy needs no
+	 * transaction.
+	 */
+	public void stage(byte[] buf, short offset, short stagedOffset,
+			short length) {
+		Util.arrayCopyNonAtomic(buf, offset, record_store,
+				(short) (record_store_used + stagedOffset), length);
+	}
+
+	/* Returns the array holding the staged data */
+	byte[] getStagedData() {
+		return record_store;
+	}
+
+	/* Returns the offset of the staged data in getStagedData() */
+	short getStagedOffset() {
+		return record_store_used;
+	}
+
+	/*
+	 * Checks that the staged data, of the given length, can become the
+	 * record of the given file. The PSE directory file is built from the
+	 * FCI, and cannot be personalised.
+	 */
+	public void checkStagedRecord(byte sfi, byte record, short length) {
+		if (sfi < 1 || sfi >= EF_DIR_ID || record < 1 || record > MAX_RECORDS) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		checkRecord(record_store, record_store_used, length);
+	}
+
+	/*
+	 * Makes the staged data, of the given length, the record of the given
+	 * file. To be called in a transaction, once checkStagedRecord passed.
+	 */
+	public void commitRecord(byte sfi, byte record, short length) {
+		storeRecord(sfi, record, record_store, record_store_used, length);
+		parseDols();
+	}
+
+	/*
+	 * Drops all the records, but the PSE directory one, which is built again
+	 * from the FCI. To be called in a transaction.
+	 */
+	public void clearRecords() {
+		for (short i = 0; i < (short) record_length.length; i++) {
+			record_offset[i] = 0;
+			record_length[i] = 0;
+		}
+		for (short i = 0; i < MAX_SFI; i++) {
+			file_records[i] = 0;
+		}
+		record_store_used = 0;
+		buildFCIs();
+		parseDols();
+	}
+
+	/*
+	 * Checks that the staged data, of the given length, fits as the data
+	 * objects of the FCI Proprietary Template, that its PDOL can be parsed,
+	 * that the objects copied to the other FCIs and the directory entry (50,
+	 * 87 and 5F2D) are of a valid length, and that all the FCIs still fit in
+	 * the select store
+	 */
+	public void checkStagedFCIProprietaryData(short length) {
+		if (length > FCI_PROPRIETARY_SIZE) {
+			ISOException.throwIt(ISO7816.SW_FILE_FULL);
+		}
+		short offset = record_store_used;
+		checkDol(record_store, offset, length, (short) 0x9F38);
+		checkObject(record_store, offset, length, (short) 0x0050,
+				MAX_LABEL_LENGTH);
+		checkObject(record_store, offset, length, (short) 0x0087, (short) 1);
+		checkObject(record_store, offset, length, (short) 0x5F2D, (short) 8);
+		if (getSelectStoreSize(record_store, offset,
+				length) > SELECT_STORE_SIZE) {
+			ISOException.throwIt(ISO7816.SW_FILE_FULL);
+		}
+	}
+
+	/*
+	 * Checks the object with the given tag, if buf[offset..offset + length)
+	 * holds one: it must lie within the data, with a value no longer than
+	 * maxLength. Throws 6A80 otherwise.
+	 */
+	private static void checkObject(byte[] buf, short offset, short length,
+			short tag, short maxLength) {
+		short object = Tlv.find(buf, offset, length, tag);
+		if (object < 0) {
+			return;
+		}
+		short end = (short) (object + Tlv.getSize(buf, object));
+		if (end > (short) (offset + length)
+				|| Tlv.getValueLength(buf, object) > maxLength) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+	}
+
+	/*
+	 * Replaces the data objects of the FCI Proprietary Template with the
+	 * staged data of the given length, and builds again what depends on them:
+	 * the FCIs, the PSE directory record and the PDOL. To be called in a
+	 * transaction, once checkStagedFCIProprietaryData passed.
+	 */
+	public void commitFCIProprietaryData(short length) {
+		Util.arrayCopy(record_store, record_store_used, fci_proprietary_data,
+				(short) 0, length);
+		fci_proprietary_length = length;
+		buildFCIs();
+		parseDols();
+	}
+
+	/*
+	 * Checks that the staged data, of the given length, holds an AIP (82)
+	 * and an AFL (94) of a valid length, either as such or in a single 77
+	 * template
+	 */
+	public void checkStagedGPOData(short length) {
+		short aipOffset = Tlv.find(record_store, record_store_used, length,
+				(short) 0x0082);
+		short aflOffset = Tlv.find(record_store, record_store_used, length,
+				(short) 0x0094);
+		if (aipOffset < 0 || aflOffset < 0
+				|| Tlv.getValueLength(record_store, aipOffset) != 2) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		short aflLength = Tlv.getValueLength(record_store, aflOffset);
+		if (aflLength == 0 || aflLength > MAX_AFL_LENGTH
+				|| (aflLength & 0x03) != 0) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		if (record_store[record_store_used] == GPO_FORMAT_2
+				&& Tlv.getSize(record_store, record_store_used) != length) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+	}
+
+	/*
+	 * Replaces the AIP and the AFL with the ones of the staged data of the
+	 * given length, which holds their data objects (82 and 94), and builds
+	 * the GPO response again. The issuer chooses its format: Format 2 when
+	 * the data objects come in a 77 template, Format 1 otherwise. To be
+	 * called in a transaction, once checkStagedGPOData passed.
+	 */
+	public void commitGPOData(short length) {
+		short aipOffset = Tlv.find(record_store, record_store_used, length,
+				(short) 0x0082);
+		short aflOffset = Tlv.find(record_store, record_store_used, length,
+				(short) 0x0094);
+		short aflLength = Tlv.getValueLength(record_store, aflOffset);
+
+		aip = Util.getShort(record_store, Tlv.getValueOffset(record_store,
+				aipOffset));
+		afl_length = Util.arrayCopy(record_store, Tlv.getValueOffset(
+				record_store, aflOffset), afl, (short) 0, aflLength);
+		if (record_store[record_store_used] == GPO_FORMAT_2) {
+			buildGPOResponse(GPO_FORMAT_2);
+		} else {
+			buildGPOResponse(GPO_FORMAT_1);
+		}
+	}
+
+	public short getCDOL2DataLength() {
+		return cdol2.getDataLength();
+	}
+
+	public short getCDOL1DataLength() {
+		return cdol1.getDataLength();
+	}
+
+	public Dol getCDOL1() {
+		return cdol1;
+	}
+
+	public Dol getCDOL2() {
+		return cdol2;
+	}
+
+	public Dol getPDOL() {
+		return pdol;
+	}
 }
\ No newline at end of file
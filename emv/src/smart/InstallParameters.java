@@ -0,0 +1,98 @@
+package smart;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.Util;
+
+/*
+ * Sizing of the applet, read from the application specific parameters of
+ * the GlobalPlatform INSTALL [for install] command, so the same CAP file fits
+ * both small and large chips. The parameters are a list of TLVs, either bare
+ * or inside a C9 data object, and every one is optional:
+ *
+ * C1 - APDU log capacity in bytes, 0 to 7FFF (default 00FF)
+ *
+ * C2 - record store size in bytes, 0 to 7FFF (default 0400); it must at
+ * least hold the default profile
+ *
+ * C3 - maximum response size: the longest record accepted, 0100 to 7FFF
+ * (default 7FFF); records above 0100 bytes are chained with GET RESPONSE
+ *
+ * C4 - enabled features, see FEATURE_LOG and FEATURE_DYNAMIC_SIGNATURE
+ * (default 03)
+ *
+ * Values are coded on 1 or 2 bytes. An unknown tag is ignored, and a value
+ * out of range fails the installation with 6A80.
+ */
+public class InstallParameters {
+	public static final byte LOG_CAPACITY = (byte) 0xC1;
+	public static final byte RECORD_STORE_SIZE = (byte) 0xC2;
+	public static final byte MAX_RESPONSE_SIZE = (byte) 0xC3;
+	public static final byte FEATURES = (byte) 0xC4;
+
+	// Bits of the enabled features
+	/** The APDU log, read with GET DATA 9F72 */
+	public static final short FEATURE_LOG = (short) 0x01;
+	/** DDA and CDA, which need an RSA key pair */
+	public static final short FEATURE_DYNAMIC_SIGNATURE = (short) 0x02;
+	public static final short DEFAULT_FEATURES = (short) 0x03;
+
+	public static final short MAX_SIZE = (short) 0x7FFF;
+
+	/*
+	 * Returns the offset of the length of the parameter list in the install
+	 * data given to Applet.install (the instance AID, the privileges and the
+	 * install parameters, each one preceded by its length), or -1 if there
+	 * are no parameters.
+	 */
+	public static short find(byte[] bArray, short bOffset, byte bLength) {
+		short end = (short) (bOffset + bLength);
+		short offset = (short) (bOffset + 1 + bArray[bOffset]); // privileges
+		if (offset >= end) {
+			return (short) -1;
+		}
+		offset = (short) (offset + 1 + bArray[offset]); // parameters
+		if (offset >= end
+				|| (short) (offset + 1 + (bArray[offset] & 0xFF)) > end) {
+			return (short) -1;
+		}
+		if (bArray[offset] != 0
+				&& bArray[(short) (offset + 1)] == (byte) 0xC9) {
+			// application specific parameters data object
+			offset = (short) (offset + 2);
+		}
+		return offset;
+	}
+
+	/*
+	 * Returns the value of the parameter with the given tag, found in the
+	 * list at params[offset] (as returned by find), or defaultValue if it is
+	 * absent.
+	 * Throws 6A80 if the value is not in [min, max].
+	 */
+	public static short getValue(byte[] params, short offset, byte tag,
+			short defaultValue, short min, short max) {
+		if (offset < 0) {
+			return defaultValue;
+		}
+		short tlv = Tlv.find(params, (short) (offset + 1),
+				(short) (params[offset] & 0xFF), (short) (tag & 0xFF));
+		if (tlv < 0) {
+			return defaultValue;
+		}
+
+		short value = 0;
+		short length = Tlv.getValueLength(params, tlv);
+		if (length == 1) {
+			value = (short) (params[Tlv.getValueOffset(params, tlv)] & 0xFF);
+		} else if (length == 2) {
+			value = Util.getShort(params, Tlv.getValueOffset(params, tlv));
+		} else {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		if (value < min || value > max) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		return value;
+	}
+}
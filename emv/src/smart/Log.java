@@ -1,89 +1,217 @@
-package smart;
-
-import javacard.framework.Util;
-import javacard.framework.ISO7816;
-
-public class Log {
-	private boolean log_enabled;
-	public final static short MAX_LOG_SIZE = 255;
-	private final byte[] log_array;
-	private short log_size;
-
-	public Log() {
-		log_enabled = true;
-		log_array = new byte[MAX_LOG_SIZE];
-		log_size = 0;
-	}
-
-	// Append data to the end of the log
-	public void write(byte[] buffer) {
-		if (!isEnabled() || isLogFull()) {
-			return;
-		} // Do nothing if log is disabled or full
-
-		short apdu_size = 4; // CLA - INS - P1 - P2, minimum
-		if (buffer[ISO7816.OFFSET_LC] != 0x00) {
-			apdu_size = (short) (apdu_size + buffer[ISO7816.OFFSET_LC] + 1);
-		} // LC != 0 means we have a data body
-
-		// Check if the message fits in the remaining log space
-		if (apdu_size > getFreeSpace()) {
-			return;
-		}
-
-		// Prepare the message to be inserted atomically
-		byte[] entry = new byte[apdu_size + 1]; // Extra byte for the length
-		entry[0] = (byte) apdu_size;
-		Util.arrayCopy(buffer, (short) 0, entry, (short) 1, apdu_size);
-
-		// Finally, add the message to the log
-		Util.arrayCopy(entry, (short) 0, log_array, getSize(),
-				(short) entry.length);
-
-		// Increment the log size
-		log_size = (short) (log_size + entry.length);
-	}
-
-	/** Read all the entries in the log */
-	public byte[] read() {
-		return log_array;
-	}
-
-	// Clear all the log entries
-	public void clear() {
-		Util.arrayFillNonAtomic(log_array, (short) 0, MAX_LOG_SIZE, (byte) 0x00);
-		log_size = (short) 0;
-	}
-
-	/** Return the actual log size */
-	public short getSize() {
-		return log_size;
-	}
-
-	/** Return log free space */
-	public short getFreeSpace() {
-		return (short) (MAX_LOG_SIZE - getSize());
-	}
-
-	/** Check if the log is full */
-	public boolean isLogFull() {
-		if (log_size < MAX_LOG_SIZE) {
-			return false;
-		}
-
-		return true;
-	}
-
-	// Get if the log facility is enabled or not
-	public boolean isEnabled() {
-		return log_enabled;
-	}
-
-	public void enable() {
-		log_enabled = true;
-	}
-
-	public void disable() {
-		log_enabled = false;
-	}
-}
+package smart;
+
+import javacard.framework.APDU;
+import javacard.framework.Util;
+import javacard.framework.ISO7816;
+import javacard.framework.JCSystem;
+
+/*
+ * Circular APDU log. Every entry is stored as a length byte followed by the
+ * logged bytes, and entries never wrap around the end of the array: when an
+ * entry does not fit in the space left at the top, writing continues at
+ * offset 0 and log_end marks where the upper part of the log stops. The
+ * oldest entries are dropped to make room for new ones. A command longer than
+ * MAX_ENTRY_LENGTH bytes, which its length byte cannot count, is logged
+ * truncated: its Lc still tells how long it was.
+ */
+public class Log {
+	private boolean log_enabled;
+	public final static short DEFAULT_LOG_SIZE = 255;
+	/** Longest entry, without its length byte */
+	private final static short MAX_ENTRY_LENGTH = 255;
+	/** Size of log_array, set by the install parameters */
+	private final short max_log_size;
+	private final byte[] log_array;
+
+	// Offset of the oldest entry
+	private short log_tail;
+	// Offset where the next entry will be written
+	private short log_head;
+	// End of the entries stored above log_tail (equals log_head until the log
+	// wraps)
+	private short log_end;
+	// Bytes used by the stored entries, including their length bytes
+	private short log_size;
+
+	/** Sends the log, chained with GET RESPONSE when it is long */
+	private final Response response;
+
+	/* A log of 0 bytes is disabled for good */
+	public Log(short size, Response response) {
+		this.response = response;
+		log_enabled = size != 0;
+		max_log_size = size;
+		log_array = new byte[size];
+		log_tail = 0;
+		log_head = 0;
+		log_end = 0;
+		log_size = 0;
+	}
+
+	// Append data to the end of the log, dropping the oldest entries if needed
+	public void write(byte[] buffer) {
+		if (!isEnabled()) {
+			return;
+		} // Do nothing if log is disabled
+
+		short apdu_size = 4; // CLA - INS - P1 - P2, minimum
+		if (buffer[ISO7816.OFFSET_LC] != 0x00) {
+			apdu_size = (short) (apdu_size
+					+ (short) (buffer[ISO7816.OFFSET_LC] & 0xFF) + 1);
+		} // LC != 0 means we have a data body
+		if (apdu_size > MAX_ENTRY_LENGTH) {
+			apdu_size = MAX_ENTRY_LENGTH;
+		} // Lc of 251 and more: keep what the length byte can count
+
+		short entry_size = (short) (apdu_size + 1); // Extra byte for the length
+		if (entry_size > max_log_size) {
+			return;
+		} // Would never fit, even in an empty log
+
+		if (!hasRoomAtHead(entry_size)) {
+			makeRoom(entry_size);
+		}
+
+		// Store the entry in the free space at the head. The data is not
+		// part of the log until log_head moves past it, so no transaction is
+		// needed for the copy itself.
+		log_array[log_head] = (byte) apdu_size;
+		Util.arrayCopyNonAtomic(buffer, (short) 0, log_array,
+				(short) (log_head + 1), apdu_size);
+
+		// Finally, commit the entry by moving the head past it
+		JCSystem.beginTransaction();
+		if (log_end == log_head) {
+			log_end = (short) (log_head + entry_size);
+		}
+		log_head = (short) (log_head + entry_size);
+		log_size = (short) (log_size + entry_size);
+		JCSystem.commitTransaction();
+	}
+
+	/*
+	 * Check if an entry of the given size can be written at log_head without
+	 * overwriting any stored entry
+	 */
+	private boolean hasRoomAtHead(short entry_size) {
+		if (log_head < log_end) {
+			// Wrapped: the free space lies between the head and the tail
+			return (short) (log_tail - log_head) >= entry_size;
+		}
+		// Not wrapped: the free space lies between the head and the top
+		return (short) (max_log_size - log_head) >= entry_size;
+	}
+
+	/*
+	 * Drop the oldest entries (and wrap the head to offset 0 if needed) until
+	 * an entry of the given size fits at log_head. The new pointers are
+	 * committed before the entry is written, so a tear never leaves the tail
+	 * pointing to overwritten data.
+	 */
+	private void makeRoom(short entry_size) {
+		short tail = log_tail;
+		short head = log_head;
+		short end = log_end;
+		short size = log_size;
+
+		while (true) {
+			if (head < end) {
+				// Wrapped: the entry is written at head, right below the tail
+				if ((short) (tail - head) >= entry_size) {
+					break;
+				}
+			} else if ((short) (max_log_size - head) >= entry_size) {
+				break;
+			} else if (size == 0 || tail >= entry_size) {
+				// No room at the top: continue at offset 0
+				if (size == 0) {
+					tail = 0;
+					end = 0;
+				}
+				head = 0;
+				continue;
+			}
+
+			// Drop the oldest entry
+			short dropped = (short) ((log_array[tail] & 0xFF) + 1);
+			tail = (short) (tail + dropped);
+			size = (short) (size - dropped);
+			if (size == 0) {
+				tail = head;
+				end = head;
+			} else if (tail == end) {
+				// Reached the end of the upper part, the log is not wrapped
+				// anymore
+				tail = 0;
+				end = head;
+			}
+		}
+
+		JCSystem.beginTransaction();
+		log_tail = tail;
+		log_head = head;
+		log_end = end;
+		log_size = size;
+		JCSystem.commitTransaction();
+	}
+
+	/*
+	 * Send the entries in the log, from the oldest to the newest, like any
+	 * other response: a log larger than Le is chained with GET RESPONSE. A
+	 * wrapped log is sent as its upper part followed by its lower part.
+	 * GET RESPONSE is not logged, so the log does not change while it is
+	 * fetched.
+	 */
+	public void send(APDU apdu) {
+		if (log_head < log_end) {
+			// Wrapped: send the upper part first
+			response.send(apdu, log_array, log_tail,
+					(short) (log_end - log_tail), log_head);
+		} else {
+			response.send(apdu, log_array, log_tail,
+					(short) (log_head - log_tail));
+		}
+	}
+
+	// Clear all the log entries
+	public void clear() {
+		JCSystem.beginTransaction();
+		log_tail = 0;
+		log_head = 0;
+		log_end = 0;
+		log_size = 0;
+		JCSystem.commitTransaction();
+	}
+
+	/** Return the actual log size */
+	public short getSize() {
+		return log_size;
+	}
+
+	/** Return log free space */
+	public short getFreeSpace() {
+		return (short) (max_log_size - getSize());
+	}
+
+	/** Check if the log is full */
+	public boolean isLogFull() {
+		if (log_size < max_log_size) {
+			return false;
+		}
+
+		return true;
+	}
+
+	// Get if the log facility is enabled or not
+	public boolean isEnabled() {
+		return log_enabled;
+	}
+
+	public void enable() {
+		log_enabled = true;
+	}
+
+	public void disable() {
+		log_enabled = false;
+	}
+}
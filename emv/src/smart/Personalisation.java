@@ -0,0 +1,272 @@
+package smart;
+
+import javacard.framework.APDU;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/*
+ * Personalisation with the GlobalPlatform STORE DATA command (CLA 80, INS
+ * E2, see GP Card Specification 2.1.1, Section 9.11 and the EMV Card
+ * Personalisation Specification). The profile is sent as DGIs (Data Grouping
+ * Identifiers): a 2 byte identifier, a length (1 byte, or FF followed by 2
+ * bytes) and the data. A sequence of STORE DATA commands, numbered from 00 in
+ * P2, streams the DGIs; a DGI may be split over several commands, but not
+ * its header. The DGIs supported are:
+ *
+ * SSRR - record RR of the file with SFI SS, a tag 70 template. The first
+ * record of a sequence drops the records of the previous profile.
+ *
+ * 9102 - data objects of the FCI Proprietary Template (A5)
+ *
+ * 9104 - AIP (82) and AFL (94) of the GPO response
+ *
+ * 8000 - ICC master keys for the AC, the secure messaging integrity and the
+ * secure messaging confidentiality, 16 bytes each
+ *
+ * 8010 - reference PIN, as a plaintext PIN block
+ *
+ * 8201 to 8205 - ICC private key, as the RSA CRT components q^-1 mod p,
+ * d mod (q - 1), d mod (p - 1), q and p, 64 bytes each. They replace the key
+ * generated on install; a sequence must load all five or none, and only when
+ * offline dynamic data authentication is enabled.
+ *
+ * Every DGI is staged in the free end of the record store as its data
+ * arrives, checked, and committed with a single transaction once complete,
+ * so a tear never leaves a DGI half applied and a DGI that is refused leaves
+ * nothing changed. A record is committed where it was staged.
+ *
+ * There is no secure channel: the data, keys included, is only accepted in
+ * plain, while the applet is being personalised. The last block (P1 bit 8)
+ * ends the personalisation, after which STORE DATA is refused.
+ */
+public class Personalisation {
+	// DGIs other than the records
+	private static final short DGI_FCI = (short) 0x9102;
+	private static final short DGI_GPO = (short) 0x9104;
+	private static final short DGI_KEYS = (short) 0x8000;
+	private static final short DGI_PIN = (short) 0x8010;
+	private static final short DGI_ICC_KEY = (short) 0x8201;
+
+	private static final short KEYS_LENGTH = 48;
+	private static final short PIN_BLOCK_LENGTH = 8;
+
+	// P1 of STORE DATA: last block, encryption and data structure bits
+	private static final byte P1_LAST_BLOCK = (byte) 0x80;
+	private static final byte P1_ENCRYPTED_OR_TLV = (byte) 0x70;
+
+	private final FileSystem fileSystem;
+	private final Crypto crypto;
+	private final Pin pin;
+	private final ProtocolState protocolState;
+
+	/**
+	 * State of the STORE DATA sequence, cleared on deselect: the number of
+	 * the next block, the DGI being received (0 between two DGIs), its length
+	 * and the number of its bytes staged so far, whether the records of the
+	 * previous profile were dropped, and which components of the ICC private
+	 * key were loaded (one bit per component)
+	 */
+	private final short[] state;
+	private static final byte NEXT_BLOCK = 0;
+	private static final byte DGI = 1;
+	private static final byte DGI_LENGTH = 2;
+	private static final byte DGI_RECEIVED = 3;
+	private static final byte RECORDS_CLEARED = 4;
+	private static final byte KEY_COMPONENTS = 5;
+
+	/** KEY_COMPONENTS once the whole ICC private key is loaded */
+	private static final short ALL_KEY_COMPONENTS =
+			(short) ((1 << DynamicSignature.COMPONENTS) - 1);
+
+	public Personalisation(FileSystem fileSystem, Crypto crypto, Pin pin,
+			ProtocolState protocolState) {
+		this.fileSystem = fileSystem;
+		this.crypto = crypto;
+		this.pin = pin;
+		this.protocolState = protocolState;
+		state = JCSystem.makeTransientShortArray((short) 6,
+				JCSystem.CLEAR_ON_DESELECT);
+	}
+
+	/*
+	 * Process the STORE DATA APDU (CLA=80 INS=E2): stages the DGIs of the
+	 * command data, committing each one as soon as it is complete
+	 */
+	public void storeData(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		if (buf[ISO7816.OFFSET_CLA] != Emv.EMV_CLA) {
+			// secure channel commands would have to be unwrapped first
+			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+		byte p1 = buf[ISO7816.OFFSET_P1];
+		short block = (short) (buf[ISO7816.OFFSET_P2] & 0xFF);
+		if ((p1 & P1_ENCRYPTED_OR_TLV) != 0
+				|| (block != 0 && block != state[NEXT_BLOCK])) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+		short len = (short) (buf[ISO7816.OFFSET_LC] & 0xFF);
+		if (len != apdu.setIncomingAndReceive()) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+
+		if (block == 0) {
+			// a new sequence
+			state[DGI] = 0;
+			state[RECORDS_CLEARED] = 0;
+			state[KEY_COMPONENTS] = 0;
+		}
+		state[NEXT_BLOCK] = (short) (block + 1);
+
+		short offset = ISO7816.OFFSET_CDATA;
+		short end = (short) (offset + len);
+		while (offset < end) {
+			if (state[DGI] == 0) {
+				offset = startDGI(buf, offset, end);
+			}
+
+			len = (short) (state[DGI_LENGTH] - state[DGI_RECEIVED]);
+			if (len > (short) (end - offset)) {
+				len = (short) (end - offset);
+			}
+			fileSystem.stage(buf, offset, state[DGI_RECEIVED], len);
+			offset = (short) (offset + len);
+			state[DGI_RECEIVED] = (short) (state[DGI_RECEIVED] + len);
+
+			if (state[DGI_RECEIVED] == state[DGI_LENGTH]) {
+				commitDGI(state[DGI], state[DGI_LENGTH]);
+				state[DGI] = 0;
+			}
+		}
+
+		if ((p1 & P1_LAST_BLOCK) != 0) {
+			if (state[DGI] != 0) {
+				// the last DGI is not complete
+				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+			}
+			if (state[KEY_COMPONENTS] != 0
+					&& state[KEY_COMPONENTS] != ALL_KEY_COMPONENTS) {
+				// a part of the ICC private key is missing
+				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+			}
+			protocolState.setLifecycle(ProtocolState.READY);
+		}
+	}
+
+	/*
+	 * Reads the header of the DGI at buf[offset], checks that its data can be
+	 * staged, and returns the offset of the data
+	 */
+	private short startDGI(byte[] buf, short offset, short end) {
+		if ((short) (end - offset) < 3) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		short dgi = Util.getShort(buf, offset);
+		short length = (short) (buf[(short) (offset + 2)] & 0xFF);
+		offset = (short) (offset + 3);
+		if (length == 0xFF) {
+			if ((short) (end - offset) < 2) {
+				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+			}
+			length = Util.getShort(buf, offset);
+			offset = (short) (offset + 2);
+		}
+		if (dgi == 0 || length < 0) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+
+		if (isRecord(dgi)) {
+			fileSystem.checkRecordLength(length);
+		}
+		if (isRecord(dgi) && state[RECORDS_CLEARED] == 0) {
+			JCSystem.beginTransaction();
+			fileSystem.clearRecords();
+			JCSystem.commitTransaction();
+			state[RECORDS_CLEARED] = 1;
+		}
+		if (length > fileSystem.getStagingSpace()) {
+			ISOException.throwIt(ISO7816.SW_FILE_FULL);
+		}
+
+		state[DGI] = dgi;
+		state[DGI_LENGTH] = length;
+		state[DGI_RECEIVED] = 0;
+		return offset;
+	}
+
+	/*
+	 * Checks the staged data of a complete DGI, then applies it in a single
+	 * transaction: checkDGI runs every check that could fail, so nothing is
+	 * thrown once the transaction is open.
+	 */
+	private void commitDGI(short dgi, short length) {
+		byte[] data = fileSystem.getStagedData();
+		short offset = fileSystem.getStagedOffset();
+
+		checkDGI(dgi, length);
+
+		JCSystem.beginTransaction();
+		if (isRecord(dgi)) {
+			fileSystem.commitRecord((byte) (dgi >> 8), (byte) dgi, length);
+		} else if (dgi == DGI_FCI) {
+			fileSystem.commitFCIProprietaryData(length);
+		} else if (dgi == DGI_GPO) {
+			fileSystem.commitGPOData(length);
+		} else if (dgi == DGI_KEYS) {
+			crypto.setMasterKeys(data, offset);
+		} else if (dgi == DGI_PIN) {
+			pin.change(data, offset);
+		} else {
+			byte component = (byte) (dgi - DGI_ICC_KEY);
+			crypto.signature.setKeyComponent(component, data, offset);
+			state[KEY_COMPONENTS] |= (short) (1 << component);
+		}
+		JCSystem.commitTransaction();
+
+		if (!isRecord(dgi) && dgi != DGI_FCI && dgi != DGI_GPO) {
+			// don't leave the secrets in the free space
+			Util.arrayFillNonAtomic(data, offset, length, (byte) 0);
+		}
+	}
+
+	/*
+	 * Checks that the staged data of a complete DGI can be applied
+	 */
+	private void checkDGI(short dgi, short length) {
+		if (isRecord(dgi)) {
+			fileSystem.checkStagedRecord((byte) (dgi >> 8), (byte) dgi, length);
+		} else if (dgi == DGI_FCI) {
+			fileSystem.checkStagedFCIProprietaryData(length);
+		} else if (dgi == DGI_GPO) {
+			fileSystem.checkStagedGPOData(length);
+		} else if (dgi == DGI_KEYS) {
+			checkLength(length, KEYS_LENGTH);
+		} else if (dgi == DGI_PIN) {
+			checkLength(length, PIN_BLOCK_LENGTH);
+			Pin.checkBlock(fileSystem.getStagedData(),
+					fileSystem.getStagedOffset());
+		} else if (dgi >= DGI_ICC_KEY
+				&& dgi < (short) (DGI_ICC_KEY + DynamicSignature.COMPONENTS)) {
+			if (crypto.signature == null) {
+				// no offline dynamic data authentication, so no ICC key
+				ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+			}
+			checkLength(length, DynamicSignature.COMPONENT_LENGTH);
+		} else {
+			ISOException.throwIt((short) 0x6A88); // unknown DGI
+		}
+	}
+
+	private static void checkLength(short length, short expected) {
+		if (length != expected) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+	}
+
+	/* true for the DGI of a record: SFI 01 to 1E, record 01 to FF */
+	private static boolean isRecord(short dgi) {
+		byte sfi = (byte) (dgi >> 8);
+		return sfi >= 1 && sfi <= 30 && (byte) dgi != 0;
+	}
+}
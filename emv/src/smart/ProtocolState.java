@@ -1,109 +1,478 @@
-package smart;
-
-import javacard.framework.APDU;
-import javacard.framework.ISO7816;
-import javacard.framework.ISOException;
-import javacard.framework.JCSystem;
-import javacard.framework.Util;
-
-public class ProtocolState {
-	private short atc;
-	private short lastOnlineATC;
-
-	// constants to record the (persistent) lifecycle state
-	public static byte PERSONALISATION = (byte) 0x00;
-	public static byte READY = (byte) 0x01;
-	public static byte BLOCKED = (byte) 0x02;
-
-	/**
-	 * Volatile protocol state; records if CVM has been performed, and if ACs
-	 * have been generated
-	 */
-	private final byte volatileState[];
-
-	/**
-	 * 2 byte Card Verification Results
-	 */
-	private final byte[] cvr;
-
-	public byte getFirstACGenerated() {
-		return volatileState[1];
-	}
-
-	public void setFirstACGenerated(byte ACType) {
-		volatileState[1] = ACType;
-	}
-
-	public byte getSecondACGenerated() {
-		return volatileState[2];
-	}
-
-	public void setSecondACGenerated(byte ACType) {
-		volatileState[2] = ACType;
-	}
-
-	public byte getCVMPerformed() {
-		return volatileState[0];
-	}
-
-	public void setCVMPerformed(byte CVMType) {
-		volatileState[0] = CVMType;
-	}
-
-	public short getATC() {
-		return (short) 0x00C3;
-		// return atc;
-	}
-
-	public void setATC(short newATC) {
-		atc = newATC;
-	}
-
-	private void increaseATC() {
-		// if (atc == MAX) { BLOCK THIS CARD!! }, but we ignore security here
-		atc = (short) (atc + 1);
-	}
-
-	public short getLastOnlineATC() {
-		return lastOnlineATC;
-	}
-
-	public void setLastOnlineATC(short newLOATC) {
-		lastOnlineATC = newLOATC;
-	}
-
-	public ProtocolState() {
-		volatileState = JCSystem.makeTransientByteArray((short) 3,
-				JCSystem.CLEAR_ON_DESELECT);
-		cvr = JCSystem.makeTransientByteArray((short) 2,
-				JCSystem.CLEAR_ON_DESELECT);
-		atc = (short) 0x0005;
-		lastOnlineATC = (short) 0x0005;
-	}
-
-	/*
-	 * Starts a new session. This resets all session data and increases the ATC,
-	 * but does not generate a session key yet.
-	 */
-	public void startNewSession() {
-		setFirstACGenerated(smart.Emv.NONE);
-		setSecondACGenerated(smart.Emv.NONE);
-		setCVMPerformed(smart.Emv.NONE);
-		increaseATC();
-	}
-
-	/*
-	 * Sets the last online ATC equal to the current ATC
-	 */
-	public void onlineSessionCompleted() {
-		lastOnlineATC = atc;
-	}
-
-	/*
-	 * Returns the 4 byte CVR (Card Verification Results). Details are described
-	 * in Book 3, Annex C7.3
-	 */
-	public byte[] getCVR() {
-		return null;
-	}
-}
+package smart;
+
+import javacard.framework.APDU;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+public class ProtocolState {
+	/** Application Transaction Counter, written once per transaction */
+	private final WearLevelledCounter atc;
+	private short lastOnlineATC;
+
+	/**
+	 * Card risk management: limits of consecutive offline transactions (Lower
+	 * and Upper Consecutive Offline Limits, 9F14 and 9F23), the number of
+	 * offline approvals since the last completed online transaction, and
+	 * whether the last ARQC was never followed by a second GENERATE AC
+	 */
+	private byte lowerConsecutiveOfflineLimit;
+	private byte upperConsecutiveOfflineLimit;
+	private byte consecutiveOfflineTransactions;
+	private boolean lastOnlineNotCompleted;
+
+	/**
+	 * Outcome of the issuer authentication of the last online transaction,
+	 * reported in the CVR of the next one
+	 */
+	private boolean issuerAuthenticationFailed;
+	private boolean issuerAuthenticationNotPerformed;
+
+	/**
+	 * Issuer script commands with secure messaging processed since the last
+	 * valid ARPC (up to 15), and whether one of them failed, reported in the
+	 * CVR
+	 */
+	private byte scriptCommandsProcessed;
+	private boolean scriptFailed;
+
+	// issuer authentication state of the current transaction
+	public static final byte ISSUER_AUTHENTICATION_PASSED = (byte) 0x01;
+	public static final byte ISSUER_AUTHENTICATION_FAILED = (byte) 0x02;
+
+	// constants to record the (persistent) lifecycle state
+	public static final byte PERSONALISATION = (byte) 0x00;
+	public static final byte READY = (byte) 0x01;
+	public static final byte BLOCKED = (byte) 0x02;
+
+	/**
+	 * Lifecycle state: PERSONALISATION, where the default profile is in use
+	 * and STORE DATA can replace it, until the last STORE DATA block makes
+	 * the applet READY. No command leads to BLOCKED yet.
+	 */
+	private byte lifecycle;
+
+	// constants to record the (volatile) phase of the transaction
+	public static final byte PHASE_SELECTED = (byte) 0x00;
+	public static final byte PHASE_GPO_DONE = (byte) 0x01;
+	public static final byte PHASE_AC1_DONE = (byte) 0x02;
+	public static final byte PHASE_AC2_DONE = (byte) 0x03;
+
+	// bits of getStateBits: one per transaction phase (1 << phase) and one
+	// per lifecycle state (0x10 << lifecycle)
+	public static final byte IN_SELECTED = (byte) 0x01;
+	public static final byte IN_GPO_DONE = (byte) 0x02;
+	public static final byte IN_AC1_DONE = (byte) 0x04;
+	public static final byte IN_AC2_DONE = (byte) 0x08;
+	public static final byte IN_ANY_PHASE = (byte) 0x0F;
+	public static final byte IN_PERSONALISATION = (byte) 0x10;
+	public static final byte IN_READY = (byte) 0x20;
+	public static final byte IN_BLOCKED = (byte) 0x40;
+	public static final byte IN_ANY_LIFECYCLE = (byte) 0x70;
+
+	/**
+	 * Volatile protocol state of every logical channel; records if CVM has
+	 * been performed, if ACs have been generated, the outcome of the issuer
+	 * authentication and the phase of the transaction
+	 */
+	private final Object[] volatileStates;
+	private static final byte PHASE = 4;
+
+	/**
+	 * 4 byte Card Verification Results of every logical channel, laid out
+	 * like the Visa CVR: a length byte (03) followed by 3 bytes of flags,
+	 * updated as the transaction goes
+	 */
+	private final Object[] cvrs;
+
+	/** ATC of the transaction of every logical channel, set by GPO */
+	private final short[] transactionATC;
+
+	// CVR byte 1: AC types, offline PIN and online status
+	private static final byte CVR_SECOND_AC_NOT_REQUESTED = (byte) 0x80;
+	private static final byte CVR_SECOND_AC_TYPE = (byte) 0xC0;
+	private static final byte CVR_FIRST_AC_TYPE = (byte) 0x30;
+	private static final byte CVR_ISSUER_AUTHENTICATION_FAILED = (byte) 0x08;
+	private static final byte CVR_OFFLINE_PIN_PERFORMED = (byte) 0x04;
+	private static final byte CVR_OFFLINE_PIN_FAILED = (byte) 0x02;
+	private static final byte CVR_UNABLE_TO_GO_ONLINE = (byte) 0x01;
+
+	// CVR byte 2: state carried over from the previous transactions
+	private static final byte CVR_LAST_ONLINE_NOT_COMPLETED = (byte) 0x80;
+	private static final byte CVR_PIN_TRY_LIMIT_EXCEEDED = (byte) 0x40;
+	private static final byte CVR_VELOCITY_EXCEEDED = (byte) 0x20;
+	private static final byte CVR_LAST_ISSUER_AUTH_FAILED = (byte) 0x08;
+	private static final byte CVR_ISSUER_AUTH_NOT_PERFORMED = (byte) 0x04;
+
+	// CVR byte 3: issuer scripts and offline data authentication
+	private static final byte CVR_SCRIPT_COMMANDS = (byte) 0xF0;
+	private static final byte CVR_SCRIPT_FAILED = (byte) 0x08;
+	private static final byte CVR_DDA_RETURNED = (byte) 0x02;
+
+	public byte getFirstACGenerated() {
+		byte[] volatileState = getVolatileState();
+		return volatileState[1];
+	}
+
+	/*
+	 * Records the first AC. An offline approval (TC) counts as a consecutive
+	 * offline transaction, and an ARQC stays not completed until a second
+	 * GENERATE AC brings the outcome of the online authorisation.
+	 */
+	public void setFirstACGenerated(byte ACType) {
+		byte[] volatileState = getVolatileState();
+		volatileState[1] = ACType;
+		// only an ARQC is followed by a second GENERATE AC
+		volatileState[PHASE] = ACType == Emv.ARQC_CODE ? PHASE_AC1_DONE
+				: PHASE_AC2_DONE;
+		if (ACType == Emv.TC_CODE) {
+			countOfflineTransaction();
+		} else if (ACType == Emv.ARQC_CODE) {
+			lastOnlineNotCompleted = true;
+		}
+	}
+
+	/*
+	 * Records the ARQC returned by a contactless GET PROCESSING OPTIONS. The
+	 * card never sees the issuer's answer to it, as no second GENERATE AC
+	 * follows a tap, so it is not left as an online transaction not
+	 * completed: that would force every later contact transaction online.
+	 */
+	public void setContactlessARQCGenerated() {
+		byte[] volatileState = getVolatileState();
+		volatileState[1] = Emv.ARQC_CODE;
+		volatileState[PHASE] = PHASE_AC1_DONE;
+	}
+
+	public byte getSecondACGenerated() {
+		byte[] volatileState = getVolatileState();
+		return volatileState[2];
+	}
+
+	/*
+	 * Records the second AC, which completes the transaction started with an
+	 * ARQC. If the terminal went online, the issuer authentication (or its
+	 * absence) is remembered for the CVR of the next transaction; a passed
+	 * one already restarted the offline counter. Otherwise an offline
+	 * approval is counted.
+	 */
+	public void setSecondACGenerated(byte ACType) {
+		byte[] volatileState = getVolatileState();
+		byte[] cvr = getCVR();
+		volatileState[2] = ACType;
+		volatileState[PHASE] = PHASE_AC2_DONE;
+		if (volatileState[1] != Emv.ARQC_CODE) {
+			return;
+		}
+
+		JCSystem.beginTransaction();
+		if ((cvr[1] & CVR_UNABLE_TO_GO_ONLINE) != 0) {
+			if (ACType == Emv.TC_CODE) {
+				countOfflineTransaction();
+			}
+		} else {
+			issuerAuthenticationFailed = volatileState[3]
+					== ISSUER_AUTHENTICATION_FAILED;
+			issuerAuthenticationNotPerformed = volatileState[3] == Emv.NONE;
+		}
+		lastOnlineNotCompleted = false;
+		JCSystem.commitTransaction();
+	}
+
+	public byte getIssuerAuthentication() {
+		byte[] volatileState = getVolatileState();
+		return volatileState[3];
+	}
+
+	/*
+	 * Records the outcome of the issuer authentication. A valid ARPC
+	 * completes the online transaction: the last online ATC is updated, and
+	 * the offline counter and the issuer script results start again.
+	 */
+	public void setIssuerAuthenticated(boolean passed) {
+		byte[] volatileState = getVolatileState();
+		byte[] cvr = getCVR();
+		if (!passed) {
+			volatileState[3] = ISSUER_AUTHENTICATION_FAILED;
+			cvr[1] |= CVR_ISSUER_AUTHENTICATION_FAILED;
+			return;
+		}
+
+		volatileState[3] = ISSUER_AUTHENTICATION_PASSED;
+		JCSystem.beginTransaction();
+		onlineSessionCompleted();
+		consecutiveOfflineTransactions = 0;
+		scriptCommandsProcessed = 0;
+		scriptFailed = false;
+		JCSystem.commitTransaction();
+	}
+
+	/*
+	 * Records an issuer script command: a command whose MAC was verified is
+	 * counted, a command with a wrong MAC marks the script processing as
+	 * failed.
+	 */
+	public void setScriptCommandProcessed(boolean passed) {
+		byte[] cvr = getCVR();
+		if (!passed) {
+			scriptFailed = true;
+		} else if (scriptCommandsProcessed < 15) {
+			scriptCommandsProcessed++;
+		}
+		cvr[3] = (byte) ((cvr[3] & ~(CVR_SCRIPT_COMMANDS | CVR_SCRIPT_FAILED))
+				| getScriptResults());
+	}
+
+	public byte getCVMPerformed() {
+		byte[] volatileState = getVolatileState();
+		return volatileState[0];
+	}
+
+	public void setCVMPerformed(byte CVMType) {
+		byte[] volatileState = getVolatileState();
+		volatileState[0] = CVMType;
+	}
+
+	public byte getLifecycle() {
+		return lifecycle;
+	}
+
+	public byte getPhase() {
+		byte[] volatileState = getVolatileState();
+		return volatileState[PHASE];
+	}
+
+	/*
+	 * Drops the transaction of the current logical channel, back to
+	 * PHASE_SELECTED, when the application is selected or deselected on it.
+	 * CLEAR_ON_DESELECT memory is only cleared once the application is
+	 * deselected on every channel.
+	 */
+	public void clearSession() {
+		byte[] volatileState = getVolatileState();
+		Util.arrayFillNonAtomic(volatileState, (short) 0,
+				(short) volatileState.length, (byte) 0);
+		volatileState[PHASE] = PHASE_SELECTED;
+		byte[] cvr = getCVR();
+		Util.arrayFillNonAtomic(cvr, (short) 0, (short) cvr.length, (byte) 0);
+		transactionATC[Workspace.getChannel()] = 0;
+	}
+
+	/*
+	 * Returns the current state as a bitmap: the bit of the transaction phase
+	 * and the bit of the lifecycle state (See IN_SELECTED to IN_BLOCKED). A
+	 * command is allowed when both bits are in its own bitmap of states.
+	 */
+	public byte getStateBits() {
+		byte[] volatileState = getVolatileState();
+		return (byte) ((1 << volatileState[PHASE]) | (0x10 << lifecycle));
+	}
+
+	public void setLifecycle(byte state) {
+		lifecycle = state;
+	}
+
+	public short getATC() {
+		return atc.get();
+	}
+
+	/*
+	 * Returns the ATC of the transaction of the current logical channel, which
+	 * the cryptograms of that transaction are computed with: the ATC itself
+	 * may have moved on since, with a transaction on another channel.
+	 */
+	public short getTransactionATC() {
+		return transactionATC[Workspace.getChannel()];
+	}
+
+	public void setATC(short newATC) {
+		atc.set(newATC);
+	}
+
+	private void increaseATC() {
+		// once the ATC reached its maximum, no new session can start
+		atc.increment();
+	}
+
+	public short getLastOnlineATC() {
+		return lastOnlineATC;
+	}
+
+	public void setLastOnlineATC(short newLOATC) {
+		lastOnlineATC = newLOATC;
+	}
+
+	public void setLowerConsecutiveOfflineLimit(byte limit) {
+		lowerConsecutiveOfflineLimit = limit;
+	}
+
+	public void setUpperConsecutiveOfflineLimit(byte limit) {
+		upperConsecutiveOfflineLimit = limit;
+	}
+
+	public ProtocolState() {
+		volatileStates = new Object[Workspace.CHANNELS];
+		cvrs = new Object[Workspace.CHANNELS];
+		for (short i = 0; i < Workspace.CHANNELS; i++) {
+			volatileStates[i] = JCSystem.makeTransientByteArray((short) 5,
+					JCSystem.CLEAR_ON_DESELECT);
+			cvrs[i] = JCSystem.makeTransientByteArray((short) 4,
+					JCSystem.CLEAR_ON_DESELECT);
+		}
+		transactionATC = JCSystem.makeTransientShortArray(Workspace.CHANNELS,
+				JCSystem.CLEAR_ON_DESELECT);
+		lifecycle = PERSONALISATION;
+		atc = new WearLevelledCounter((short) 0x0005);
+		lastOnlineATC = (short) 0x0005;
+		lowerConsecutiveOfflineLimit = (byte) 0x05;
+		upperConsecutiveOfflineLimit = (byte) 0x0A;
+		consecutiveOfflineTransactions = 0;
+		lastOnlineNotCompleted = false;
+		issuerAuthenticationFailed = false;
+		issuerAuthenticationNotPerformed = false;
+		scriptCommandsProcessed = 0;
+		scriptFailed = false;
+	}
+
+	/*
+	 * Starts a new session. This resets all session data and increases the ATC,
+	 * but does not generate a session key yet.
+	 */
+	public void startNewSession() {
+		byte[] volatileState = getVolatileState();
+		byte[] cvr = getCVR();
+		volatileState[1] = smart.Emv.NONE;
+		volatileState[2] = smart.Emv.NONE;
+		setCVMPerformed(smart.Emv.NONE);
+		volatileState[3] = smart.Emv.NONE;
+		increaseATC();
+		transactionATC[Workspace.getChannel()] = getATC();
+		volatileState[PHASE] = PHASE_GPO_DONE;
+
+		cvr[0] = (byte) 0x03;
+		cvr[1] = CVR_SECOND_AC_NOT_REQUESTED;
+		cvr[2] = 0;
+		if (lastOnlineNotCompleted) {
+			cvr[2] = CVR_LAST_ONLINE_NOT_COMPLETED;
+		}
+		if (issuerAuthenticationFailed) {
+			cvr[2] |= CVR_LAST_ISSUER_AUTH_FAILED;
+		}
+		if (issuerAuthenticationNotPerformed) {
+			cvr[2] |= CVR_ISSUER_AUTH_NOT_PERFORMED;
+		}
+		cvr[3] = getScriptResults();
+	}
+
+	/* Returns the issuer script results as laid out in CVR byte 3 */
+	private byte getScriptResults() {
+		byte results = (byte) (scriptCommandsProcessed << 4);
+		if (scriptFailed) {
+			results |= CVR_SCRIPT_FAILED;
+		}
+		return results;
+	}
+
+	/*
+	 * Sets the last online ATC equal to the ATC of the transaction of the
+	 * current channel, which another channel may have moved past since
+	 */
+	public void onlineSessionCompleted() {
+		lastOnlineATC = getTransactionATC();
+	}
+
+	/*
+	 * Card risk management of the first GENERATE AC. An offline approval (TC)
+	 * is turned into an ARQC when the last online transaction was not
+	 * completed, or when the Lower Consecutive Offline Limit is reached; an
+	 * ARQC or AAC is kept. Returns the type of AC to generate, and records it
+	 * in the CVR.
+	 */
+	public byte checkFirstAC(byte cid) {
+		byte[] cvr = getCVR();
+		if (cid == Emv.TC_CODE) {
+			if (lastOnlineNotCompleted) {
+				cid = Emv.ARQC_CODE;
+			} else if (!isBelow(lowerConsecutiveOfflineLimit)) {
+				cvr[2] |= CVR_VELOCITY_EXCEEDED;
+				cid = Emv.ARQC_CODE;
+			}
+		}
+
+		// 00 AAC, 01 TC, 10 ARQC
+		cvr[1] = (byte) ((cvr[1] & ~CVR_FIRST_AC_TYPE) | ((cid & 0xC0) >> 2));
+		return cid;
+	}
+
+	/*
+	 * Card risk management of the second GENERATE AC. When the terminal could
+	 * not go online, an offline approval (TC) is only given below the Upper
+	 * Consecutive Offline Limit, and is turned into an AAC otherwise. Returns
+	 * the type of AC to generate, and records it in the CVR.
+	 */
+	public byte checkSecondAC(byte cid, boolean unableToGoOnline) {
+		byte[] cvr = getCVR();
+		if (unableToGoOnline) {
+			cvr[1] |= CVR_UNABLE_TO_GO_ONLINE;
+			if (cid == Emv.TC_CODE && !isBelow(upperConsecutiveOfflineLimit)) {
+				cvr[2] |= CVR_VELOCITY_EXCEEDED;
+				cid = Emv.AAC_CODE;
+			}
+		}
+
+		// 00 AAC, 01 TC
+		cvr[1] = (byte) ((cvr[1] & ~CVR_SECOND_AC_TYPE) | (cid & 0xC0));
+		return cid;
+	}
+
+	/*
+	 * Records the outcome of an offline PIN verification in the CVR
+	 */
+	public void setOfflinePINResult(boolean verified, byte triesRemaining) {
+		byte[] cvr = getCVR();
+		cvr[1] |= CVR_OFFLINE_PIN_PERFORMED;
+		if (verified) {
+			cvr[1] &= ~CVR_OFFLINE_PIN_FAILED;
+		} else {
+			cvr[1] |= CVR_OFFLINE_PIN_FAILED;
+		}
+		if (triesRemaining == 0) {
+			cvr[2] |= CVR_PIN_TRY_LIMIT_EXCEEDED;
+		}
+	}
+
+	/*
+	 * Records in the CVR that a DDA signature was returned
+	 */
+	public void setDDAPerformed() {
+		byte[] cvr = getCVR();
+		cvr[3] |= CVR_DDA_RETURNED;
+	}
+
+	/*
+	 * Returns the 4 byte CVR (Card Verification Results): a length byte and
+	 * the 3 bytes of flags set by the session so far
+	 */
+	public byte[] getCVR() {
+		return (byte[]) cvrs[Workspace.getChannel()];
+	}
+
+	/* Returns the volatile state of the current logical channel */
+	private byte[] getVolatileState() {
+		return (byte[]) volatileStates[Workspace.getChannel()];
+	}
+
+	/* true if fewer offline transactions than the limit were counted */
+	private boolean isBelow(byte limit) {
+		short count = (short) (consecutiveOfflineTransactions & 0xFF);
+		return count < (short) (limit & 0xFF);
+	}
+
+	/* Counts an offline approval, stopping at 255 */
+	private void countOfflineTransaction() {
+		if (consecutiveOfflineTransactions != (byte) 0xFF) {
+			consecutiveOfflineTransactions++;
+		}
+	}
+}
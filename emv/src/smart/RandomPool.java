@@ -0,0 +1,55 @@
+package smart;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacard.security.RandomData;
+
+/*
+ * Random bytes for GET CHALLENGE and the ICC Dynamic Numbers. The random
+ * generator is slow per call, so it fills a pool of POOL_SIZE bytes in one
+ * go, and the bytes are then handed out from the pool, each of them only
+ * once. The pool is transient: it is empty again after a deselect.
+ */
+public class RandomPool {
+	public static final short POOL_SIZE = (short) 32;
+
+	private final RandomData random;
+
+	/** Scratchpad transient byte array and offset of the pool in it */
+	private final byte[] pool;
+	private final short pool_offset;
+
+	/**
+	 * Number of unused bytes at the end of the pool, cleared on deselect
+	 * together with the pool
+	 */
+	private final short[] available;
+
+	public RandomPool(byte[] scratch, short offset) {
+		pool = scratch;
+		pool_offset = offset;
+		random = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
+		available = JCSystem.makeTransientShortArray((short) 1,
+				JCSystem.CLEAR_ON_DESELECT);
+	}
+
+	/*
+	 * Writes length random bytes at buf[offset], refilling the pool first if
+	 * it does not hold enough unused bytes. Requests larger than the pool go
+	 * to the random generator directly.
+	 */
+	public void generate(byte[] buf, short offset, short length) {
+		if (length > POOL_SIZE) {
+			random.generateData(buf, offset, length);
+			return;
+		}
+		if (length > available[0]) {
+			random.generateData(pool, pool_offset, POOL_SIZE);
+			available[0] = POOL_SIZE;
+		}
+
+		short next = (short) (pool_offset + POOL_SIZE - available[0]);
+		Util.arrayCopyNonAtomic(pool, next, buf, offset, length);
+		available[0] = (short) (available[0] - length);
+	}
+}
@@ -0,0 +1,212 @@
+package smart;
+
+import javacard.framework.APDU;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+
+/*
+ * Sends the response data of the commands, honoring the Le of the terminal
+ * (See ISO 7816-4, Section 5.1 and Book 1, Section 9.2.2):
+ *
+ * - data that fits in Le is sent at once;
+ *
+ * - if Le is shorter than the data of a short response, the command is
+ * rejected with 6Cxx, xx telling the exact length to ask for;
+ *
+ * - data longer than a short response (like a record with a 2048 bit
+ * certificate) is sent in chunks of Le bytes: every chunk ends with 61xx,
+ * and the terminal fetches the next one with GET RESPONSE.
+ *
+ * Only data that stays in place between the commands (records, FCIs, the
+ * APDU log) can be chained. Responses built in the APDU buffer always fit in
+ * one exchange. The data may come in two parts, the second one at the start
+ * of the same array, as for a cyclic log that wrapped.
+ *
+ * A command that changes the card state (GPO, GENERATE AC) calls checkLength
+ * before doing anything, so a 6Cxx leaves the state as it was and the
+ * terminal can send the command again with the right Le.
+ */
+public class Response {
+	/** Largest response data of a short APDU */
+	public static final short MAX_SHORT_LENGTH = 256;
+
+	/**
+	 * Array holding the data still to be fetched by GET RESPONSE, for every
+	 * logical channel
+	 */
+	private final Object[] pending_data;
+
+	/**
+	 * Offset of the data still to be fetched, its length up to the end of
+	 * its first part, and the length of its second part, at offset 0, per
+	 * channel
+	 */
+	private final short[] pending;
+	private static final byte PENDING_OFFSET = 0;
+	private static final byte PENDING_FIRST = 1;
+	private static final byte PENDING_SECOND = 2;
+	private static final byte PENDING_SIZE = 3;
+
+	/** Le of the current command, once checkLength has set it */
+	private final short[] le;
+
+	public Response() {
+		pending_data = JCSystem.makeTransientObjectArray(Workspace.CHANNELS,
+				JCSystem.CLEAR_ON_DESELECT);
+		pending = JCSystem.makeTransientShortArray(
+				(short) (Workspace.CHANNELS * PENDING_SIZE),
+				JCSystem.CLEAR_ON_DESELECT);
+		le = JCSystem.makeTransientShortArray((short) 1,
+				JCSystem.CLEAR_ON_DESELECT);
+	}
+
+	/*
+	 * Checks the Le of the current command against the length of the
+	 * response it is going to send, and throws 6Cxx if it is too short. To
+	 * be called once the command data is received, before the command
+	 * changes anything.
+	 */
+	public void checkLength(APDU apdu, short length) {
+		le[0] = apdu.setOutgoing();
+		checkLe(le[0], length);
+	}
+
+	/*
+	 * Sends data[offset..offset + length) as the response of the current
+	 * command.
+	 */
+	public void send(APDU apdu, byte[] data, short offset, short length) {
+		send(apdu, data, offset, length, (short) 0);
+	}
+
+	/*
+	 * Sends data[offset..offset + first) followed by data[0..second) as the
+	 * response of the current command.
+	 */
+	public void send(APDU apdu, byte[] data, short offset, short first,
+			short second) {
+		short length = (short) (first + second);
+		short le;
+		if (apdu.getCurrentState() == APDU.STATE_OUTGOING) {
+			// set by checkLength
+			le = this.le[0];
+		} else {
+			le = apdu.setOutgoing();
+		}
+		if (le >= length) {
+			sendChunk(apdu, data, offset, first, length);
+			return;
+		}
+		checkLe(le, length);
+
+		sendChunk(apdu, data, offset, first, le);
+		byte channel = Workspace.getChannel();
+		pending_data[channel] = data;
+		setPending(channel, offset, first, second, le);
+		ISOException.throwIt(getBytesRemaining((short) (length - le)));
+	}
+
+	/*
+	 * Process the GET RESPONSE APDU (INS=C0): sends the next chunk of the
+	 * response data left by the previous command, at most Le bytes.
+	 */
+	public void getResponse(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		if (buf[ISO7816.OFFSET_P1] != 0 || buf[ISO7816.OFFSET_P2] != 0) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+		byte channel = Workspace.getChannel();
+		short at = (short) (channel * PENDING_SIZE);
+		short offset = pending[(short) (at + PENDING_OFFSET)];
+		short first = pending[(short) (at + PENDING_FIRST)];
+		short second = pending[(short) (at + PENDING_SECOND)];
+		short remaining = (short) (first + second);
+		if (remaining == 0) {
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		}
+
+		short length = apdu.setOutgoing();
+		if (length > remaining) {
+			length = remaining;
+		}
+		sendChunk(apdu, (byte[]) pending_data[channel], offset, first, length);
+
+		remaining = (short) (remaining - length);
+		if (remaining != 0) {
+			setPending(channel, offset, first, second, length);
+			ISOException.throwIt(getBytesRemaining(remaining));
+		}
+		reset();
+	}
+
+	/*
+	 * Drops the data left by the previous command: only the command right
+	 * after a 61xx can fetch it, on the same logical channel.
+	 */
+	public void reset() {
+		byte channel = Workspace.getChannel();
+		short at = (short) (channel * PENDING_SIZE);
+		pending_data[channel] = null;
+		pending[(short) (at + PENDING_FIRST)] = 0;
+		pending[(short) (at + PENDING_SECOND)] = 0;
+	}
+
+	/*
+	 * Records what is left to fetch on the channel once the given number of
+	 * bytes of data[offset..offset + first) + data[0..second) were sent
+	 */
+	private void setPending(byte channel, short offset, short first,
+			short second, short sent) {
+		short at = (short) (channel * PENDING_SIZE);
+		if (sent < first) {
+			offset = (short) (offset + sent);
+			first = (short) (first - sent);
+		} else {
+			// into the second part
+			offset = (short) (sent - first);
+			first = (short) (second - offset);
+			second = 0;
+		}
+		pending[(short) (at + PENDING_OFFSET)] = offset;
+		pending[(short) (at + PENDING_FIRST)] = first;
+		pending[(short) (at + PENDING_SECOND)] = second;
+	}
+
+	/*
+	 * Throws 6Cxx if Le is shorter than the length of a short response,
+	 * xx telling the exact length to ask for. Longer data is chained in
+	 * chunks of Le bytes instead.
+	 */
+	private static void checkLe(short le, short length) {
+		if (le < length && length <= MAX_SHORT_LENGTH) {
+			ISOException.throwIt((short) (ISO7816.SW_CORRECT_LENGTH_00
+					| (length & 0xFF)));
+		}
+	}
+
+	/* Returns 61xx for the remaining data, 6100 meaning 256 bytes or more */
+	private static short getBytesRemaining(short remaining) {
+		if (remaining >= MAX_SHORT_LENGTH) {
+			return ISO7816.SW_BYTES_REMAINING_00;
+		}
+		return (short) (ISO7816.SW_BYTES_REMAINING_00 | remaining);
+	}
+
+	/*
+	 * Sends a chunk of data, after setOutgoing() was called: length bytes
+	 * from data[offset], continuing at data[0] after the first ones
+	 */
+	private void sendChunk(APDU apdu, byte[] data, short offset, short first,
+			short length) {
+		apdu.setOutgoingLength(length);
+		if (data == apdu.getBuffer()) {
+			apdu.sendBytes(offset, length);
+		} else if (length > first) {
+			apdu.sendBytesLong(data, offset, first);
+			apdu.sendBytesLong(data, (short) 0, (short) (length - first));
+		} else {
+			apdu.sendBytesLong(data, offset, length);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package smart;
+
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacard.security.DESKey;
+import javacard.security.KeyBuilder;
+import javacardx.crypto.Cipher;
+
+/*
+ * 3DES session key derived from an ICC master key with the EMV Common Session
+ * Key derivation (Book 2, Annex A1.3). The derived key is kept together with
+ * the ATC it belongs to, so all the cryptograms of one transaction (first AC,
+ * second AC, ARPC) share a single derivation, and so do all the commands of
+ * an issuer script for the secure messaging keys, which are also tied to the
+ * AC they were derived from.
+ */
+public class SessionKey {
+	private static final short AC_LENGTH = (short) 8;
+
+	/** 3DESKey master key the session key is derived from */
+	private final DESKey mk;
+
+	/** 3DESKey derived session key, cleared on deselect */
+	private final DESKey sk;
+
+	/** DES cipher in ECB mode without padding, shared with the owner */
+	private final Cipher desCipher;
+
+	/**
+	 * Scratchpad transient byte array and the offset of the 24 bytes lent to
+	 * this key: 8 bytes of diversification data followed by the 16 bytes of
+	 * the derived key
+	 */
+	private final byte[] derivation_data;
+	private final short derivation_offset;
+
+	/** ATC the current session key was derived for */
+	private final short[] sk_atc;
+
+	/**
+	 * Application Cryptogram the current session key was derived from, for
+	 * the secure messaging keys
+	 */
+	private final byte[] sk_ac;
+
+	public SessionKey(DESKey masterKey, Cipher cipher, byte[] scratch,
+			short offset) {
+		mk = masterKey;
+		desCipher = cipher;
+		derivation_data = scratch;
+		derivation_offset = offset;
+
+		sk = (DESKey) KeyBuilder.buildKey(
+				KeyBuilder.TYPE_DES_TRANSIENT_DESELECT,
+				KeyBuilder.LENGTH_DES3_2KEY, false);
+		sk_atc = JCSystem.makeTransientShortArray((short) 1,
+				JCSystem.CLEAR_ON_DESELECT);
+		sk_ac = JCSystem.makeTransientByteArray(AC_LENGTH,
+				JCSystem.CLEAR_ON_DESELECT);
+	}
+
+	/*
+	 * Returns the session key for the given ATC, deriving it only if the
+	 * cached key belongs to another ATC (or was cleared by a deselect). The
+	 * diversification value is R = ATC || 00 || 00 || 00 || 00 || 00 || 00,
+	 * as for the AC session key.
+	 */
+	public DESKey getKey(short atc) {
+		if (!sk.isInitialized() || sk_atc[0] != atc) {
+			Util.setShort(derivation_data, derivation_offset, atc);
+			Util.arrayFillNonAtomic(derivation_data,
+					(short) (derivation_offset + 2), (short) 6, (byte) 0);
+			derive(atc);
+		}
+		return sk;
+	}
+
+	/*
+	 * Returns the session key for the given ATC, derived with the 8 byte
+	 * Application Cryptogram at ac[offset] as the diversification value R,
+	 * as for the secure messaging session keys. The key is derived again
+	 * unless both the ATC and the AC are the ones of the cached key, as two
+	 * transactions can share an ATC (after a PUT DATA of the ATC).
+	 */
+	public DESKey getKey(short atc, byte[] ac, short offset) {
+		if (!sk.isInitialized() || sk_atc[0] != atc
+				|| Util.arrayCompare(ac, offset, sk_ac, (short) 0,
+						AC_LENGTH) != 0) {
+			Util.arrayCopyNonAtomic(ac, offset, derivation_data,
+					derivation_offset, AC_LENGTH);
+			Util.arrayCopyNonAtomic(ac, offset, sk_ac, (short) 0, AC_LENGTH);
+			derive(atc);
+		}
+		return sk;
+	}
+
+	/*
+	 * Discards the cached session key, eg. after the master key has changed.
+	 */
+	public void clear() {
+		sk.clearKey();
+	}
+
+	/*
+	 * Derives the session key as described in Book 2, Annex A1.3.1, from the
+	 * diversification value R found at the start of the derivation data: the
+	 * left 8 bytes are the encryption of R0 || R1 || F0 || R3 || R4 || R5 ||
+	 * R6 || R7 with the master key, and the right 8 bytes the encryption of
+	 * R0 || R1 || 0F || R3 || R4 || R5 || R6 || R7.
+	 */
+	private void derive(short atc) {
+		short offset = derivation_offset;
+
+		desCipher.init(mk, Cipher.MODE_ENCRYPT);
+
+		// compute left 8 bytes of the session key
+		derivation_data[(short) (offset + 2)] = (byte) 0xF0;
+		desCipher.doFinal(derivation_data, offset, (short) 8,
+				derivation_data, (short) (offset + 8));
+
+		// compute right 8 bytes of the session key
+		derivation_data[(short) (offset + 2)] = (byte) 0x0F;
+		desCipher.doFinal(derivation_data, offset, (short) 8,
+				derivation_data, (short) (offset + 16));
+
+		sk.setKey(derivation_data, (short) (offset + 8));
+		sk_atc[0] = atc;
+
+		// don't leave the key material lying around
+		Util.arrayFillNonAtomic(derivation_data, (short) (offset + 8),
+				(short) 16, (byte) 0);
+	}
+}
@@ -0,0 +1,123 @@
+package smart;
+
+import javacard.framework.Util;
+
+/*
+ * Helpers for BER-TLV coded data (See Book 3, Annex B). Tags of one or two
+ * bytes are handled as a short: 0x008C for tag 8C, 0x9F38 for tag 9F38.
+ * Lengths can be coded on one (xx), two (81 xx) or three (82 xx xx) bytes.
+ */
+public class Tlv {
+	/* Returns the tag of the TLV starting at the given offset */
+	public static short getTag(byte[] buf, short offset) {
+		if ((buf[offset] & 0x1F) == 0x1F) {
+			return Util.getShort(buf, offset);
+		}
+		return (short) (buf[offset] & 0xFF);
+	}
+
+	/* Returns the offset of the length of the TLV starting at offset */
+	private static short getLengthOffset(byte[] buf, short offset) {
+		if ((buf[offset] & 0x1F) == 0x1F) {
+			return (short) (offset + 2);
+		}
+		return (short) (offset + 1);
+	}
+
+	/* Returns the length of the value of the TLV starting at offset */
+	public static short getValueLength(byte[] buf, short offset) {
+		offset = getLengthOffset(buf, offset);
+		if (buf[offset] == (byte) 0x81) {
+			return (short) (buf[(short) (offset + 1)] & 0xFF);
+		}
+		if (buf[offset] == (byte) 0x82) {
+			return Util.getShort(buf, (short) (offset + 1));
+		}
+		return (short) (buf[offset] & 0xFF);
+	}
+
+	/* Returns the offset of the value of the TLV starting at offset */
+	public static short getValueOffset(byte[] buf, short offset) {
+		offset = getLengthOffset(buf, offset);
+		if (buf[offset] == (byte) 0x81) {
+			return (short) (offset + 2);
+		}
+		if (buf[offset] == (byte) 0x82) {
+			return (short) (offset + 3);
+		}
+		return (short) (offset + 1);
+	}
+
+	/* Returns the total size (tag, length and value) of the TLV at offset */
+	public static short getSize(byte[] buf, short offset) {
+		return (short) (getValueOffset(buf, offset) - offset + getValueLength(
+				buf, offset));
+	}
+
+	/* Returns the size of the tag and length of a TLV with the given value */
+	public static short getHeaderSize(short tag, short length) {
+		short size = 1;
+		if ((tag & (short) 0xFF00) != 0) {
+			size = 2;
+		}
+		if (length > 255) {
+			return (short) (size + 3);
+		}
+		if (length > 127) {
+			return (short) (size + 2);
+		}
+		return (short) (size + 1);
+	}
+
+	/*
+	 * Writes the tag and the length of a TLV at offset, and returns the offset
+	 * of its value
+	 */
+	public static short setHeader(byte[] buf, short offset, short tag,
+			short length) {
+		if ((tag & (short) 0xFF00) != 0) {
+			offset = Util.setShort(buf, offset, tag);
+		} else {
+			buf[offset++] = (byte) tag;
+		}
+		if (length > 255) {
+			buf[offset++] = (byte) 0x82;
+			return Util.setShort(buf, offset, length);
+		}
+		if (length > 127) {
+			buf[offset++] = (byte) 0x81;
+		}
+		buf[offset++] = (byte) length;
+		return offset;
+	}
+
+	/*
+	 * Looks for the given tag in the TLV coded data at buf[offset..offset +
+	 * length), including the data nested in constructed tags (like the 70 or
+	 * A5 templates). Returns the offset of the TLV found, or -1.
+	 */
+	public static short find(byte[] buf, short offset, short length,
+			short tag) {
+		short end = (short) (offset + length);
+
+		while (offset < end) {
+			if (buf[offset] == (byte) 0x00 || buf[offset] == (byte) 0xFF) {
+				// padding between TLVs
+				offset++;
+				continue;
+			}
+			if (getTag(buf, offset) == tag) {
+				return offset;
+			}
+
+			if ((buf[offset] & 0x20) == 0x20) {
+				// constructed: continue with the nested TLVs
+				offset = getValueOffset(buf, offset);
+			} else {
+				offset = (short) (getValueOffset(buf, offset) + getValueLength(
+						buf, offset));
+			}
+		}
+		return (short) -1;
+	}
+}
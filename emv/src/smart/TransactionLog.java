@@ -0,0 +1,155 @@
+package smart;
+
+import javacard.framework.APDU;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+
+/*
+ * Transaction log of the card (See Book 3, Annex D): a cyclic file of RECORDS
+ * fixed size records, one per completed transaction, that the terminal finds
+ * with the Log Entry (9F4D) of the FCI and reads with READ RECORD. The
+ * records are not TLV coded: each one is the concatenation of the values
+ * listed by the Log Format (9F4F), returned by GET DATA:
+ *
+ * 9F02 06 - Amount, Authorised
+ *
+ * 5F2A 02 - Transaction Currency Code
+ *
+ * 9A 03 - Transaction Date
+ *
+ * 9F27 01 - Cryptogram Information Data of the last AC
+ *
+ * 9F36 02 - ATC of the transaction
+ *
+ * Record 1 is the most recent transaction. An append writes the slot at
+ * log_head and moves the head past it, overwriting the oldest record once
+ * the file is full; the records already stored are never moved.
+ */
+public class TransactionLog {
+	/** SFI of the log file, next to the SFIs of the record store */
+	public static final byte SFI = (byte) 0x0B;
+	public static final byte RECORDS = (byte) 10;
+
+	// Offsets of the data elements in a record
+	private static final short AMOUNT = 0;
+	private static final short CURRENCY = 6;
+	private static final short DATE = 8;
+	private static final short CID = 11;
+	private static final short ATC = 12;
+	public static final short ENTRY_LENGTH = 14;
+
+	/** Log Format (9F4F): the tags and lengths of the record layout */
+	private final static byte[] log_format = { (byte) 0x9F, (byte) 0x02,
+			(byte) 0x06, (byte) 0x5F, (byte) 0x2A, (byte) 0x02, (byte) 0x9A,
+			(byte) 0x03, (byte) 0x9F, (byte) 0x27, (byte) 0x01, (byte) 0x9F,
+			(byte) 0x36, (byte) 0x02 };
+
+	/** The slots of the records, back to back */
+	private final byte[] records;
+
+	// Slot where the next record will be written
+	private byte log_head;
+	// Number of records stored
+	private byte log_count;
+
+	/**
+	 * Transient scratch memory shared with the applet, where the record of
+	 * the current transaction is built in the Workspace.LOG_ENTRY region
+	 */
+	private final byte[] scratch;
+
+	/** Sends the records */
+	private final Response response;
+
+	public TransactionLog(byte[] scratch, Response response) {
+		this.scratch = scratch;
+		this.response = response;
+		records = new byte[(short) (RECORDS * ENTRY_LENGTH)];
+		log_head = 0;
+		log_count = 0;
+	}
+
+	/*
+	 * Keeps the amount, the currency and the date of the transaction, found
+	 * in the CDOL related data at buf[offset], before the GENERATE AC
+	 * response overwrites it. A data element the CDOL does not request is
+	 * logged as zeros.
+	 */
+	public void setTerminalData(byte[] buf, short offset, Dol cdol) {
+		copyData(buf, offset, cdol, (short) 0x9F02, AMOUNT, (short) 6);
+		copyData(buf, offset, cdol, (short) 0x5F2A, CURRENCY, (short) 2);
+		copyData(buf, offset, cdol, (short) 0x009A, DATE, (short) 3);
+	}
+
+	/* Copies a data element of the CDOL data into the record being built */
+	private void copyData(byte[] buf, short offset, Dol cdol, short tag,
+			short dest, short length) {
+		dest = (short) (Workspace.LOG_ENTRY + dest);
+		short data = cdol.getOffset(tag);
+		if (data < 0 || cdol.getLength(tag) != length) {
+			Util.arrayFillNonAtomic(scratch, dest, length, (byte) 0);
+		} else {
+			Util.arrayCopyNonAtomic(buf, (short) (offset + data), scratch,
+					dest, length);
+		}
+	}
+
+	/*
+	 * Appends the record of a completed transaction, with the terminal data
+	 * kept by setTerminalData and the CID and ATC of its last AC
+	 */
+	public void append(byte cid, short atc) {
+		scratch[(short) (Workspace.LOG_ENTRY + CID)] = cid;
+		Util.setShort(scratch, (short) (Workspace.LOG_ENTRY + ATC), atc);
+
+		if (log_count == RECORDS) {
+			// Drop the oldest record, in the slot at the head, before it is
+			// overwritten
+			log_count = (byte) (RECORDS - 1);
+		}
+
+		// The slot is not part of the log until log_head moves past it, so
+		// no transaction is needed for the copy itself
+		Util.arrayCopyNonAtomic(scratch, Workspace.LOG_ENTRY, records,
+				(short) (log_head * ENTRY_LENGTH), ENTRY_LENGTH);
+
+		JCSystem.beginTransaction();
+		log_head = (byte) ((byte) (log_head + 1) % RECORDS);
+		log_count++;
+		JCSystem.commitTransaction();
+	}
+
+	/*
+	 * Process the READ RECORD APDU (INS=B2) for the log file: P1 holds the
+	 * record number, 1 being the most recent transaction, and P2 the SFI as
+	 * for the other files
+	 */
+	public void readRecord(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+
+		if ((buf[ISO7816.OFFSET_P2] & 0x07) != 0x04) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+		byte record = buf[ISO7816.OFFSET_P1];
+		if (record < 1 || record > log_count) {
+			ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		}
+
+		short slot = (short) ((short) (log_head - record + RECORDS) % RECORDS);
+		response.send(apdu, records, (short) (slot * ENTRY_LENGTH),
+				ENTRY_LENGTH);
+	}
+
+	/*
+	 * Writes the Log Format TLV (9F4F) to buf[offset] and returns its length
+	 */
+	public static short getLogFormat(byte[] buf, short offset) {
+		short end = Tlv.setHeader(buf, offset, (short) 0x9F4F,
+				(short) log_format.length);
+		end = Util.arrayCopyNonAtomic(log_format, (short) 0, buf, end,
+				(short) log_format.length);
+		return (short) (end - offset);
+	}
+}
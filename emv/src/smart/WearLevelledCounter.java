@@ -0,0 +1,108 @@
+package smart;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+
+/*
+ * 16 bit persistent counter spread over SLOTS rotating slots, so that a
+ * counter written once per transaction, like the ATC, does not wear a single
+ * EEPROM cell. Each slot holds a value and its check, the one's complement of
+ * the value, and the counter is the highest value of the valid slots.
+ *
+ * An increment writes the slot after the current one, ie. the oldest one:
+ * first its value, then its check. The update of a single short array element
+ * is atomic, so a tear leaves at worst the new slot invalid, and the counter
+ * at its previous value, without the cost of a JCSystem transaction.
+ */
+public class WearLevelledCounter {
+	public static final short SLOTS = 8;
+
+	/** Value and check of every slot, side by side */
+	private final short[] slots;
+
+	/**
+	 * Index of the slot holding the counter plus 1, 0 if it has to be looked
+	 * up again; cleared on deselect
+	 */
+	private final short[] current;
+
+	public WearLevelledCounter(short value) {
+		slots = new short[(short) (SLOTS * 2)];
+		current = JCSystem.makeTransientShortArray((short) 1,
+				JCSystem.CLEAR_ON_DESELECT);
+		write((short) 0, value);
+	}
+
+	/* Returns the counter, 0 if no slot is valid */
+	public short get() {
+		short slot = getSlot();
+		if (slot < 0) {
+			return 0;
+		}
+		return slots[(short) (slot * 2)];
+	}
+
+	/*
+	 * Increments the counter. Throws 6985 once it reached FFFF: a counter
+	 * never wraps around.
+	 */
+	public void increment() {
+		short slot = getSlot();
+		short value = 0;
+		if (slot >= 0) {
+			value = slots[(short) (slot * 2)];
+		}
+		if (value == (short) 0xFFFF) {
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		}
+		write((short) ((short) (slot + 1) % SLOTS), (short) (value + 1));
+	}
+
+	/*
+	 * Sets the counter to any value, also a lower one: the other slots are
+	 * invalidated in the same transaction.
+	 */
+	public void set(short value) {
+		JCSystem.beginTransaction();
+		for (short i = 2; i < (short) (SLOTS * 2); i++) {
+			slots[i] = 0; // a value of 0 with a check of 0 is invalid
+		}
+		write((short) 0, value);
+		JCSystem.commitTransaction();
+	}
+
+	/* Writes a value into a slot, which becomes the current one */
+	private void write(short slot, short value) {
+		slots[(short) (slot * 2)] = value;
+		slots[(short) (slot * 2 + 1)] = (short) ~value;
+		current[0] = (short) (slot + 1);
+	}
+
+	/* Returns the index of the valid slot with the highest value, or -1 */
+	private short getSlot() {
+		if (current[0] != 0) {
+			return (short) (current[0] - 1);
+		}
+
+		short best = -1;
+		short highest = 0;
+		for (short i = 0; i < SLOTS; i++) {
+			short value = slots[(short) (i * 2)];
+			if (slots[(short) (i * 2 + 1)] != (short) ~value) {
+				continue; // torn or never written
+			}
+			if (best < 0 || isAbove(value, highest)) {
+				best = i;
+				highest = value;
+			}
+		}
+		current[0] = (short) (best + 1);
+		return best;
+	}
+
+	/* Unsigned comparison of two values: true if a is above b */
+	private static boolean isAbove(short a, short b) {
+		return (short) (a ^ (short) 0x8000) > (short) (b ^ (short) 0x8000);
+	}
+}
@@ -0,0 +1,97 @@
+package smart;
+
+import javacard.framework.JCSystem;
+
+/*
+ * Transient scratch memory shared by all the components of the applet. It is
+ * allocated once, and each component borrows a fixed region of it instead of
+ * allocating its own RAM buffer. A region used within a single command is
+ * shared by all the logical channels; a region kept from one command to the
+ * next has a slot per channel:
+ *
+ * TRANSACTION_DATA (7 bytes) - Crypto: ICC-supplied data (AIP, ATC, CVR)
+ * MAC-ed after the CDOL data
+ *
+ * KEY_DERIVATION (24 bytes) - SessionKey: diversification data and derived
+ * key material, only used while a session key is derived; shared by all the
+ * session keys
+ *
+ * UNPREDICTABLE_NUMBER (4 bytes) - Crypto: the terminal's Unpredictable
+ * Number, kept for CDA while the response overwrites the CDOL data
+ *
+ * DYNAMIC_NUMBER (8 bytes) - DynamicSignature: ICC Dynamic Number of DDA,
+ * hashed before the signed data is written over the DDOL data
+ *
+ * RANDOM_POOL (RandomPool.POOL_SIZE bytes) - RandomPool: random bytes
+ * generated in advance
+ *
+ * ARQC (8 bytes per channel) - Crypto: the ARQC of the first AC, kept for
+ * the issuer authentication and the issuer scripts; see getARQC
+ *
+ * ARPC (8 bytes) - Crypto: the ARPC computed by the issuer authentication
+ *
+ * SCRIPT_MAC (Crypto.SCRIPT_MAC_LENGTH bytes) - Crypto: the ATC MAC-ed in
+ * an issuer script command, then the MAC computed to check the command
+ *
+ * LOG_ENTRY (TransactionLog.ENTRY_LENGTH bytes) - TransactionLog: the record
+ * of the transaction, built while the GENERATE AC response overwrites the
+ * CDOL data
+ *
+ * The space from FREE up to SIZE is not lent out yet.
+ */
+public class Workspace {
+	/** Logical channels the applet can be selected on at the same time */
+	public static final byte CHANNELS = 4;
+
+	public static final short TRANSACTION_DATA = 0;
+	public static final short TRANSACTION_DATA_LENGTH = 7;
+
+	public static final short KEY_DERIVATION = 7;
+	public static final short KEY_DERIVATION_LENGTH = 24;
+
+	public static final short UNPREDICTABLE_NUMBER = 31;
+	public static final short UNPREDICTABLE_NUMBER_LENGTH = 4;
+
+	public static final short DYNAMIC_NUMBER = 35;
+	public static final short DYNAMIC_NUMBER_LENGTH = 8;
+
+	public static final short RANDOM_POOL = 43;
+
+	public static final short ARQC = (short) (RANDOM_POOL
+			+ RandomPool.POOL_SIZE);
+	public static final short ARQC_LENGTH = 8;
+
+	public static final short ARPC = (short) (ARQC + ARQC_LENGTH * CHANNELS);
+	public static final short ARPC_LENGTH = 8;
+
+	public static final short SCRIPT_MAC = (short) (ARPC + ARPC_LENGTH);
+
+	public static final short LOG_ENTRY = (short) (SCRIPT_MAC
+			+ Crypto.SCRIPT_MAC_LENGTH);
+
+	public static final short FREE = (short) (LOG_ENTRY
+			+ TransactionLog.ENTRY_LENGTH);
+
+	public static final short SIZE = 144;
+
+	/** The scratch memory itself, cleared on deselect */
+	final byte[] buffer;
+
+	public Workspace() {
+		buffer = JCSystem.makeTransientByteArray(SIZE,
+				JCSystem.CLEAR_ON_DESELECT);
+	}
+
+	/*
+	 * Returns the logical channel the applet is selected on for the command,
+	 * select or deselect being processed
+	 */
+	public static byte getChannel() {
+		return JCSystem.getAssignedChannel();
+	}
+
+	/* Returns the offset of the ARQC slot of the current logical channel */
+	public static short getARQC() {
+		return (short) (ARQC + ARQC_LENGTH * getChannel());
+	}
+}
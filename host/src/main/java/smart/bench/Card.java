@@ -0,0 +1,287 @@
+package smart.bench;
+
+import java.lang.reflect.Field;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import javacard.framework.AID;
+import javacard.framework.APDU;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.base.SimulatorSystem;
+
+/*
+ * The Emv applet installed in a jCardSim simulator, together with the command
+ * APDUs of a plain contact transaction. The APDUs match the card data in
+ * FileSystem: the PDOL asks for 2 bytes, the CDOL1 for 29 and the CDOL2 for 31.
+ */
+public class Card {
+	/** AID the applet is registered with, as in the JCOP project */
+	public static final byte[] AID_BYTES = { (byte) 0xA0, 0x00, 0x00, 0x00,
+			0x03, 0x20, 0x10 };
+
+	/** SELECT of the PPSE, 2PAY.SYS.DDF01 */
+	public static final byte[] SELECT_PPSE = hex("00A404000E"
+			+ "325041592E5359532E4444463031" + "00");
+
+	public static final byte[] GET_PROCESSING_OPTIONS = hex("80A8000004"
+			+ "83020986" + "00");
+
+	public static final byte[] READ_RECORD = hex("00B2010C00");
+
+	public static final byte[] GENERATE_FIRST_AC = hex("80AE80001D"
+			+ "000000000100" + "000000000000" + "0986" + "0000000000"
+			+ "0986" + "150101" + "00" + "11223344");
+
+	public static final byte[] GENERATE_SECOND_AC = hex("80AE40001F" + "3030"
+			+ "000000000100" + "000000000000" + "0986" + "0000000000"
+			+ "0986" + "150101" + "00" + "11223344");
+
+	/** The first GENERATE AC, requesting a CDA signature (P1 bit 5) */
+	public static final byte[] GENERATE_FIRST_AC_CDA = withP1(
+			GENERATE_FIRST_AC, (byte) 0x90);
+
+	/** INTERNAL AUTHENTICATE with the default DDOL data, 9F37 04 */
+	public static final byte[] INTERNAL_AUTHENTICATE = hex("0088000004"
+			+ "11223344" + "00");
+
+	public static final byte[] GET_CHALLENGE = hex("0084000000");
+
+	public static final byte[] GET_DATA_ATC = hex("80CA9F3600");
+
+	/** Proprietary command turning off the replay of the injected AC */
+	public static final byte[] DISABLE_AC_REPLICATION = hex("80740000");
+
+	/** PUT DATA of the ATC, setting it back to 0 */
+	public static final byte[] RESET_ATC = hex("80DA9F36020000");
+
+	/** PUT DATA of the proprietary tag 9F71, selecting the contactless profile */
+	public static final byte[] SET_CONTACTLESS_PROFILE = hex("80DA9F710101");
+
+	/**
+	 * Issuer script PUT DATA of the Lower Consecutive Offline Limit, whose Lc
+	 * counts the MAC added by withScriptMAC
+	 */
+	public static final byte[] SCRIPT_PUT_DATA = hex("84DA9F140905");
+
+	/** ICC master key of the ACs, as set in Crypto */
+	private static final byte[] MK_AC = hex("110C1D0203040CDAFACA04111214CA16");
+
+	/** ICC master key of the issuer script MACs, as set in Crypto */
+	private static final byte[] MK_SMI = hex("211C2D1213141CEA0ADA14212224DA26");
+
+	// Offsets of the ATC and of the AC in a GENERATE AC response
+	private static final int AC_RESPONSE_ATC = 9;
+	private static final int AC_RESPONSE_AC = 14;
+
+	private final Simulator simulator;
+	private final AID aid;
+
+	public Card() {
+		this(new byte[0]);
+	}
+
+	/*
+	 * Installs the applet with the given application specific parameters
+	 * (see InstallParameters), empty for the defaults
+	 */
+	public Card(byte[] appletData) {
+		simulator = new Simulator();
+		aid = new AID(AID_BYTES, (short) 0, (byte) AID_BYTES.length);
+		SimulatorSystem.currentChannel = 0;
+
+		// install parameters: AID length, AID, no privileges, applet data
+		byte[] params = new byte[AID_BYTES.length + 3 + appletData.length];
+		params[0] = (byte) AID_BYTES.length;
+		System.arraycopy(AID_BYTES, 0, params, 1, AID_BYTES.length);
+		params[AID_BYTES.length + 2] = (byte) appletData.length;
+		System.arraycopy(appletData, 0, params, AID_BYTES.length + 3,
+				appletData.length);
+		simulator.installApplet(aid, smart.Emv.class, params, (short) 0,
+				(byte) params.length);
+	}
+
+	/* Selects the applet and returns the FCI */
+	public byte[] select() {
+		return check(simulator.selectAppletWithResult(aid));
+	}
+
+	/* Sends a command APDU and returns the response, which must end in 9000 */
+	public byte[] send(byte[] command) {
+		return check(simulator.transmitCommand(command));
+	}
+
+	/* Sends a command APDU and returns the response, whatever its status */
+	public byte[] transmit(byte[] command) {
+		return simulator.transmitCommand(command);
+	}
+
+	/*
+	 * Sends a command APDU with data and an Le, and returns the response,
+	 * whatever its status. jCardSim 2.2.2 drops the Le of such a command: its
+	 * setIncomingAndReceive sets the Le back to 256. The simulator's APDU is
+	 * set up instead as if the command data had already been received, as a
+	 * T=1 reader hands over the whole command, with the Le kept. A command
+	 * without data, given as its 4 byte header, gets the Le as well: jCardSim
+	 * does not read it either.
+	 */
+	public byte[] transmit(byte[] command, int le) {
+		APDU apdu = (APDU) field(null, "thisAPDU");
+		byte[] vars = (byte[]) field(apdu, "ramVars");
+		vars[0] = (byte) le; // Le, 0 meaning 256
+		if (command.length == 4) {
+			byte[] withLe = Arrays.copyOf(command, 5);
+			withLe[4] = (byte) le;
+			return simulator.transmitCommand(withLe);
+		}
+
+		int lc = command[4] & 0xFF;
+		vars[2] = 0; // data left to receive
+		vars[3] = (byte) lc; // data received
+		((boolean[]) field(apdu, "flags"))[3] = true; // incoming
+		byte[] withLe = new byte[5 + lc + 1];
+		System.arraycopy(command, 0, withLe, 0, 5 + lc);
+		withLe[5 + lc] = (byte) le;
+		return simulator.transmitCommand(withLe);
+	}
+
+	/* Returns a private field of the simulator's APDU (static for null) */
+	private static Object field(APDU apdu, String name) {
+		try {
+			Field field = APDU.class.getDeclaredField(name);
+			field.setAccessible(true);
+			return field.get(apdu);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Switches to the given logical channel: the next commands, SELECT
+	 * included, are processed on it. jCardSim has no MANAGE CHANNEL, the
+	 * channel is set in the simulator instead.
+	 */
+	public void setChannel(int channel) {
+		SimulatorSystem.currentChannel = (byte) channel;
+	}
+
+	/* Returns the status word of a response */
+	public static int sw(byte[] response) {
+		return ((response[response.length - 2] & 0xFF) << 8)
+				| (response[response.length - 1] & 0xFF);
+	}
+
+	/*
+	 * Returns the issuer script command followed by its secure messaging MAC,
+	 * for the transaction whose first GENERATE AC returned the given ARQC
+	 * response: a 3DES CBC MAC over the header, the ATC, the ARQC and the
+	 * command data, with the session key derived from MK_SMI and the ARQC.
+	 */
+	public static byte[] withScriptMAC(byte[] command, byte[] arqcResponse) {
+		byte[] arqc = new byte[8];
+		System.arraycopy(arqcResponse, AC_RESPONSE_AC, arqc, 0, 8);
+
+		// header, ATC, ARQC and data, padded with 80 00 .. 00
+		int dataLength = command.length - 5;
+		byte[] input = new byte[(5 + 2 + 8 + dataLength) / 8 * 8 + 8];
+		System.arraycopy(command, 0, input, 0, 5);
+		System.arraycopy(arqcResponse, AC_RESPONSE_ATC, input, 5, 2);
+		System.arraycopy(arqc, 0, input, 7, 8);
+		System.arraycopy(command, 5, input, 15, dataLength);
+		input[15 + dataLength] = (byte) 0x80;
+
+		try {
+			byte[] sk = sessionKey(MK_SMI, arqc);
+			Cipher mac = Cipher.getInstance("DESede/CBC/NoPadding");
+			mac.init(Cipher.ENCRYPT_MODE, desKey(sk), new IvParameterSpec(
+					new byte[8]));
+			byte[] cbc = mac.doFinal(input);
+
+			byte[] secured = new byte[command.length + 8];
+			System.arraycopy(command, 0, secured, 0, command.length);
+			System.arraycopy(cbc, cbc.length - 8, secured, command.length, 8);
+			return secured;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Returns the EXTERNAL AUTHENTICATE of the issuer's response to the
+	 * given ARQC response: the ARPC (ARPC Method 1, the ARQC XOR-ed with the
+	 * ARC and encrypted with the AC session key of its ATC) and the ARC
+	 */
+	public static byte[] externalAuthenticate(byte[] arqcResponse,
+			byte[] arc) {
+		byte[] r = new byte[8];
+		System.arraycopy(arqcResponse, AC_RESPONSE_ATC, r, 0, 2);
+		byte[] input = new byte[8];
+		System.arraycopy(arqcResponse, AC_RESPONSE_AC, input, 0, 8);
+		input[0] ^= arc[0];
+		input[1] ^= arc[1];
+
+		try {
+			Cipher des = Cipher.getInstance("DESede/ECB/NoPadding");
+			des.init(Cipher.ENCRYPT_MODE, desKey(sessionKey(MK_AC, r)));
+			byte[] command = hex("008200000A00000000000000000000");
+			System.arraycopy(des.doFinal(input), 0, command, 5, 8);
+			System.arraycopy(arc, 0, command, 13, 2);
+			return command;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Returns the session key derived from a master key with the
+	 * diversification value R: the encryptions of R with F0, then 0F, in
+	 * byte 2
+	 */
+	private static byte[] sessionKey(byte[] mk, byte[] r)
+			throws GeneralSecurityException {
+		Cipher des = Cipher.getInstance("DESede/ECB/NoPadding");
+		des.init(Cipher.ENCRYPT_MODE, desKey(mk));
+		byte[] sk = new byte[16];
+		r = (byte[]) r.clone();
+		r[2] = (byte) 0xF0;
+		System.arraycopy(des.doFinal(r), 0, sk, 0, 8);
+		r[2] = (byte) 0x0F;
+		System.arraycopy(des.doFinal(r), 0, sk, 8, 8);
+		return sk;
+	}
+
+	/* Returns a double length key as a DESede key */
+	private static SecretKeySpec desKey(byte[] key) {
+		byte[] k1k2k1 = new byte[24];
+		System.arraycopy(key, 0, k1k2k1, 0, 16);
+		System.arraycopy(key, 0, k1k2k1, 16, 8);
+		return new SecretKeySpec(k1k2k1, "DESede");
+	}
+
+	private static byte[] check(byte[] response) {
+		int sw = sw(response);
+		if (sw != 0x9000) {
+			throw new IllegalStateException(String.format(
+					"card returned %04X", sw));
+		}
+		return response;
+	}
+
+	private static byte[] withP1(byte[] command, byte p1) {
+		byte[] copy = (byte[]) command.clone();
+		copy[2] = p1;
+		return copy;
+	}
+
+	public static byte[] hex(String s) {
+		byte[] b = new byte[s.length() / 2];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+		}
+		return b;
+	}
+}
@@ -0,0 +1,182 @@
+package smart.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * One benchmark per command of a contact transaction, each run against an
+ * applet brought into the state the command needs: selected for SELECT (of
+ * the application or of the PPSE), GPO, READ RECORD and GET DATA, after a
+ * GPO for INTERNAL AUTHENTICATE and the first GENERATE AC, after the first AC
+ * for the second one, after an ARQC for an issuer script command. The AC
+ * replication is turned off for the benchmarks computing a cryptogram, so
+ * they measure the MAC computation.
+ *
+ * All the issuer script commands of the benchmark belong to one transaction:
+ * its script MAC key is only derived for the first one, as for a script.
+ *
+ * Every GPO increments the ATC, which stops at FFFF, so the states of the
+ * benchmarks sending GPO set it back to 0 before every invocation.
+ *
+ * Run with: java -jar target/benchmarks.jar [-prof gc]
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+
+	@State(Scope.Thread)
+	public static class Selected {
+		Card card;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			card = new Card();
+			card.select();
+			configure();
+		}
+
+		/* Sends the commands setting up the card for the benchmark */
+		void configure() {
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Transaction extends Selected {
+		void configure() {
+			card.send(Card.DISABLE_AC_REPLICATION);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class BeforeGPO extends Selected {
+		@Setup(Level.Invocation)
+		public void resetATC() {
+			card.send(Card.RESET_ATC);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class AfterGPO extends Selected {
+		void configure() {
+			card.send(Card.GET_PROCESSING_OPTIONS);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Contactless extends Transaction {
+		void configure() {
+			super.configure();
+			card.send(Card.SET_CONTACTLESS_PROFILE);
+		}
+
+		@Setup(Level.Invocation)
+		public void resetATC() {
+			card.send(Card.RESET_ATC);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class BeforeFirstAC extends Transaction {
+		@Setup(Level.Invocation)
+		public void startTransaction() {
+			card.send(Card.RESET_ATC);
+			card.send(Card.GET_PROCESSING_OPTIONS);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class BeforeSecondAC extends Transaction {
+		@Setup(Level.Invocation)
+		public void startTransaction() {
+			card.send(Card.RESET_ATC);
+			card.send(Card.GET_PROCESSING_OPTIONS);
+			card.send(Card.GENERATE_FIRST_AC);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class InScript extends Transaction {
+		byte[] command;
+
+		void configure() {
+			super.configure();
+			card.send(Card.GET_PROCESSING_OPTIONS);
+			command = Card.withScriptMAC(Card.SCRIPT_PUT_DATA,
+					card.send(Card.GENERATE_FIRST_AC));
+		}
+	}
+
+	@Benchmark
+	public byte[] select(Selected state) {
+		return state.card.select();
+	}
+
+	@Benchmark
+	public byte[] selectPPSE(Selected state) {
+		return state.card.send(Card.SELECT_PPSE);
+	}
+
+	@Benchmark
+	public byte[] getProcessingOptions(BeforeGPO state) {
+		return state.card.send(Card.GET_PROCESSING_OPTIONS);
+	}
+
+	@Benchmark
+	public byte[] getProcessingOptionsContactless(Contactless state) {
+		return state.card.send(Card.GET_PROCESSING_OPTIONS);
+	}
+
+	@Benchmark
+	public byte[] readRecord(Selected state) {
+		return state.card.send(Card.READ_RECORD);
+	}
+
+	@Benchmark
+	public byte[] generateFirstAC(BeforeFirstAC state) {
+		return state.card.send(Card.GENERATE_FIRST_AC);
+	}
+
+	@Benchmark
+	public byte[] generateFirstACWithCDA(BeforeFirstAC state) {
+		return state.card.send(Card.GENERATE_FIRST_AC_CDA);
+	}
+
+	@Benchmark
+	public byte[] generateSecondAC(BeforeSecondAC state) {
+		return state.card.send(Card.GENERATE_SECOND_AC);
+	}
+
+	@Benchmark
+	public byte[] getChallenge(Selected state) {
+		return state.card.send(Card.GET_CHALLENGE);
+	}
+
+	@Benchmark
+	public byte[] internalAuthenticate(AfterGPO state) {
+		return state.card.send(Card.INTERNAL_AUTHENTICATE);
+	}
+
+	@Benchmark
+	public byte[] getData(Selected state) {
+		return state.card.send(Card.GET_DATA_ATC);
+	}
+
+	@Benchmark
+	public byte[] issuerScriptCommand(InScript state) {
+		return state.card.send(state.command);
+	}
+}
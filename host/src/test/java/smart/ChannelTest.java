@@ -0,0 +1,72 @@
+package smart;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javacard.framework.Util;
+
+import smart.bench.Card;
+
+/*
+ * Transactions interleaved on two logical channels: each one keeps its own
+ * ATC, and completing the online transaction of one sets the last online ATC
+ * to its own ATC, not to the one the other channel took since.
+ */
+public class ChannelTest {
+	private static final byte[] GET_LAST_ONLINE_ATC = Card.hex("80CA9F1300");
+	private static final byte[] ARC = Card.hex("3030");
+
+	// Offset of the ATC in a GENERATE AC response
+	private static final int AC_RESPONSE_ATC = 9;
+
+	private final Card card = new Card();
+
+	@After
+	public void tearDown() {
+		card.setChannel(0);
+	}
+
+	@Test
+	public void externalAuthenticateUsesTheATCOfItsChannel() {
+		card.select();
+		card.send(Card.DISABLE_AC_REPLICATION);
+		card.send(Card.GET_PROCESSING_OPTIONS);
+		byte[] arqc = card.send(Card.GENERATE_FIRST_AC);
+		byte[] atc = Arrays.copyOfRange(arqc, AC_RESPONSE_ATC,
+				AC_RESPONSE_ATC + 2);
+
+		// another transaction starts on channel 1, taking the next ATC
+		card.setChannel(1);
+		card.select();
+		card.send(Card.GET_PROCESSING_OPTIONS);
+
+		card.setChannel(0);
+		card.send(Card.externalAuthenticate(arqc, ARC));
+		card.send(Card.GENERATE_SECOND_AC);
+		byte[] lastOnline = card.send(GET_LAST_ONLINE_ATC);
+		assertArrayEquals(atc, Arrays.copyOfRange(lastOnline, 3, 5));
+
+		// the transaction of channel 1 goes on with its own ATC
+		card.setChannel(1);
+		byte[] second = card.send(Card.GENERATE_FIRST_AC);
+		assertEquals(Util.getShort(atc, (short) 0) + 1, Util.getShort(second,
+				(short) AC_RESPONSE_ATC));
+	}
+
+	@Test
+	public void wrongARPCIsRefused() {
+		card.select();
+		card.send(Card.DISABLE_AC_REPLICATION);
+		card.send(Card.GET_PROCESSING_OPTIONS);
+		byte[] arqc = card.send(Card.GENERATE_FIRST_AC);
+
+		byte[] command = Card.externalAuthenticate(arqc, ARC);
+		command[5] ^= 0x01;
+		assertEquals(0x6300, Card.sw(card.transmit(command)));
+	}
+}
@@ -0,0 +1,44 @@
+package smart;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import smart.bench.Card;
+
+/*
+ * Contactless profile: the ARQC of a tap is not left as an online transaction
+ * not completed, which would force the next contact transactions online.
+ */
+public class ContactlessTest {
+	private static final byte[] DISABLE_IAD_REPLICATION = Card
+			.hex("80780000");
+	private static final byte[] SET_CONTACT_PROFILE = Card
+			.hex("80DA9F710100");
+	/** The first GENERATE AC, asking for a TC */
+	private static final byte[] FIRST_AC_TC = Card.hex("80AE40001D"
+			+ "000000000100" + "000000000000" + "0986" + "0000000000"
+			+ "0986" + "150101" + "00" + "11223344");
+
+	// Offsets in a GENERATE AC response of the CID and of CVR byte 2, in the
+	// IAD built by the card
+	private static final int CID = 5;
+	private static final int CVR_2 = 30;
+
+	@Test
+	public void tapDoesNotForceTheNextContactTransactionOnline() {
+		Card card = new Card();
+		card.select();
+		card.send(DISABLE_IAD_REPLICATION);
+		card.send(Card.SET_CONTACTLESS_PROFILE);
+		card.send(Card.GET_PROCESSING_OPTIONS);
+
+		card.select();
+		card.send(SET_CONTACT_PROFILE);
+		card.send(Card.GET_PROCESSING_OPTIONS);
+		byte[] response = card.send(FIRST_AC_TC);
+		assertEquals(0x40, response[CID]);
+		// last online transaction not completed
+		assertEquals(0, response[CVR_2] & 0x80);
+	}
+}
@@ -0,0 +1,145 @@
+package smart;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import smart.bench.Card;
+
+/*
+ * The dynamic signatures recovered with the public key of an ICC key loaded
+ * at personalisation: the signed data has the format of Book 2, and its hash
+ * covers the data the terminal sent.
+ */
+public class DynamicSignatureTest {
+	private static final int SIGNATURE_LENGTH = 128;
+	private static final int HASH_LENGTH = 20;
+	/** Offset of the hash in the recovered data */
+	private static final int HASH = SIGNATURE_LENGTH - HASH_LENGTH - 1;
+
+	/** PDOL data of Card.GET_PROCESSING_OPTIONS */
+	private static final byte[] PDOL_DATA = Card.hex("0986");
+
+	private Card card;
+	private IccKey key;
+
+	@Before
+	public void setUp() {
+		card = new Card();
+		card.select();
+		key = new IccKey();
+		key.store(card);
+		card.send(Card.DISABLE_AC_REPLICATION);
+		card.send(Card.GET_PROCESSING_OPTIONS);
+	}
+
+	@Test
+	public void cdaSignatureRecovers() {
+		byte[] command = Card.GENERATE_FIRST_AC_CDA;
+		byte[] response = card.send(command);
+		byte[] cdolData = Arrays.copyOfRange(command, 5, 5 + command[4]);
+
+		// 77 L 9F27 01 [CID] 9F36 02 [ATC] 9F4B 81 80 [SDAD] 9F10 L [IAD]
+		assertEquals(0x77, response[0] & 0xFF);
+		int offset = (response[1] & 0xFF) == 0x81 ? 3 : 2;
+		byte[] cidAndAtc = Arrays.copyOfRange(response, offset, offset + 9);
+		assertArrayEquals(Card.hex("9F2701"), Arrays.copyOf(cidAndAtc, 3));
+		int sdad = offset + 9 + 4;
+		assertArrayEquals(Card.hex("9F4B8180"), Arrays.copyOfRange(response,
+				sdad - 4, sdad));
+		byte[] iad = Arrays.copyOfRange(response, sdad + SIGNATURE_LENGTH,
+				response.length - 2);
+
+		byte[] recovered = key.recover(Arrays.copyOfRange(response, sdad,
+				sdad + SIGNATURE_LENGTH));
+		checkFormat(recovered);
+
+		// ICC Dynamic Data (Book 2, Table 19): the dynamic number, the CID,
+		// the AC and the Transaction Data Hash Code
+		int dynamicLength = recovered[3];
+		assertEquals(1 + 8 + 1 + 8 + HASH_LENGTH, dynamicLength);
+		assertEquals(8, recovered[4]);
+		assertEquals(cidAndAtc[3], recovered[13]);
+		byte[] transactionHash = Arrays.copyOfRange(recovered, 22,
+				22 + HASH_LENGTH);
+		assertArrayEquals(sha1(PDOL_DATA, cdolData, cidAndAtc, iad),
+				transactionHash);
+
+		// the signature hash ends with the Unpredictable Number
+		byte[] un = Arrays.copyOfRange(cdolData, cdolData.length - 4,
+				cdolData.length);
+		checkHash(recovered, un);
+	}
+
+	@Test
+	public void ddaSignatureRecovers() {
+		byte[] command = Card.INTERNAL_AUTHENTICATE;
+		byte[] ddolData = Arrays.copyOfRange(command, 5, 5 + command[4]);
+		byte[] recovered = recoverDDA();
+		checkFormat(recovered);
+
+		// ICC Dynamic Data: the ICC Dynamic Number and its length, then the
+		// padding up to the hash
+		assertEquals(9, recovered[3]);
+		assertEquals(8, recovered[4]);
+		for (int i = 4 + 9; i < HASH; i++) {
+			assertEquals((byte) 0xBB, recovered[i]);
+		}
+		checkHash(recovered, ddolData);
+	}
+
+	@Test
+	public void ddaDynamicNumberChanges() {
+		byte[] first = recoverDDA();
+		card.send(Card.GET_PROCESSING_OPTIONS);
+		byte[] second = recoverDDA();
+		assertFalse(Arrays.equals(Arrays.copyOfRange(first, 5, 13),
+				Arrays.copyOfRange(second, 5, 13)));
+	}
+
+	/* Returns the data signed by INTERNAL AUTHENTICATE */
+	private byte[] recoverDDA() {
+		byte[] response = card.send(Card.INTERNAL_AUTHENTICATE);
+		// Format 1: 80 81 80 [SDAD]
+		assertArrayEquals(Card.hex("808180"), Arrays.copyOf(response, 3));
+		return key.recover(Arrays.copyOfRange(response, 3,
+				3 + SIGNATURE_LENGTH));
+	}
+
+	/* Checks the header, the signed data format and the trailer */
+	private static void checkFormat(byte[] recovered) {
+		assertEquals(0x6A, recovered[0]);
+		assertEquals(0x05, recovered[1]);
+		assertEquals(0x01, recovered[2]); // SHA-1
+		assertEquals((byte) 0xBC, recovered[SIGNATURE_LENGTH - 1]);
+	}
+
+	/*
+	 * Checks that the hash of the recovered data covers its fields from the
+	 * signed data format to the padding, followed by the given terminal data
+	 */
+	private static void checkHash(byte[] recovered, byte[] terminalData) {
+		assertArrayEquals(sha1(Arrays.copyOfRange(recovered, 1, HASH),
+				terminalData), Arrays.copyOfRange(recovered, HASH, HASH
+				+ HASH_LENGTH));
+	}
+
+	private static byte[] sha1(byte[]... parts) {
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-1");
+			for (byte[] part : parts) {
+				sha.update(part);
+			}
+			return sha.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
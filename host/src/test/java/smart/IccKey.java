@@ -0,0 +1,84 @@
+package smart;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+
+import javax.crypto.Cipher;
+
+import smart.bench.Card;
+
+/*
+ * An ICC key pair made on the host, as an issuer would: its private key is
+ * loaded with the STORE DATA DGIs 8201 to 8205, and its public key recovers
+ * the signed data of the dynamic signatures.
+ */
+class IccKey {
+	private static final int COMPONENT_LENGTH = 64;
+
+	private final RSAPrivateCrtKey privateKey;
+	private final RSAPublicKey publicKey;
+
+	IccKey() {
+		try {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(1024);
+			KeyPair pair = generator.generateKeyPair();
+			privateKey = (RSAPrivateCrtKey) pair.getPrivate();
+			publicKey = (RSAPublicKey) pair.getPublic();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Returns the STORE DATA command of the given block carrying the DGI of
+	 * a component (0 for 8201 to 4 for 8205)
+	 */
+	byte[] storeComponent(int block, int component, boolean last) {
+		BigInteger[] components = { privateKey.getCrtCoefficient(),
+				privateKey.getPrimeExponentQ(),
+				privateKey.getPrimeExponentP(), privateKey.getPrimeQ(),
+				privateKey.getPrimeP() };
+		return Card.hex(String.format("80E2%02X%02X%02X%04X%02X",
+				last ? 0x80 : 0x00, block, 3 + COMPONENT_LENGTH,
+				0x8201 + component, COMPONENT_LENGTH)
+				+ toHex(components[component]));
+	}
+
+	/* Sends the five DGIs of the private key, ending the personalisation */
+	void store(Card card) {
+		for (int i = 0; i < 5; i++) {
+			card.send(storeComponent(i, i, i == 4));
+		}
+	}
+
+	/* Returns the data signed in a signature, with the public key */
+	byte[] recover(byte[] signature) {
+		try {
+			Cipher rsa = Cipher.getInstance("RSA/ECB/NoPadding");
+			rsa.init(Cipher.ENCRYPT_MODE, publicKey);
+			byte[] recovered = rsa.doFinal(signature);
+			// BigInteger arithmetic drops the leading zeros
+			byte[] padded = new byte[signature.length];
+			System.arraycopy(recovered, 0, padded, padded.length
+					- recovered.length, recovered.length);
+			return padded;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/* Returns the value as COMPONENT_LENGTH bytes of hex */
+	private static String toHex(BigInteger value) {
+		String hex = value.toString(16).toUpperCase();
+		StringBuilder padded = new StringBuilder();
+		for (int i = hex.length(); i < 2 * COMPONENT_LENGTH; i++) {
+			padded.append('0');
+		}
+		return padded.append(hex).toString();
+	}
+}
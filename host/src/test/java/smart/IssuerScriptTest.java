@@ -0,0 +1,75 @@
+package smart;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import smart.bench.Card;
+
+/*
+ * Issuer script UPDATE RECORD of the record holding the CDOLs (SFI 1, record
+ * 3): a record whose CDOL cannot be parsed is refused before anything is
+ * written, and a valid one changes the CDOLs along with the record.
+ */
+public class IssuerScriptTest {
+	private static final byte[] READ_CDOL_RECORD = Card.hex("00B2030C00");
+
+	private Card card;
+
+	@Before
+	public void setUp() {
+		card = new Card();
+		card.select();
+		card.send(Card.DISABLE_AC_REPLICATION);
+	}
+
+	/*
+	 * Returns the UPDATE RECORD of the CDOL record with the given tag 70
+	 * template, MAC-ed for a new transaction
+	 */
+	private byte[] updateCDOLRecord(String record) {
+		card.send(Card.GET_PROCESSING_OPTIONS);
+		byte[] arqc = card.send(Card.GENERATE_FIRST_AC);
+		byte[] command = Card.hex("84DC030C"
+				+ String.format("%02X", record.length() / 2 + 8) + record);
+		return Card.withScriptMAC(command, arqc);
+	}
+
+	@Test
+	public void tooManyEntriesLeaveTheCDOLsUnchanged() {
+		byte[] before = card.send(READ_CDOL_RECORD);
+
+		StringBuilder dol = new StringBuilder();
+		for (int i = 0; i < Dol.MAX_ENTRIES + 1; i++) {
+			dol.append("9505");
+		}
+		String record = "7024" + "8C22" + dol;
+		assertEquals(0x6A80, Card.sw(card.transmit(updateCDOLRecord(record))));
+
+		assertArrayEquals(before, card.send(READ_CDOL_RECORD));
+		// the CDOL1 still asks for 29 bytes
+		card.send(Card.GET_PROCESSING_OPTIONS);
+		card.send(Card.GENERATE_FIRST_AC);
+	}
+
+	@Test
+	public void truncatedEntryIsRefused() {
+		byte[] before = card.send(READ_CDOL_RECORD);
+
+		String record = "7008" + "8C039F3704" + "8D0195";
+		assertEquals(0x6A80, Card.sw(card.transmit(updateCDOLRecord(record))));
+		assertArrayEquals(before, card.send(READ_CDOL_RECORD));
+	}
+
+	@Test
+	public void validCDOLsReplaceTheOldOnes() {
+		String record = "700A" + "8C039F3704" + "8D039F3704";
+		card.send(updateCDOLRecord(record));
+
+		card.send(Card.GET_PROCESSING_OPTIONS);
+		assertEquals(0x6700, Card.sw(card.transmit(Card.GENERATE_FIRST_AC)));
+		card.send(Card.hex("80AE80000411223344" + "00"));
+	}
+}
@@ -0,0 +1,102 @@
+package smart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+import smart.bench.Card;
+
+/*
+ * APDU log larger than the longest command: the entries of commands too long
+ * for their length byte are truncated, so the log stays readable after it
+ * wraps, and a log larger than a short response is fetched whole with GET
+ * RESPONSE.
+ */
+public class LogTest {
+	private static final byte[] GET_LOG_DATA = Card.hex("80CA9F72");
+	private static final byte[] GET_RESPONSE = Card.hex("00C00000");
+	/**
+	 * Le of the commands reading the log: jCardSim sends at most 255 bytes
+	 * at once
+	 */
+	private static final int LE = 0xF0;
+
+	/* Returns a PUT DATA of the given data length, refused by the applet */
+	private static byte[] longCommand(int length) {
+		StringBuilder data = new StringBuilder(String.format("80DA9F71%02X",
+				length));
+		for (int i = 0; i < length; i++) {
+			data.append("5A");
+		}
+		return Card.hex(data.toString());
+	}
+
+	/* Reads the whole log, fetching what is left with GET RESPONSE */
+	private static byte[] readLog(Card card) {
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		byte[] response = card.transmit(GET_LOG_DATA, LE);
+		while ((Card.sw(response) & 0xFF00) == 0x6100) {
+			log.write(response, 0, response.length - 2);
+			response = card.transmit(GET_RESPONSE, LE);
+		}
+		assertEquals(0x9000, Card.sw(response));
+		log.write(response, 0, response.length - 2);
+		return log.toByteArray();
+	}
+
+	/* Checks the entries of the log and returns how many there are */
+	private static int checkEntries(byte[] log) {
+		int offset = 0;
+		int entries = 0;
+		while (offset < log.length) {
+			int length = log[offset] & 0xFF;
+			assertTrue(length >= 4);
+			// CLA 00 or 80
+			assertEquals(0, log[offset + 1] & 0x7F);
+			int lc = length > 4 ? log[offset + 5] & 0xFF : 0;
+			assertEquals(Math.min(255, lc == 0 ? 4 : 5 + lc), length);
+			offset += 1 + length;
+			entries++;
+		}
+		assertEquals(log.length, offset);
+		return entries;
+	}
+
+	@Test
+	public void longLogIsChained() {
+		// log capacity 0400
+		Card card = new Card(Card.hex("C1020400"));
+		card.select();
+
+		// 4 entries of 106 bytes
+		for (int i = 0; i < 4; i++) {
+			card.transmit(longCommand(100));
+		}
+		byte[] log = readLog(card);
+		// the SELECT of the applet (13 bytes), then the commands, and last
+		// the GET DATA of the log, whose Le the log takes for an Lc
+		assertEquals(13 + 4 * 106 + 1 + 5 + LE, log.length);
+		assertEquals(6, checkEntries(log));
+	}
+
+	@Test
+	public void longCommandsWrapTheLog() {
+		// log capacity 0200
+		Card card = new Card(Card.hex("C1020200"));
+		card.select();
+
+		// Lc of 251 to 255: commands of 256 to 260 bytes
+		for (int i = 0; i < 5; i++) {
+			card.transmit(longCommand(251 + i));
+			card.transmit(longCommand(100 + i));
+		}
+		byte[] log = readLog(card);
+
+		// every entry is a length byte and the start of a command
+		assertTrue(checkEntries(log) >= 2);
+		assertTrue(log.length > 256);
+	}
+}
@@ -0,0 +1,126 @@
+package smart;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import smart.bench.Card;
+
+/*
+ * STORE DATA: a DGI that cannot be applied is refused before anything is
+ * written, the DGI 9104 chooses the format of the GET PROCESSING OPTIONS
+ * response, and the ICC private key loaded with the DGIs 8201 to 8205 is the
+ * one the dynamic signatures are made with.
+ */
+public class PersonalisationTest {
+	/** INTERNAL AUTHENTICATE response header: 80 81 80 */
+	private static final int SDAD = 3;
+
+	@Test
+	public void invalidPDOLLeavesTheFCIUnchanged() {
+		Card card = new Card();
+		byte[] fci = card.select();
+
+		// 9102 with a PDOL whose only entry misses its length
+		byte[] store = Card.hex("80E200000D" + "91020A" + "500454455354"
+				+ "9F38029F37");
+		assertEquals(0x6A80, Card.sw(card.transmit(store)));
+		assertArrayEquals(fci, card.select());
+	}
+
+	@Test
+	public void longLabelIsRefused() {
+		Card card = new Card();
+		byte[] fci = card.select();
+
+		// 9102 with a label of 17 bytes, one more than Book 1 allows
+		byte[] store = Card.hex("80E2000016" + "910213" + "5011"
+				+ "4C4F4E474552204C4142454C20544F4F4F");
+		assertEquals(0x6A80, Card.sw(card.transmit(store)));
+		assertArrayEquals(fci, card.select());
+	}
+
+	@Test
+	public void badPINBlockIsRefused() {
+		Card card = new Card();
+		card.select();
+
+		// control byte 25: 5 digits where the PIN has 4
+		assertEquals(0x6A80, Card.sw(card.transmit(Card.hex("80E200000B"
+				+ "801008" + "251234FFFFFFFFFF"))));
+		// refused before the transaction, so none was left open
+		assertEquals(0x9000, Card.sw(card.transmit(Card.hex("80E200000B"
+				+ "801008" + "241234FFFFFFFFFF"))));
+	}
+
+	@Test
+	public void gpoDataInA77TemplateSelectsFormat2() {
+		Card card = new Card();
+		card.select();
+		card.send(Card.hex("80E2800013" + "910410" + "770E" + "82025C00"
+				+ "9408" + "0801030010010302"));
+
+		assertArrayEquals(Card.hex("770E" + "82025C00" + "9408"
+				+ "0801030010010302" + "9000"), card.send(
+				Card.GET_PROCESSING_OPTIONS));
+	}
+
+	@Test
+	public void gpoDataAsSuchSelectsFormat1() {
+		Card card = new Card();
+		card.select();
+		card.send(Card.hex("80E2800011" + "91040E" + "82025C00" + "9408"
+				+ "0801030010010302"));
+
+		assertArrayEquals(Card.hex("800A" + "5C00" + "0801030010010302"
+				+ "9000"), card.send(Card.GET_PROCESSING_OPTIONS));
+	}
+
+	@Test
+	public void loadedKeySignsDDA() {
+		Card card = new Card();
+		card.select();
+		IccKey key = new IccKey();
+		key.store(card);
+
+		card.send(Card.GET_PROCESSING_OPTIONS);
+		byte[] response = card.send(Card.INTERNAL_AUTHENTICATE);
+		byte[] sdad = new byte[128];
+		System.arraycopy(response, SDAD, sdad, 0, sdad.length);
+
+		byte[] recovered = key.recover(sdad);
+		assertEquals(0x6A, recovered[0]);
+		assertEquals(0x05, recovered[1]);
+		assertEquals((byte) 0xBC, recovered[127]);
+	}
+
+	@Test
+	public void partialKeyIsRefused() {
+		Card card = new Card();
+		card.select();
+		IccKey key = new IccKey();
+		for (int i = 0; i < 3; i++) {
+			card.send(key.storeComponent(i, i, false));
+		}
+		assertEquals(0x6A80, Card.sw(card.transmit(key.storeComponent(3,
+				3, true))));
+	}
+
+	@Test
+	public void componentOfTheWrongLengthIsRefused() {
+		Card card = new Card();
+		card.select();
+		assertEquals(0x6A80, Card.sw(card.transmit(Card.hex("80E2000005"
+				+ "82010200" + "00"))));
+	}
+
+	@Test
+	public void keyNeedsTheDynamicSignatures() {
+		// features: the log only
+		Card card = new Card(Card.hex("C40101"));
+		card.select();
+		assertEquals(0x6A81, Card.sw(card.transmit(new IccKey()
+				.storeComponent(0, 0, false))));
+	}
+}
@@ -0,0 +1,114 @@
+package smart;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import smart.bench.Card;
+
+/*
+ * Card risk management of the GENERATE AC commands: the AC types recorded in
+ * the CVR, the TC turned into an ARQC at the Lower Consecutive Offline Limit,
+ * and the TC turned into an AAC at the Upper Consecutive Offline Limit when
+ * the terminal could not go online.
+ */
+public class ProtocolStateTest {
+	private static final byte[] DISABLE_IAD_REPLICATION = Card
+			.hex("80780000");
+	private static final String CDOL1_DATA = "000000000100" + "000000000000"
+			+ "0986" + "0000000000" + "0986" + "150101" + "00" + "11223344";
+	private static final byte[] FIRST_AC_TC = Card.hex("80AE40001D"
+			+ CDOL1_DATA);
+	/** The second GENERATE AC declining online, with the ARC 05 */
+	private static final byte[] SECOND_AC_AAC = Card.hex("80AE00001F"
+			+ "3035" + CDOL1_DATA);
+	/** The second GENERATE AC asking for a TC, with the ARC Z3 */
+	private static final byte[] SECOND_AC_OFFLINE_TC = Card
+			.hex("80AE40001F" + "5A33" + CDOL1_DATA);
+
+	// Offsets in a GENERATE AC response of the CID and of the CVR bytes 1 to
+	// 3, in the IAD built by the card
+	private static final int CID = 5;
+	private static final int CVR_1 = 29;
+	private static final int CVR_2 = 30;
+	private static final int CVR_3 = 31;
+
+	// defaults of ProtocolState
+	private static final int LOWER_LIMIT = 5;
+	private static final int UPPER_LIMIT = 10;
+
+	private Card card;
+
+	@Before
+	public void setUp() {
+		card = new Card();
+		card.select();
+		card.send(DISABLE_IAD_REPLICATION);
+	}
+
+	/* Starts a new transaction and returns its first GENERATE AC response */
+	private byte[] firstAC(byte[] command) {
+		card.select();
+		card.send(Card.GET_PROCESSING_OPTIONS);
+		return card.send(command);
+	}
+
+	private static void assertCVR(int cid, int cvr1, int cvr2, int cvr3,
+			byte[] response) {
+		assertEquals((byte) cid, response[CID]);
+		assertEquals((byte) cvr1, response[CVR_1]);
+		assertEquals((byte) cvr2, response[CVR_2]);
+		assertEquals((byte) cvr3, response[CVR_3]);
+	}
+
+	@Test
+	public void tcIsRecordedInTheCVR() {
+		// second AC not requested, first AC TC
+		assertCVR(0x40, 0x90, 0x00, 0x00, firstAC(FIRST_AC_TC));
+	}
+
+	@Test
+	public void arqcIsRecordedInTheCVR() {
+		// second AC not requested, first AC ARQC
+		assertCVR(0x80, 0xA0, 0x00, 0x00, firstAC(Card.GENERATE_FIRST_AC));
+	}
+
+	@Test
+	public void aacIsRecordedInTheCVR() {
+		firstAC(Card.GENERATE_FIRST_AC);
+		// second AC AAC, first AC ARQC
+		assertCVR(0x00, 0x20, 0x00, 0x00, card.send(SECOND_AC_AAC));
+	}
+
+	@Test
+	public void offlineSecondACIsRecordedInTheCVR() {
+		firstAC(Card.GENERATE_FIRST_AC);
+		// second AC TC, first AC ARQC, unable to go online
+		assertCVR(0x40, 0x61, 0x00, 0x00, card.send(SECOND_AC_OFFLINE_TC));
+	}
+
+	@Test
+	public void lowerLimitForcesTheTransactionOnline() {
+		for (int i = 0; i < LOWER_LIMIT; i++) {
+			assertEquals(0x40, firstAC(FIRST_AC_TC)[CID]);
+		}
+		// ARQC, with velocity checking exceeded
+		assertCVR(0x80, 0xA0, 0x20, 0x00, firstAC(FIRST_AC_TC));
+	}
+
+	@Test
+	public void upperLimitDeclinesTheOfflineSecondAC() {
+		for (int i = 0; i < LOWER_LIMIT; i++) {
+			firstAC(FIRST_AC_TC);
+		}
+		for (int i = LOWER_LIMIT; i < UPPER_LIMIT; i++) {
+			firstAC(FIRST_AC_TC);
+			assertEquals(0x40, card.send(SECOND_AC_OFFLINE_TC)[CID]);
+		}
+		firstAC(FIRST_AC_TC);
+		// second AC AAC, first AC ARQC, unable to go online; the last online
+		// transaction was completed and the velocity was exceeded
+		assertCVR(0x00, 0x21, 0x20, 0x00, card.send(SECOND_AC_OFFLINE_TC));
+	}
+}
@@ -0,0 +1,76 @@
+package smart;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import smart.bench.Card;
+
+/*
+ * A GET PROCESSING OPTIONS or GENERATE AC sent with a short Le is refused
+ * with 6Cxx before it changes anything, so the terminal can send it again
+ * with the exact Le.
+ */
+public class ResponseTest {
+	private Card card;
+
+	@Before
+	public void setUp() {
+		card = new Card();
+		card.select();
+		card.send(Card.DISABLE_AC_REPLICATION);
+	}
+
+	/*
+	 * Sends the command with an Le of 1, checks the 6Cxx, and sends it again
+	 * with the exact Le
+	 */
+	private byte[] sendWithShortLeFirst(byte[] command) {
+		int sw = Card.sw(card.transmit(command, 1));
+		assertEquals(0x6C00, sw & 0xFF00);
+		byte[] response = card.transmit(command, sw & 0xFF);
+		assertEquals(0x9000, Card.sw(response));
+		assertEquals(sw & 0xFF, response.length - 2);
+		return response;
+	}
+
+	@Test
+	public void gpoIsRetried() {
+		byte[] atc = card.send(Card.GET_DATA_ATC);
+		sendWithShortLeFirst(Card.GET_PROCESSING_OPTIONS);
+
+		// a single transaction was started
+		byte[] next = card.send(Card.GET_DATA_ATC);
+		assertEquals(atc[4] + 1, next[4]);
+	}
+
+	@Test
+	public void contactlessGPOIsRetried() {
+		card.send(Card.SET_CONTACTLESS_PROFILE);
+		byte[] atc = card.send(Card.GET_DATA_ATC);
+		sendWithShortLeFirst(Card.GET_PROCESSING_OPTIONS);
+		byte[] next = card.send(Card.GET_DATA_ATC);
+		assertEquals(atc[4] + 1, next[4]);
+	}
+
+	@Test
+	public void generateACIsRetried() {
+		card.send(Card.GET_PROCESSING_OPTIONS);
+		byte[] arqc = sendWithShortLeFirst(Card.GENERATE_FIRST_AC);
+		assertArrayEquals(Card.hex("9F270180"), Arrays.copyOfRange(arqc, 2,
+				6));
+
+		// the retried AC was taken as the first one
+		sendWithShortLeFirst(Card.GENERATE_SECOND_AC);
+	}
+
+	@Test
+	public void cdaIsRetried() {
+		card.send(Card.GET_PROCESSING_OPTIONS);
+		sendWithShortLeFirst(Card.GENERATE_FIRST_AC_CDA);
+	}
+}
@@ -0,0 +1,70 @@
+package smart;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import smart.bench.Card;
+
+/*
+ * SELECT: the FCIs of the application, the PSE and the PPSE, and the PSE
+ * directory record, are well formed BER-TLV down to the directory entry.
+ */
+public class SelectTest {
+	private static final byte[] SELECT_PSE = Card.hex("00A404000E"
+			+ "315041592E5359532E4444463031");
+	/** READ RECORD 1 of the PSE directory file, SFI 4 */
+	private static final byte[] READ_DIRECTORY = Card.hex("00B2012400");
+
+	@Test
+	public void fcisAreWellFormed() {
+		Card card = new Card();
+		checkTemplate(card.select());
+		checkTemplate(card.send(SELECT_PSE));
+		checkTemplate(card.send(Card.SELECT_PPSE));
+	}
+
+	@Test
+	public void directoryRecordIsWellFormed() {
+		Card card = new Card();
+		card.select();
+		checkTemplate(card.send(READ_DIRECTORY));
+	}
+
+	/*
+	 * Checks that the response, status word aside, is a single TLV whose
+	 * constructed objects hold exactly the TLVs their lengths cover
+	 */
+	private static void checkTemplate(byte[] response) {
+		assertEquals(response.length - 2, check(response, 0,
+				response.length - 2));
+	}
+
+	/*
+	 * Checks the TLV at offset, which must end by the given limit, and returns
+	 * its size
+	 */
+	private static int check(byte[] buf, int offset, int limit) {
+		int start = offset;
+		boolean constructed = (buf[offset] & 0x20) != 0;
+		if ((buf[offset++] & 0x1F) == 0x1F) {
+			while ((buf[offset++] & 0x80) != 0) {
+			}
+		}
+		int length = buf[offset++] & 0xFF;
+		if (length == 0x81) {
+			length = buf[offset++] & 0xFF;
+		}
+		int end = offset + length;
+		if (end > limit) {
+			throw new AssertionError(String.format(
+					"TLV at %d overruns its template", start));
+		}
+		if (constructed) {
+			while (offset < end) {
+				offset += check(buf, offset, end);
+			}
+		}
+		return end - start;
+	}
+}
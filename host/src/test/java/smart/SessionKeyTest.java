@@ -0,0 +1,60 @@
+package smart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import smart.bench.Card;
+
+/*
+ * Secure messaging session keys: the MAC of an issuer script is checked with
+ * the key of the ARQC of its transaction, even when an earlier transaction
+ * had the same ATC. The AC to replicate (PUT DATA 9F70) takes exactly 8
+ * bytes.
+ */
+public class SessionKeyTest {
+	/** The first GENERATE AC, with another unpredictable number */
+	private static final byte[] OTHER_FIRST_AC = Card.hex("80AE80001D"
+			+ "000000000100" + "000000000000" + "0986" + "0000000000"
+			+ "0986" + "150101" + "00" + "55667788");
+
+	private Card card;
+
+	@Before
+	public void setUp() {
+		card = new Card();
+		card.select();
+		card.send(Card.DISABLE_AC_REPLICATION);
+	}
+
+	/* Runs a transaction up to its ARQC with ATC 1, and returns the ARQC */
+	private byte[] arqcWithATC1(byte[] firstAC) {
+		card.send(Card.RESET_ATC);
+		card.send(Card.GET_PROCESSING_OPTIONS);
+		return card.send(firstAC);
+	}
+
+	@Test
+	public void scriptKeyFollowsTheARQCOfTheSameATC() {
+		byte[] first = arqcWithATC1(Card.GENERATE_FIRST_AC);
+		card.send(Card.withScriptMAC(Card.SCRIPT_PUT_DATA, first));
+
+		byte[] second = arqcWithATC1(OTHER_FIRST_AC);
+		assertFalse(Arrays.equals(first, second));
+		assertEquals(0x9000, Card.sw(card.transmit(Card.withScriptMAC(
+				Card.SCRIPT_PUT_DATA, second))));
+	}
+
+	@Test
+	public void replicatedACOfTheWrongLengthIsRefused() {
+		assertEquals(0x6700, Card.sw(card.transmit(Card.hex("80DA9F7007"
+				+ "11223344556677"))));
+		assertEquals(0x6700, Card.sw(card.transmit(Card.hex("80DA9F7009"
+				+ "112233445566778899"))));
+		card.send(Card.hex("80DA9F7008" + "1122334455667788"));
+	}
+}
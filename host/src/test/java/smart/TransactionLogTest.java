@@ -0,0 +1,85 @@
+package smart;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import smart.bench.Card;
+
+/*
+ * Transaction log, SFI 0B: a record per completed transaction, read with
+ * READ RECORD from the most recent one, the eleventh transaction replacing
+ * the oldest record.
+ */
+public class TransactionLogTest {
+	/** The second GENERATE AC asking for a TC, with the ARC 00 */
+	private static final String SECOND_AC = "80AE40001F" + "3030"
+			+ "%012d" + "000000000000" + "0986" + "0000000000" + "0986"
+			+ "150101" + "00" + "11223344";
+
+	private Card card;
+
+	@Before
+	public void setUp() {
+		card = new Card();
+		card.select();
+	}
+
+	/* Returns READ RECORD of the given record of the log file */
+	private static byte[] readLog(int record) {
+		return Card.hex(String.format("00B2%02X5C00", record));
+	}
+
+	/*
+	 * Runs a transaction approved online for the given amount, which ends
+	 * in the log, and returns its ATC
+	 */
+	private int approve(int amount) {
+		card.select();
+		card.send(Card.GET_PROCESSING_OPTIONS);
+		card.send(Card.GENERATE_FIRST_AC);
+		card.send(Card.hex(String.format(SECOND_AC, amount)));
+		byte[] atc = card.send(Card.GET_DATA_ATC);
+		return ((atc[3] & 0xFF) << 8) | (atc[4] & 0xFF);
+	}
+
+	@Test
+	public void emptyLogHasNoRecord() {
+		assertEquals(0x6A83, Card.sw(card.transmit(readLog(1))));
+	}
+
+	@Test
+	public void recordHoldsTheLogFormatValues() {
+		int atc = approve(250);
+		assertArrayEquals(Card.hex("000000000250" + "0986" + "150101" + "40"
+				+ String.format("%04X", atc) + "9000"), card.send(readLog(1)));
+	}
+
+	@Test
+	public void eleventhTransactionReplacesTheOldest() {
+		int[] atcs = new int[TransactionLog.RECORDS + 1];
+		for (int i = 0; i < atcs.length; i++) {
+			atcs[i] = approve(i + 1);
+		}
+
+		for (int record = 1; record <= TransactionLog.RECORDS; record++) {
+			byte[] entry = card.send(readLog(record));
+			int i = atcs.length - record;
+			assertEquals(String.format("%012d", i + 1), toHex(entry, 0, 6));
+			assertEquals(String.format("%04X", atcs[i]), toHex(entry, 12, 2));
+		}
+		// the first transaction is gone
+		assertEquals(0x6A83, Card.sw(card.transmit(readLog(
+				TransactionLog.RECORDS + 1))));
+	}
+
+	private static String toHex(byte[] buf, int offset, int length) {
+		StringBuilder hex = new StringBuilder();
+		for (int i = offset; i < offset + length; i++) {
+			hex.append(String.format("%02X", buf[i]));
+		}
+		return hex.toString();
+	}
+}
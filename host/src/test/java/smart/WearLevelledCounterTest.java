@@ -0,0 +1,112 @@
+package smart;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * WearLevelledCounter: the value survives the rotation over its slots and a
+ * deselect, a slot whose check does not match is ignored, a torn increment
+ * leaves the previous value, and the counter stops at FFFF.
+ */
+public class WearLevelledCounterTest {
+	private WearLevelledCounter counter;
+	private short[] slots;
+	private short[] current;
+
+	@Before
+	public void setUp() throws ReflectiveOperationException {
+		counter = new WearLevelledCounter((short) 5);
+		slots = (short[]) field("slots").get(counter);
+		current = (short[]) field("current").get(counter);
+	}
+
+	private static Field field(String name) throws NoSuchFieldException {
+		Field field = WearLevelledCounter.class.getDeclaredField(name);
+		field.setAccessible(true);
+		return field;
+	}
+
+	/* Drops the cached slot, as a deselect does, so it is looked up again */
+	private void deselect() {
+		current[0] = 0;
+	}
+
+	@Test
+	public void incrementsAcrossTheSlotWrap() {
+		for (int i = 0; i < 2 * WearLevelledCounter.SLOTS + 3; i++) {
+			counter.increment();
+		}
+		assertEquals(5 + 2 * WearLevelledCounter.SLOTS + 3, counter.get());
+		deselect();
+		assertEquals(5 + 2 * WearLevelledCounter.SLOTS + 3, counter.get());
+		counter.increment();
+		assertEquals(5 + 2 * WearLevelledCounter.SLOTS + 4, counter.get());
+	}
+
+	@Test
+	public void valuesAboveTheSignBitAreHigher() {
+		counter.set((short) 0x7FFF);
+		counter.increment();
+		deselect();
+		assertEquals((short) 0x8000, counter.get());
+	}
+
+	@Test
+	public void slotWithAWrongCheckIsIgnored() {
+		counter.increment();
+		slots[3] = 0x1234; // check of slot 1, holding 6
+		deselect();
+		assertEquals(5, counter.get());
+	}
+
+	@Test
+	public void tornIncrementKeepsThePreviousValue() {
+		for (int i = 0; i < WearLevelledCounter.SLOTS - 1; i++) {
+			counter.increment();
+		}
+		// slot 7 holds 12: tear the next increment, into slot 0, after its
+		// value was written but before its check
+		slots[0] = 13;
+		deselect();
+		assertEquals(12, counter.get());
+
+		counter.increment();
+		deselect();
+		assertEquals(13, counter.get());
+	}
+
+	@Test
+	public void setInvalidatesTheHigherSlots() {
+		for (int i = 0; i < 4; i++) {
+			counter.increment();
+		}
+		counter.set((short) 2);
+		deselect();
+		assertEquals(2, counter.get());
+		counter.increment();
+		assertEquals(3, counter.get());
+	}
+
+	@Test
+	public void stopsAtFFFF() {
+		counter.set((short) 0xFFFE);
+		counter.increment();
+		assertEquals((short) 0xFFFF, counter.get());
+		try {
+			counter.increment();
+			fail("the counter wrapped around");
+		} catch (ISOException e) {
+			assertEquals(ISO7816.SW_CONDITIONS_NOT_SATISFIED, e.getReason());
+		}
+		deselect();
+		assertEquals((short) 0xFFFF, counter.get());
+	}
+}